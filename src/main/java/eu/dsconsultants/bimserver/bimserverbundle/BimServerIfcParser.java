@@ -2,6 +2,7 @@ package eu.dsconsultants.bimserver.bimserverbundle;
 
 import java.io.File;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 public interface BimServerIfcParser {
 
@@ -9,4 +10,24 @@ public interface BimServerIfcParser {
 
     List<org.bimserver.models.ifc4.IfcProduct> parseIfc4(File file) throws BimServerApiException;
 
+    IfcParseResult parse(File file) throws BimServerApiException;
+
+    IfcParseResult parse(File file, IfcParseOptions options) throws BimServerApiException;
+
+    CompletableFuture<List<org.bimserver.models.ifc2x3tc1.IfcProduct>> parseIfc2x3tc1Async(File file);
+
+    CompletableFuture<List<org.bimserver.models.ifc4.IfcProduct>> parseIfc4Async(File file);
+
+    CompletableFuture<IfcParseResult> parseAsync(File file);
+
+    CompletableFuture<IfcParseResult> parseAsync(File file, IfcParseOptions options);
+
+    IfcEngineSession openSession(File file) throws BimServerApiException;
+
+    IfcEngineSession openSession(File file, IfcParseOptions options) throws BimServerApiException;
+
+    void writeSnapshot(IfcParseResult result, File file) throws BimServerApiException;
+
+    IfcSnapshot openSnapshot(File file) throws BimServerApiException;
+
 }
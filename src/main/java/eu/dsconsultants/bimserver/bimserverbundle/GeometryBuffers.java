@@ -0,0 +1,24 @@
+package eu.dsconsultants.bimserver.bimserverbundle;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import org.bimserver.models.geometry.Buffer;
+
+public interface GeometryBuffers extends AutoCloseable {
+
+    // Read-only little endian view of the buffer's payload, which may live off
+    // the heap when the model was parsed with off-heap geometry. Off-heap
+    // views are only valid until close(), copy what is needed beyond that.
+    ByteBuffer getData(Buffer buffer);
+
+    @Override
+    default void close() {
+    }
+
+    static GeometryBuffers onHeap() {
+        return buffer -> buffer == null || buffer.getData() == null
+                ? null
+                : ByteBuffer.wrap(buffer.getData()).asReadOnlyBuffer().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+}
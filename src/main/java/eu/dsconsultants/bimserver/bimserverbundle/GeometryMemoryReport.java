@@ -0,0 +1,32 @@
+package eu.dsconsultants.bimserver.bimserverbundle;
+
+import java.util.Map;
+
+// Geometry bytes of a parsed model, in total and per IFC type
+public class GeometryMemoryReport {
+
+    private final GeometryMemoryUsage total;
+    private final Map<String, GeometryMemoryUsage> byType;
+    private final boolean offHeap;
+
+    public GeometryMemoryReport(GeometryMemoryUsage total, Map<String, GeometryMemoryUsage> byType, boolean offHeap) {
+        this.total = total;
+        this.byType = byType;
+        this.offHeap = offHeap;
+    }
+
+    public GeometryMemoryUsage getTotal() {
+        return total;
+    }
+
+    // Keyed by IFC type name, largest total first
+    public Map<String, GeometryMemoryUsage> getByType() {
+        return byType;
+    }
+
+    // Whether the payloads live off the heap, transformations never do
+    public boolean isOffHeap() {
+        return offHeap;
+    }
+
+}
@@ -0,0 +1,59 @@
+package eu.dsconsultants.bimserver.bimserverbundle;
+
+// Bytes of geometry held for a set of products. Payloads shared by several
+// products are counted once, for the first of them, and sharedBytes is what
+// the other references would have cost if every product kept its own copy
+public class GeometryMemoryUsage {
+
+    private final int products;
+    private final long vertexBytes;
+    private final long normalBytes;
+    private final long indexBytes;
+    private final long colorBytes;
+    private final long transformationBytes;
+    private final long sharedBytes;
+
+    public GeometryMemoryUsage(int products, long vertexBytes, long normalBytes, long indexBytes, long colorBytes,
+            long transformationBytes, long sharedBytes) {
+        this.products = products;
+        this.vertexBytes = vertexBytes;
+        this.normalBytes = normalBytes;
+        this.indexBytes = indexBytes;
+        this.colorBytes = colorBytes;
+        this.transformationBytes = transformationBytes;
+        this.sharedBytes = sharedBytes;
+    }
+
+    public int getProducts() {
+        return products;
+    }
+
+    public long getVertexBytes() {
+        return vertexBytes;
+    }
+
+    public long getNormalBytes() {
+        return normalBytes;
+    }
+
+    public long getIndexBytes() {
+        return indexBytes;
+    }
+
+    public long getColorBytes() {
+        return colorBytes;
+    }
+
+    public long getTransformationBytes() {
+        return transformationBytes;
+    }
+
+    public long getSharedBytes() {
+        return sharedBytes;
+    }
+
+    public long getTotalBytes() {
+        return vertexBytes + normalBytes + indexBytes + colorBytes + transformationBytes;
+    }
+
+}
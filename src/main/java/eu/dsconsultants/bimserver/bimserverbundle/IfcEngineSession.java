@@ -0,0 +1,21 @@
+package eu.dsconsultants.bimserver.bimserverbundle;
+
+import java.util.Collection;
+import java.util.Map;
+import org.bimserver.emf.Schema;
+import org.bimserver.models.geometry.GeometryInfo;
+
+public interface IfcEngineSession extends AutoCloseable {
+
+    Schema getSchema();
+
+    // Geometry by express id, entities without geometry are left out
+    Map<Integer, GeometryInfo> generateGeometry(Collection<Integer> expressIds) throws BimServerApiException;
+
+    // Sessions close themselves after being idle for longer than the configured TTL
+    boolean isOpen();
+
+    @Override
+    void close();
+
+}
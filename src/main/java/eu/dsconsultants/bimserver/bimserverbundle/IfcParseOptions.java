@@ -0,0 +1,155 @@
+package eu.dsconsultants.bimserver.bimserverbundle;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+public class IfcParseOptions {
+
+    private Set<String> productTypes = Collections.emptySet();
+    private boolean compactIndices;
+    private boolean offHeapGeometry;
+    private boolean optimizeVertexCache;
+    private boolean quantitiesOnly;
+    private int workerCount;
+    private int workerTimeoutSeconds = 3600;
+    private boolean spatialIndex;
+    private boolean productIndex;
+    private File glbOutput;
+    private boolean incremental;
+    private IfcRevision previousRevision;
+
+    public Set<String> getProductTypes() {
+        return productTypes;
+    }
+
+    // Only load products of these IFC types (and their subtypes), together with
+    // what they reference and the relationships pointing at them
+    public void setProductTypes(Set<String> productTypes) {
+        this.productTypes = Collections.unmodifiableSet(new LinkedHashSet<>(productTypes));
+    }
+
+    public boolean isCompactIndices() {
+        return compactIndices;
+    }
+
+    // Weld duplicate vertices and store the indices as 16-bit values when the
+    // geometry has at most 65536 vertices, the width is indices size / nrIndices
+    public void setCompactIndices(boolean compactIndices) {
+        this.compactIndices = compactIndices;
+    }
+
+    public boolean isOptimizeVertexCache() {
+        return optimizeVertexCache;
+    }
+
+    // Reorder triangles for post-transform vertex cache hits and vertices in
+    // first use order, the geometry itself is unchanged
+    public void setOptimizeVertexCache(boolean optimizeVertexCache) {
+        this.optimizeVertexCache = optimizeVertexCache;
+    }
+
+    public boolean isQuantitiesOnly() {
+        return quantitiesOnly;
+    }
+
+    // Only compute bounds, area, volume and primitive count for quantity takeoff,
+    // GeometryInfo.getData() stays null and no normals are generated
+    public void setQuantitiesOnly(boolean quantitiesOnly) {
+        this.quantitiesOnly = quantitiesOnly;
+    }
+
+    public int getWorkerCount() {
+        return workerCount;
+    }
+
+    // Generate geometry in this many worker JVMs instead of in-process when
+    // zero. Each worker's engine gets a shard of the products with only the
+    // records they reference. Needs the worker classpath framework property
+    // eu.dsconsultants.bimserver.parser.workerClasspath
+    public void setWorkerCount(int workerCount) {
+        if (workerCount < 0) {
+            throw new IllegalArgumentException("Worker count must not be negative: " + workerCount);
+        }
+        this.workerCount = workerCount;
+    }
+
+    public int getWorkerTimeoutSeconds() {
+        return workerTimeoutSeconds;
+    }
+
+    // Workers still running after this long are killed and the parse fails
+    public void setWorkerTimeoutSeconds(int workerTimeoutSeconds) {
+        if (workerTimeoutSeconds < 1) {
+            throw new IllegalArgumentException("Worker timeout must be at least one second: " + workerTimeoutSeconds);
+        }
+        this.workerTimeoutSeconds = workerTimeoutSeconds;
+    }
+
+    public boolean isIncremental() {
+        return incremental || previousRevision != null;
+    }
+
+    // Record per-product content hashes so that the result's revision can be
+    // the baseline for parsing the next revision of the same model
+    public void setIncremental(boolean incremental) {
+        this.incremental = incremental;
+    }
+
+    public IfcRevision getPreviousRevision() {
+        return previousRevision;
+    }
+
+    // Reuse the geometry of products whose record, everything it references and
+    // the openings, styles and materials attached to it are unchanged since this
+    // revision. The whole file is still tessellated by the engine, reuse saves
+    // the Java side processing of those products. Ignored when the revision was
+    // made with other quantitiesOnly, compactIndices or optimizeVertexCache
+    // settings. The result holding it must still be open
+    public void setPreviousRevision(IfcRevision previousRevision) {
+        this.previousRevision = previousRevision;
+    }
+
+    public boolean isSpatialIndex() {
+        return spatialIndex;
+    }
+
+    // Build a bounding volume hierarchy over the bounds of the products with
+    // geometry, queried through IfcParseResult.getSpatialIndex()
+    public void setSpatialIndex(boolean spatialIndex) {
+        this.spatialIndex = spatialIndex;
+    }
+
+    public boolean isProductIndex() {
+        return productIndex;
+    }
+
+    // Index the products by express id, GlobalId, type and storey, queried
+    // through IfcParseResult.getProductIndex()
+    public void setProductIndex(boolean productIndex) {
+        this.productIndex = productIndex;
+    }
+
+    public File getGlbOutput() {
+        return glbOutput;
+    }
+
+    // Write the geometry as binary glTF to this file while it is generated,
+    // one mesh per distinct geometry and one node per product
+    public void setGlbOutput(File glbOutput) {
+        this.glbOutput = glbOutput;
+    }
+
+    public boolean isOffHeapGeometry() {
+        return offHeapGeometry;
+    }
+
+    // Keep geometry payloads in memory-mapped storage owned by the parse result,
+    // read them through IfcParseResult.getGeometryBuffers() and close the result
+    // to release them
+    public void setOffHeapGeometry(boolean offHeapGeometry) {
+        this.offHeapGeometry = offHeapGeometry;
+    }
+
+}
@@ -0,0 +1,118 @@
+package eu.dsconsultants.bimserver.bimserverbundle;
+
+import java.util.List;
+import org.bimserver.emf.IdEObject;
+import org.bimserver.emf.IfcModelInterface;
+import org.bimserver.emf.Schema;
+
+public class IfcParseResult implements AutoCloseable {
+
+    private final Schema schema;
+    private final IfcModelInterface model;
+    private final List<? extends IdEObject> products;
+    private final GeometryBuffers geometryBuffers;
+    private final IfcRevision revision;
+    private final ProductSpatialIndex spatialIndex;
+    private final ProductIndex productIndex;
+    private final GeometryMemoryReport memoryReport;
+
+    private IfcParseResult(Builder builder) {
+        this.schema = builder.schema;
+        this.model = builder.model;
+        this.products = builder.products;
+        this.geometryBuffers = builder.geometryBuffers;
+        this.revision = builder.revision;
+        this.spatialIndex = builder.spatialIndex;
+        this.productIndex = builder.productIndex;
+        this.memoryReport = builder.memoryReport;
+    }
+
+    public Schema getSchema() {
+        return schema;
+    }
+
+    public IfcModelInterface getModel() {
+        return model;
+    }
+
+    public List<? extends IdEObject> getProducts() {
+        return products;
+    }
+
+    public GeometryBuffers getGeometryBuffers() {
+        return geometryBuffers;
+    }
+
+    // Only present for incremental parses, see IfcParseOptions.setIncremental
+    public IfcRevision getRevision() {
+        return revision;
+    }
+
+    // Only present when requested, see IfcParseOptions.setSpatialIndex
+    public ProductSpatialIndex getSpatialIndex() {
+        return spatialIndex;
+    }
+
+    // Only present when requested, see IfcParseOptions.setProductIndex
+    public ProductIndex getProductIndex() {
+        return productIndex;
+    }
+
+    public GeometryMemoryReport getMemoryReport() {
+        return memoryReport;
+    }
+
+    @Override
+    public void close() {
+        geometryBuffers.close();
+    }
+
+    // Everything but schema, model and products is optional
+    public static class Builder {
+
+        private final Schema schema;
+        private final IfcModelInterface model;
+        private final List<? extends IdEObject> products;
+        private GeometryBuffers geometryBuffers = GeometryBuffers.onHeap();
+        private IfcRevision revision;
+        private ProductSpatialIndex spatialIndex;
+        private ProductIndex productIndex;
+        private GeometryMemoryReport memoryReport;
+
+        public Builder(Schema schema, IfcModelInterface model, List<? extends IdEObject> products) {
+            this.schema = schema;
+            this.model = model;
+            this.products = products;
+        }
+
+        public Builder geometryBuffers(GeometryBuffers geometryBuffers) {
+            this.geometryBuffers = geometryBuffers;
+            return this;
+        }
+
+        public Builder revision(IfcRevision revision) {
+            this.revision = revision;
+            return this;
+        }
+
+        public Builder spatialIndex(ProductSpatialIndex spatialIndex) {
+            this.spatialIndex = spatialIndex;
+            return this;
+        }
+
+        public Builder productIndex(ProductIndex productIndex) {
+            this.productIndex = productIndex;
+            return this;
+        }
+
+        public Builder memoryReport(GeometryMemoryReport memoryReport) {
+            this.memoryReport = memoryReport;
+            return this;
+        }
+
+        public IfcParseResult build() {
+            return new IfcParseResult(this);
+        }
+    }
+
+}
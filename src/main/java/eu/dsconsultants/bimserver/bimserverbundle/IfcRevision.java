@@ -0,0 +1,11 @@
+package eu.dsconsultants.bimserver.bimserverbundle;
+
+// Per-product content hashes and geometry of a parsed revision, used as the
+// baseline of an incremental parse of the next revision
+public interface IfcRevision {
+
+    String getFileName();
+
+    int getProductCount();
+
+}
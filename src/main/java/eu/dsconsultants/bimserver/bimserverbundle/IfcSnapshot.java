@@ -0,0 +1,57 @@
+package eu.dsconsultants.bimserver.bimserverbundle;
+
+import java.nio.ByteBuffer;
+import org.bimserver.emf.Schema;
+
+// Products and geometry of a parse result as written by
+// BimServerIfcParser.writeSnapshot, read column by column from a mapped file.
+// Products and geometries are addressed by their index in the snapshot.
+public interface IfcSnapshot extends AutoCloseable {
+
+    Schema getSchema();
+
+    int getProductCount();
+
+    // Index of the product with this express id, -1 when there is none
+    int indexOf(int expressId);
+
+    int getExpressId(int product);
+
+    String getType(int product);
+
+    String getGuid(int product);
+
+    // Index of the product's geometry, shared by products with identical
+    // geometry, -1 when the product has none
+    int getGeometry(int product);
+
+    // minX, minY, minZ, maxX, maxY, maxZ
+    double[] getBounds(int product);
+
+    // Column-major 4x4 placement of the geometry
+    double[] getTransformation(int product);
+
+    double getArea(int product);
+
+    double getVolume(int product);
+
+    int getPrimitiveCount(int product);
+
+    int getGeometryCount();
+
+    int getNrIndices(int geometry);
+
+    // Read-only little endian views into the file, null where the geometry
+    // has no such buffer
+    ByteBuffer getIndices(int geometry);
+
+    ByteBuffer getVertices(int geometry);
+
+    ByteBuffer getNormals(int geometry);
+
+    ByteBuffer getColors(int geometry);
+
+    @Override
+    void close();
+
+}
@@ -0,0 +1,28 @@
+package eu.dsconsultants.bimserver.bimserverbundle;
+
+import org.bimserver.emf.IdEObject;
+
+// Lookups over the parsed products that replace scans of the model, queries
+// answer with express ids which getProduct resolves
+public interface ProductIndex {
+
+    int size();
+
+    // Null when no parsed product has this express id
+    IdEObject getProduct(int expressId);
+
+    // Express id of the product with this GlobalId, -1 when there is none
+    int findByGlobalId(String globalId);
+
+    // Products of this IFC class or one of its subclasses, the name is case
+    // insensitive, in no particular order
+    int[] findByType(String ifcType);
+
+    // Products in the storey, contained directly or through spaces and
+    // aggregates, in model order
+    int[] findByStorey(int storeyExpressId);
+
+    // Express id of the storey the product is in, -1 when it is in none
+    int getStorey(int expressId);
+
+}
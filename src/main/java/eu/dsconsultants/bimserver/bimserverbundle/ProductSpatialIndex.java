@@ -0,0 +1,18 @@
+package eu.dsconsultants.bimserver.bimserverbundle;
+
+// World space bounds of the parsed products that have geometry, every query
+// answers with express ids
+public interface ProductSpatialIndex {
+
+    int size();
+
+    // Products whose bounds intersect the box, in no particular order
+    int[] queryBox(double minX, double minY, double minZ, double maxX, double maxY, double maxZ);
+
+    // Products whose bounds are hit by the ray, nearest entry point first
+    int[] queryRay(double originX, double originY, double originZ, double directionX, double directionY, double directionZ);
+
+    // The k products whose bounds are closest to the point, nearest first
+    int[] nearest(double x, double y, double z, int k);
+
+}
@@ -2,12 +2,30 @@ package eu.dsconsultants.bimserver.bimserverbundle.impl;
 
 import eu.dsconsultants.bimserver.bimserverbundle.BimServerApiException;
 import eu.dsconsultants.bimserver.bimserverbundle.BimServerIfcParser;
+import eu.dsconsultants.bimserver.bimserverbundle.GeometryBuffers;
+import eu.dsconsultants.bimserver.bimserverbundle.GeometryMemoryReport;
+import eu.dsconsultants.bimserver.bimserverbundle.IfcEngineSession;
+import eu.dsconsultants.bimserver.bimserverbundle.IfcParseOptions;
+import eu.dsconsultants.bimserver.bimserverbundle.IfcParseResult;
+import eu.dsconsultants.bimserver.bimserverbundle.IfcSnapshot;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Consumer;
+import org.bimserver.emf.IdEObject;
 import org.bimserver.emf.IfcModelInterface;
+import org.bimserver.emf.Schema;
 import org.bimserver.ifc.step.deserializer.IfcStepDeserializer;
+import org.bimserver.models.geometry.GeometryData;
+import org.bimserver.models.geometry.GeometryInfo;
 import org.bimserver.plugins.deserializers.DeserializeException;
 import org.bimserver.plugins.renderengine.RenderEngineException;
 import org.ifcopenshell.IfcOpenShellEngine;
@@ -19,52 +37,408 @@ public class BimServerIfcParserImpl implements BimServerIfcParser {
     private static final Logger LOG = LoggerFactory.getLogger(BimServerIfcParserImpl.class);
     private final GeomServerExecutablePathProvider geomServerPathProvider;
     private final IfcStepDeserializersProvider deserializersProvider;
+    private final ParseAdmissionController admissionController;
+    private final EngineSessions engineSessions;
+    private final String workerClasspath;
 
-    BimServerIfcParserImpl(GeomServerExecutablePathProvider geomServerPathProvider, IfcStepDeserializersProvider deserializersProvider) {
+    BimServerIfcParserImpl(GeomServerExecutablePathProvider geomServerPathProvider, IfcStepDeserializersProvider deserializersProvider,
+            ParseAdmissionController admissionController, EngineSessions engineSessions, String workerClasspath) {
         this.geomServerPathProvider = geomServerPathProvider;
         this.deserializersProvider = deserializersProvider;
+        this.admissionController = admissionController;
+        this.engineSessions = engineSessions;
+        this.workerClasspath = workerClasspath;
     }
 
     @Override
     public List<org.bimserver.models.ifc2x3tc1.IfcProduct> parseIfc2x3tc1(File file) throws BimServerApiException {
+        return await(file, parseIfc2x3tc1Async(file));
+    }
+
+    @Override
+    public List<org.bimserver.models.ifc4.IfcProduct> parseIfc4(File file) throws BimServerApiException {
+        return await(file, parseIfc4Async(file));
+    }
+
+    @Override
+    public IfcParseResult parse(File file) throws BimServerApiException {
+        return parse(file, new IfcParseOptions());
+    }
+
+    @Override
+    public IfcParseResult parse(File file, IfcParseOptions options) throws BimServerApiException {
+        return await(file, parseAsync(file, options));
+    }
+
+    @Override
+    public CompletableFuture<List<org.bimserver.models.ifc2x3tc1.IfcProduct>> parseIfc2x3tc1Async(File file) {
+        return admissionController.submit(file, Schema.IFC2X3TC1,
+                () -> parseProducts(file, Schema.IFC2X3TC1, org.bimserver.models.ifc2x3tc1.IfcProduct.class));
+    }
+
+    @Override
+    public CompletableFuture<List<org.bimserver.models.ifc4.IfcProduct>> parseIfc4Async(File file) {
+        return admissionController.submit(file, Schema.IFC4, () -> parseProducts(file, Schema.IFC4, org.bimserver.models.ifc4.IfcProduct.class));
+    }
+
+    @Override
+    public CompletableFuture<IfcParseResult> parseAsync(File file) {
+        return parseAsync(file, new IfcParseOptions());
+    }
+
+    @Override
+    public CompletableFuture<IfcParseResult> parseAsync(File file, IfcParseOptions options) {
+        return admissionController.submit(file, null, () -> parseAdmitted(file, options));
+    }
+
+    // The synchronous calls wait for the same admission as the asynchronous ones
+    private static <T> T await(File file, CompletableFuture<T> future) throws BimServerApiException {
         try {
-            IfcStepDeserializer deserializer = deserializersProvider.getIfc2x3tc1StepDeserializer();
-            IfcModelInterface model = deserializer.read(file);
-            generateGeometry(file, model, true);
-            return model.getAllWithSubTypes(org.bimserver.models.ifc2x3tc1.IfcProduct.class);
-        } catch (DeserializeException ex) {
+            return future.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            future.cancel(false);
+            throw new BimServerApiException("Interrupted while parsing " + file.getName(), ex);
+        } catch (ExecutionException ex) {
+            throw ex.getCause() instanceof BimServerApiException
+                    ? (BimServerApiException) ex.getCause()
+                    : new BimServerApiException(ex.getCause());
+        } catch (CancellationException ex) {
+            throw new BimServerApiException("Parsing " + file.getName() + " was cancelled", ex);
+        }
+    }
+
+    private <T extends IdEObject> List<T> parseProducts(File file, Schema schema, Class<T> productClass) throws BimServerApiException {
+        try (IfcInput input = openInput(file)) {
+            IfcModelInterface model = parse(input, schema, new IfcParseOptions(), null, null, null);
+            return model.getAllWithSubTypes(productClass);
+        } catch (IOException ex) {
+            throw new BimServerApiException(ex);
+        }
+    }
+
+    private IfcParseResult parseAdmitted(File file, IfcParseOptions options) throws BimServerApiException {
+        if (options.getWorkerCount() > 0 && workerClasspath == null) {
+            throw new BimServerApiException("Geometry workers need their classpath in the "
+                    + ModuleActivator.WORKER_CLASSPATH_PROPERTY + " framework property");
+        }
+        try (IfcInput input = openInput(file)) {
+            Schema schema = IfcSchemaDetector.detect(input);
+            GeometryArena arena = options.isOffHeapGeometry() ? GeometryArena.create() : null;
+            GeometryBuffers geometryBuffers = arena != null ? arena : GeometryBuffers.onHeap();
+            try (GlbExporter glb = options.getGlbOutput() == null ? null : GlbExporter.create(options.getGlbOutput().toPath(), geometryBuffers)) {
+                RevisionFingerprint.Builder revision = options.isIncremental() ? new RevisionFingerprint.Builder(input.getFileName(), options) : null;
+                IfcModelInterface model = parse(input, schema, options, arena, revision, glb);
+                if (glb != null) {
+                    glb.finish();
+                }
+                List<? extends IdEObject> products = getProducts(model, schema);
+                GeometryMemoryReport memoryReport = GeometryMemoryAccounting.measure(products, geometryBuffers, arena != null);
+                if (ParserEvents.ENABLED) {
+                    GeometryMemoryAccounting.commitEvents(input.getFileName(), memoryReport);
+                }
+                return new IfcParseResult.Builder(schema, model, products)
+                        .geometryBuffers(geometryBuffers)
+                        .revision(revision == null ? null : revision.build(geometryBuffers))
+                        .spatialIndex(options.isSpatialIndex() ? ProductBvh.build(products) : null)
+                        .productIndex(options.isProductIndex() ? HashedProductIndex.build(products) : null)
+                        .memoryReport(memoryReport)
+                        .build();
+            } catch (BimServerApiException | IOException | RuntimeException ex) {
+                if (arena != null) {
+                    arena.close();
+                }
+                throw ex;
+            }
+        } catch (IOException ex) {
             throw new BimServerApiException(ex);
         }
     }
 
     @Override
-    public List<org.bimserver.models.ifc4.IfcProduct> parseIfc4(File file) throws BimServerApiException {
+    public IfcEngineSession openSession(File file) throws BimServerApiException {
+        return openSession(file, new IfcParseOptions());
+    }
+
+    @Override
+    public IfcEngineSession openSession(File file, IfcParseOptions options) throws BimServerApiException {
+        try (IfcInput input = openInput(file)) {
+            Schema schema = IfcSchemaDetector.detect(input);
+            return engineSessions.open(file, input, schema, options, geomServerPathProvider.getGeomServerExecutablePath());
+        } catch (IOException ex) {
+            throw new BimServerApiException(ex);
+        }
+    }
+
+    @Override
+    public void writeSnapshot(IfcParseResult result, File file) throws BimServerApiException {
+        try {
+            ColumnarSnapshot.write(result, file.toPath());
+        } catch (IOException ex) {
+            throw new BimServerApiException("Unable to write snapshot " + file, ex);
+        }
+    }
+
+    @Override
+    public IfcSnapshot openSnapshot(File file) throws BimServerApiException {
+        try {
+            return ColumnarSnapshot.open(file.toPath());
+        } catch (IOException ex) {
+            throw new BimServerApiException("Unable to open snapshot " + file, ex);
+        }
+    }
+
+    private IfcInput openInput(File file) throws BimServerApiException {
+        try {
+            return IfcInput.open(file);
+        } catch (IOException ex) {
+            throw new BimServerApiException("Unable to open " + file, ex);
+        }
+    }
+
+    private IfcModelInterface parse(IfcInput input, Schema schema, IfcParseOptions options, GeometryArena arena,
+            RevisionFingerprint.Builder revision, GlbExporter glb) throws BimServerApiException {
+        ParserEvents.ParseEvent event = null;
+        if (ParserEvents.ENABLED) {
+            event = new ParserEvents.ParseEvent();
+            event.begin();
+        }
+        IfcModelInterface model;
+        if (revision != null) {
+            model = parseIncremental(input, schema, options, arena, revision, glb);
+        } else {
+            // The engine is given the same records as the deserializer
+            IfcInput modelInput = options.getProductTypes().isEmpty()
+                    ? input
+                    : selectSubset(input, indexInput(input), schema, options.getProductTypes());
+            model = deserialize(modelInput, schema);
+            if (options.getWorkerCount() > 0) {
+                generateGeometryOnWorkers(modelInput, indexInput(modelInput), schema, exported(geometryTargets(model, schema), glb),
+                        options, arena);
+            } else {
+                generateGeometry(modelInput, model, schema == Schema.IFC2X3TC1, options, arena, glb);
+            }
+        }
+        if (event != null) {
+            event.end();
+            if (event.shouldCommit()) {
+                commitParseEvent(event, input, schema, model);
+            }
+        }
+        return model;
+    }
+
+    private void commitParseEvent(ParserEvents.ParseEvent event, IfcInput input, Schema schema, IfcModelInterface model) {
+        event.file = input.getFileName();
+        event.schema = schema.name();
+        try {
+            event.bytes = input.length();
+        } catch (IOException ex) {
+            event.bytes = -1;
+        }
+        List<? extends IdEObject> products = getProducts(model, schema);
+        event.products = products.size();
+        for (IdEObject product : products) {
+            GeometryInfo geometry = (GeometryInfo) product.eGet(product.eClass().getEStructuralFeature("geometry"));
+            if (geometry != null) {
+                event.triangles += geometry.getPrimitiveCount();
+            }
+        }
+        event.commit();
+    }
+
+    private IfcModelInterface deserialize(IfcInput input, Schema schema) throws BimServerApiException {
+        IfcStepDeserializer deserializer = schema == Schema.IFC2X3TC1
+                ? deserializersProvider.getIfc2x3tc1StepDeserializer()
+                : deserializersProvider.getIfc4StepDeserializer();
+        try (InputStream in = input.newInputStream()) {
+            return deserializer.read(in, input.getFileName(), input.length(), null);
+        } catch (DeserializeException | IOException ex) {
+            throw new BimServerApiException(ex);
+        }
+    }
+
+    private StepIndex indexInput(IfcInput input) throws BimServerApiException {
         try {
-            IfcStepDeserializer deserializer = deserializersProvider.getIfc4StepDeserializer();
-            IfcModelInterface model = deserializer.read(file);
-            generateGeometry(file, model, false);
-            return model.getAllWithSubTypes(org.bimserver.models.ifc4.IfcProduct.class);
-        } catch (DeserializeException ex) {
+            return StepIndex.build(input);
+        } catch (IOException ex) {
             throw new BimServerApiException(ex);
         }
     }
 
-    private void generateGeometry(File file, IfcModelInterface model, boolean isIfc2x3tc1) {
+    private SubsetIfcInput selectSubset(IfcInput input, StepIndex index, Schema schema, Set<String> productTypes) throws BimServerApiException {
+        try {
+            StepSubset subset = StepSubset.select(input, index, deserializersProvider.getPackageMetaData(schema), productTypes);
+            LOG.info(String.format("Loading %d of %d entities for %s", subset.size(), index.size(), productTypes));
+            return SubsetIfcInput.select(input, index, subset);
+        } catch (IOException ex) {
+            throw new BimServerApiException(ex);
+        }
+    }
+
+    private List<? extends IdEObject> getProducts(IfcModelInterface model, Schema schema) {
+        if (schema == Schema.IFC2X3TC1) {
+            return model.getAllWithSubTypes(org.bimserver.models.ifc2x3tc1.IfcProduct.class);
+        }
+        return model.getAllWithSubTypes(org.bimserver.models.ifc4.IfcProduct.class);
+    }
+
+    private void generateGeometry(IfcInput input, IfcModelInterface model, boolean isIfc2x3tc1, IfcParseOptions options,
+            GeometryArena arena, GlbExporter glb) {
         try (IfcOpenShellEngine renderEngine = new IfcOpenShellEngine(geomServerPathProvider.getGeomServerExecutablePath())) {
             renderEngine.init();
             LOG.info("Using executable " + geomServerPathProvider.getGeomServerExecutablePath());
 
-            try (FileInputStream fis = new FileInputStream(file)) {
+            try (InputStream in = input.newInputStream()) {
                 AbstractInputStreamGeometryGenerator generator;
                 if (isIfc2x3tc1) {
-                    generator = new Ifc2x3InputStreamGeometryGenerator(model, fis, renderEngine);
+                    generator = new Ifc2x3InputStreamGeometryGenerator(model, in, input.length(), renderEngine);
                 } else {
-                    generator = new Ifc4InputStreamGeometryGenerator(model, fis, renderEngine);
+                    generator = new Ifc4InputStreamGeometryGenerator(model, in, input.length(), renderEngine);
                 }
+                generator.setCompactIndices(options.isCompactIndices());
+                generator.setOptimizeVertexCache(options.isOptimizeVertexCache());
+                generator.setQuantitiesOnly(options.isQuantitiesOnly());
+                generator.setGeometryArena(arena);
+                generator.setGlbExporter(glb);
                 generator.generateForAllElements();
             }
         } catch (IOException | RenderEngineException ex) {
             LOG.error("Exception during geometry extraction", ex);
         }
     }
+
+    private SubsetIfcInput selectProducts(IfcInput input, StepIndex index, Schema schema, Set<Integer> expressIds)
+            throws BimServerApiException {
+        int[] products = new int[expressIds.size()];
+        int n = 0;
+        for (int expressId : expressIds) {
+            products[n++] = expressId;
+        }
+        try {
+            SubsetIfcInput subset = SubsetIfcInput.select(input, index,
+                    StepSubset.select(input, index, deserializersProvider.getPackageMetaData(schema), products));
+            LOG.info(String.format("Loading %d of %d entities for %d products", subset.size(), index.size(), products.length));
+            return subset;
+        } catch (IOException ex) {
+            throw new BimServerApiException(ex);
+        }
+    }
+
+    private IfcModelInterface parseIncremental(IfcInput input, Schema schema, IfcParseOptions options, GeometryArena arena,
+            RevisionFingerprint.Builder revision, GlbExporter glb) throws BimServerApiException {
+        if (options.getPreviousRevision() != null && !(options.getPreviousRevision() instanceof RevisionFingerprint)) {
+            throw new BimServerApiException("Previous revision was not created by this parser");
+        }
+        RevisionFingerprint previous = (RevisionFingerprint) options.getPreviousRevision();
+        if (previous != null && !previous.hasGeometryOptions(options)) {
+            LOG.info("Previous revision was made with other geometry options, not reusing its geometry");
+            previous = null;
+        }
+        StepIndex index = indexInput(input);
+        long[] hashes;
+        try {
+            hashes = StepHashes.compute(input, index);
+        } catch (IOException ex) {
+            throw new BimServerApiException(ex);
+        }
+        IfcInput modelInput = options.getProductTypes().isEmpty()
+                ? input
+                : selectSubset(input, index, schema, options.getProductTypes());
+        IfcModelInterface model = deserialize(modelInput, schema);
+
+        Map<Integer, Consumer<GeometryInfo>> pending = new LinkedHashMap<>();
+        Map<GeometryData, GeometryData> copies = new IdentityHashMap<>();
+        int reused = 0;
+        for (Map.Entry<Integer, Consumer<GeometryInfo>> entry : exported(geometryTargets(model, schema), glb).entrySet()) {
+            long hash = hashes[index.indexOf(entry.getKey())];
+            Consumer<GeometryInfo> product = entry.getValue();
+            Consumer<GeometryInfo> target = geometryInfo -> {
+                product.accept(geometryInfo);
+                revision.add(hash, geometryInfo);
+            };
+            if (previous != null && previous.contains(hash)) {
+                target.accept(previous.reuse(hash, arena != null, copies));
+                reused++;
+            } else {
+                pending.put(entry.getKey(), target);
+            }
+        }
+        if (arena != null) {
+            for (GeometryData geometryData : copies.values()) {
+                try {
+                    arena.moveOffHeap(geometryData);
+                } catch (IOException ex) {
+                    LOG.error("Unable to move geometry off-heap, keeping it on the heap", ex);
+                }
+            }
+        }
+        LOG.info(String.format("Reusing geometry of %d products, post-processing %d", reused, pending.size()));
+
+        if (pending.isEmpty()) {
+            return model;
+        }
+        // The engines only get the records the changed and added products reference
+        if (options.getWorkerCount() > 0) {
+            generateGeometryOnWorkers(input, index, schema, pending, options, arena);
+        } else {
+            generateGeometry(selectProducts(input, index, schema, pending.keySet()), pending,
+                    MappedRepresentations.instanceKeys(getProducts(model, schema)), options, arena);
+        }
+        return model;
+    }
+
+    private Map<Integer, Consumer<GeometryInfo>> geometryTargets(IfcModelInterface model, Schema schema) {
+        return schema == Schema.IFC2X3TC1
+                ? Ifc2x3InputStreamGeometryGenerator.geometryTargets(model)
+                : Ifc4InputStreamGeometryGenerator.geometryTargets(model);
+    }
+
+    // Products whose geometry arrives through targets are exported as it is assigned
+    private Map<Integer, Consumer<GeometryInfo>> exported(Map<Integer, Consumer<GeometryInfo>> targets, GlbExporter glb) {
+        if (glb == null) {
+            return targets;
+        }
+        Map<Integer, Consumer<GeometryInfo>> exported = new LinkedHashMap<>();
+        for (Map.Entry<Integer, Consumer<GeometryInfo>> target : targets.entrySet()) {
+            int expressId = target.getKey();
+            Consumer<GeometryInfo> product = target.getValue();
+            exported.put(expressId, geometryInfo -> {
+                product.accept(geometryInfo);
+                glb.add(expressId, null, geometryInfo);
+            });
+        }
+        return exported;
+    }
+
+    private void generateGeometry(IfcInput input, Map<Integer, Consumer<GeometryInfo>> targets, Map<Integer, String> instanceKeys,
+            IfcParseOptions options, GeometryArena arena) {
+        try (IfcOpenShellEngine renderEngine = new IfcOpenShellEngine(geomServerPathProvider.getGeomServerExecutablePath())) {
+            renderEngine.init();
+            try (InputStream in = input.newInputStream()) {
+                ExpressIdGeometryGenerator generator = new ExpressIdGeometryGenerator(in, input.length(), renderEngine);
+                generator.setCompactIndices(options.isCompactIndices());
+                generator.setOptimizeVertexCache(options.isOptimizeVertexCache());
+                generator.setQuantitiesOnly(options.isQuantitiesOnly());
+                generator.setGeometryArena(arena);
+                generator.openModel();
+                for (Map.Entry<Integer, Consumer<GeometryInfo>> target : targets.entrySet()) {
+                    target.getValue().accept(generator.generateGeometry(target.getKey(), null, instanceKeys.get(target.getKey())));
+                }
+                generator.logInstancing();
+                generator.closeModel();
+            }
+        } catch (IOException | RenderEngineException ex) {
+            LOG.error("Exception during geometry extraction", ex);
+        }
+    }
+
+    private void generateGeometryOnWorkers(IfcInput input, StepIndex index, Schema schema, Map<Integer, Consumer<GeometryInfo>> targets,
+            IfcParseOptions options, GeometryArena arena) throws BimServerApiException {
+        LOG.info(String.format("Generating geometry for %d products on %d workers", targets.size(), options.getWorkerCount()));
+        List<String> workerCommand = DistributedGeometryGenerator.localWorkerCommand(workerClasspath,
+                geomServerPathProvider.getGeomServerExecutablePath());
+        new DistributedGeometryGenerator(workerCommand, options, deserializersProvider.getPackageMetaData(schema), arena)
+                .generate(input, index, targets);
+    }
 }
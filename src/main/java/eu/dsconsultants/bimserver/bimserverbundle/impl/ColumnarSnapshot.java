@@ -0,0 +1,482 @@
+package eu.dsconsultants.bimserver.bimserverbundle.impl;
+
+import eu.dsconsultants.bimserver.bimserverbundle.GeometryBuffers;
+import eu.dsconsultants.bimserver.bimserverbundle.IfcParseResult;
+import eu.dsconsultants.bimserver.bimserverbundle.IfcSnapshot;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import org.bimserver.emf.IdEObject;
+import org.bimserver.emf.Schema;
+import org.bimserver.models.geometry.Bounds;
+import org.bimserver.models.geometry.Buffer;
+import org.bimserver.models.geometry.GeometryData;
+import org.bimserver.models.geometry.GeometryInfo;
+import org.eclipse.emf.ecore.EStructuralFeature;
+
+/*
+ * Snapshot file of a parse result, little endian and memory-mapped both ways.
+ *
+ * A 128 byte header with counts and section offsets is followed by the type
+ * names, the product columns (express ids, type codes, geometry references,
+ * primitive counts, 22 byte GUIDs, bounds, areas, volumes and transforms), the
+ * geometry columns (index counts and offset/length of the indices, vertices,
+ * normals and colours of every distinct GeometryData) and finally the blob
+ * holding those buffers. Blob payloads do not cross a segment boundary so
+ * every one of them is readable through a single mapping.
+ */
+class ColumnarSnapshot implements IfcSnapshot {
+
+    private static final byte[] MAGIC = "IFCSNAP1".getBytes(StandardCharsets.US_ASCII);
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 128;
+    private static final int GUID_SIZE = 22;
+    private static final long SEGMENT_SIZE = 1L << 30;
+    private static final int BUFFERS_PER_GEOMETRY = 4;
+
+    private final FileChannel channel;
+    private final MappedByteBuffer columns;
+    private final Schema schema;
+    private final String[] types;
+    private final int productCount;
+    private final int geometryCount;
+    private final Layout layout;
+    private final long blobOffset;
+    private final Map<Long, MappedByteBuffer> segments = new HashMap<>();
+    private IntIntMap expressIds;
+    private boolean closed;
+
+    private ColumnarSnapshot(FileChannel channel, MappedByteBuffer columns, Schema schema, String[] types, int productCount,
+            int geometryCount, long blobOffset) {
+        this.channel = channel;
+        this.columns = columns;
+        this.schema = schema;
+        this.types = types;
+        this.productCount = productCount;
+        this.geometryCount = geometryCount;
+        this.layout = new Layout(columns.getLong(32), productCount, geometryCount);
+        this.blobOffset = blobOffset;
+    }
+
+    // Column positions follow from the counts, every column starts 8 byte aligned
+    private static class Layout {
+
+        private final long expressIds;
+        private final long typeCodes;
+        private final long geometries;
+        private final long primitiveCounts;
+        private final long guids;
+        private final long bounds;
+        private final long areas;
+        private final long volumes;
+        private final long transformations;
+        private final long productsEnd;
+        private final long nrIndices;
+        private final long bufferOffsets;
+        private final long bufferLengths;
+        private final long geometriesEnd;
+
+        Layout(long products, int productCount, int geometryCount) {
+            expressIds = products;
+            typeCodes = align(expressIds + 4L * productCount);
+            geometries = align(typeCodes + 4L * productCount);
+            primitiveCounts = align(geometries + 4L * productCount);
+            guids = align(primitiveCounts + 4L * productCount);
+            bounds = align(guids + (long) GUID_SIZE * productCount);
+            areas = bounds + 6 * 8L * productCount;
+            volumes = areas + 8L * productCount;
+            transformations = volumes + 8L * productCount;
+            productsEnd = transformations + 16 * 8L * productCount;
+            nrIndices = productsEnd;
+            bufferOffsets = align(nrIndices + 4L * geometryCount);
+            bufferLengths = bufferOffsets + 8L * BUFFERS_PER_GEOMETRY * geometryCount;
+            geometriesEnd = align(bufferLengths + 4L * BUFFERS_PER_GEOMETRY * geometryCount);
+        }
+    }
+
+    private static long align(long position) {
+        return (position + 7) & ~7L;
+    }
+
+    static void write(IfcParseResult result, Path file) throws IOException {
+        List<? extends IdEObject> products = result.getProducts();
+        GeometryBuffers geometryBuffers = result.getGeometryBuffers();
+        int productCount = products.size();
+        Map<String, Integer> typeCodes = new LinkedHashMap<>();
+        Map<GeometryData, Integer> geometryIndices = new IdentityHashMap<>();
+        List<GeometryData> geometries = new ArrayList<>();
+        GeometryInfo[] geometryInfos = new GeometryInfo[productCount];
+        for (int i = 0; i < productCount; i++) {
+            IdEObject product = products.get(i);
+            typeCodes.putIfAbsent(product.eClass().getName(), typeCodes.size());
+            geometryInfos[i] = (GeometryInfo) eGet(product, "geometry");
+            GeometryData geometryData = geometryInfos[i] == null ? null : geometryInfos[i].getData();
+            if (geometryData != null && !geometryIndices.containsKey(geometryData)) {
+                geometryIndices.put(geometryData, geometries.size());
+                geometries.add(geometryData);
+            }
+        }
+
+        long typesSize = 0;
+        for (String type : typeCodes.keySet()) {
+            typesSize += 4 + ((type.getBytes(StandardCharsets.UTF_8).length + 3) & ~3);
+        }
+        long productsOffset = align(HEADER_SIZE + typesSize);
+        Layout layout = new Layout(productsOffset, productCount, geometries.size());
+        long blobOffset = layout.geometriesEnd;
+        if (blobOffset > Integer.MAX_VALUE) {
+            throw new IOException("Too many products for a snapshot: " + productCount);
+        }
+
+        // Blob placement first, the mapped regions are sized from it
+        ByteBuffer[] payloads = new ByteBuffer[geometries.size() * BUFFERS_PER_GEOMETRY];
+        long[] payloadOffsets = new long[payloads.length];
+        long blobLength = 0;
+        for (int g = 0; g < geometries.size(); g++) {
+            GeometryData geometryData = geometries.get(g);
+            Buffer[] buffers = {geometryData.getIndices(), geometryData.getVertices(), geometryData.getNormals(),
+                geometryData.getColorsQuantized()};
+            for (int b = 0; b < BUFFERS_PER_GEOMETRY; b++) {
+                ByteBuffer data = buffers[b] == null ? null : geometryBuffers.getData(buffers[b]);
+                if (data == null) {
+                    continue;
+                }
+                int length = data.remaining();
+                if (blobLength % SEGMENT_SIZE + length > SEGMENT_SIZE && length <= SEGMENT_SIZE) {
+                    blobLength = (blobLength / SEGMENT_SIZE + 1) * SEGMENT_SIZE;
+                }
+                payloads[g * BUFFERS_PER_GEOMETRY + b] = data;
+                payloadOffsets[g * BUFFERS_PER_GEOMETRY + b] = blobLength;
+                blobLength = align(blobLength + length);
+            }
+        }
+
+        ByteBuffer columns = ByteBuffer.allocate((int) blobOffset).order(ByteOrder.LITTLE_ENDIAN);
+        columns.put(MAGIC);
+        columns.putInt(VERSION).putInt(productCount).putInt(geometries.size()).putInt(typeCodes.size());
+        columns.putLong(HEADER_SIZE).putLong(productsOffset).putLong(layout.nrIndices).putLong(blobOffset).putLong(blobLength);
+        byte[] schemaName = result.getSchema().name().getBytes(StandardCharsets.US_ASCII);
+        columns.putInt(schemaName.length).put(schemaName);
+
+        columns.position(HEADER_SIZE);
+        for (String type : typeCodes.keySet()) {
+            byte[] name = type.getBytes(StandardCharsets.UTF_8);
+            columns.putInt(name.length).put(name);
+            columns.position((columns.position() + 3) & ~3);
+        }
+
+        for (int i = 0; i < productCount; i++) {
+            IdEObject product = products.get(i);
+            GeometryInfo geometryInfo = geometryInfos[i];
+            columns.putInt((int) (layout.expressIds + 4L * i), product.getExpressId());
+            columns.putInt((int) (layout.typeCodes + 4L * i), typeCodes.get(product.eClass().getName()));
+            GeometryData geometryData = geometryInfo == null ? null : geometryInfo.getData();
+            columns.putInt((int) (layout.geometries + 4L * i), geometryData == null ? -1 : geometryIndices.get(geometryData));
+            Object guid = eGet(product, "GlobalId");
+            if (guid != null) {
+                byte[] bytes = guid.toString().getBytes(StandardCharsets.US_ASCII);
+                for (int c = 0; c < Math.min(bytes.length, GUID_SIZE); c++) {
+                    columns.put((int) (layout.guids + (long) GUID_SIZE * i + c), bytes[c]);
+                }
+            }
+            if (geometryInfo == null) {
+                continue;
+            }
+            columns.putInt((int) (layout.primitiveCounts + 4L * i), geometryInfo.getPrimitiveCount());
+            Bounds bounds = geometryInfo.getBounds();
+            if (bounds != null) {
+                int position = (int) (layout.bounds + 48L * i);
+                columns.putDouble(position, bounds.getMin().getX());
+                columns.putDouble(position + 8, bounds.getMin().getY());
+                columns.putDouble(position + 16, bounds.getMin().getZ());
+                columns.putDouble(position + 24, bounds.getMax().getX());
+                columns.putDouble(position + 32, bounds.getMax().getY());
+                columns.putDouble(position + 40, bounds.getMax().getZ());
+            }
+            columns.putDouble((int) (layout.areas + 8L * i), geometryInfo.getArea());
+            columns.putDouble((int) (layout.volumes + 8L * i), geometryInfo.getVolume());
+            if (geometryInfo.getTransformation() != null) {
+                ByteBuffer transformation = ByteBuffer.wrap(geometryInfo.getTransformation()).order(ByteOrder.nativeOrder());
+                for (int m = 0; m < 16; m++) {
+                    columns.putDouble((int) (layout.transformations + 128L * i + 8 * m), transformation.getDouble(m * 8));
+                }
+            }
+        }
+
+        for (int g = 0; g < geometries.size(); g++) {
+            columns.putInt((int) (layout.nrIndices + 4L * g), geometries.get(g).getNrIndices());
+            for (int b = 0; b < BUFFERS_PER_GEOMETRY; b++) {
+                int payload = g * BUFFERS_PER_GEOMETRY + b;
+                columns.putLong((int) (layout.bufferOffsets + 8L * payload), payloadOffsets[payload]);
+                columns.putInt((int) (layout.bufferLengths + 4L * payload), payloads[payload] == null ? -1 : payloads[payload].remaining());
+            }
+        }
+
+        // Written next to the target and moved over it, a snapshot that is
+        // open elsewhere keeps its mapped file and a failed write leaves no
+        // partial one behind. Plain writes rather than a writable mapping
+        // report a full disk as an IOException instead of a SIGBUS.
+        Path directory = file.toAbsolutePath().getParent();
+        // Not createTempFile, the snapshot keeps the usual file permissions
+        Path temporary = Files.createFile(directory.resolve(file.getFileName() + "." + UUID.randomUUID() + ".tmp"));
+        try {
+            try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.WRITE)) {
+                columns.clear();
+                writeFully(channel, columns, 0);
+                for (int p = 0; p < payloads.length; p++) {
+                    if (payloads[p] != null) {
+                        writeFully(channel, payloads[p].duplicate(), blobOffset + payloadOffsets[p]);
+                    }
+                }
+                if (channel.size() < blobOffset + blobLength) {
+                    writeFully(channel, ByteBuffer.allocate(1), blobOffset + blobLength - 1);
+                }
+            }
+            Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException | RuntimeException ex) {
+            Files.deleteIfExists(temporary);
+            throw ex;
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer data, long position) throws IOException {
+        while (data.hasRemaining()) {
+            position += channel.write(data, position);
+        }
+    }
+
+    private static Object eGet(IdEObject object, String feature) {
+        EStructuralFeature structuralFeature = object.eClass().getEStructuralFeature(feature);
+        return structuralFeature == null ? null : object.eGet(structuralFeature);
+    }
+
+    static ColumnarSnapshot open(Path file) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            if (channel.size() < HEADER_SIZE) {
+                throw new IOException("Not a snapshot: " + file);
+            }
+            ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            byte[] magic = new byte[MAGIC.length];
+            header.get(magic);
+            if (!Arrays.equals(magic, MAGIC) || header.getInt() != VERSION) {
+                throw new IOException("Not a snapshot of this version: " + file);
+            }
+            int productCount = header.getInt();
+            int geometryCount = header.getInt();
+            int typeCount = header.getInt();
+            long typesOffset = header.getLong();
+            header.getLong();
+            header.getLong();
+            long blobOffset = header.getLong();
+            long blobLength = header.getLong();
+            byte[] schemaName = new byte[header.getInt()];
+            header.get(schemaName);
+            if (channel.size() < blobOffset + blobLength) {
+                throw new IOException("Truncated snapshot: " + file);
+            }
+
+            MappedByteBuffer columns = channel.map(FileChannel.MapMode.READ_ONLY, 0, blobOffset);
+            columns.order(ByteOrder.LITTLE_ENDIAN);
+            String[] types = new String[typeCount];
+            columns.position((int) typesOffset);
+            for (int t = 0; t < typeCount; t++) {
+                byte[] name = new byte[columns.getInt()];
+                columns.get(name);
+                types[t] = new String(name, StandardCharsets.UTF_8);
+                columns.position((columns.position() + 3) & ~3);
+            }
+            return new ColumnarSnapshot(channel, columns, Schema.valueOf(new String(schemaName, StandardCharsets.US_ASCII)), types,
+                    productCount, geometryCount, blobOffset);
+        } catch (IOException | RuntimeException ex) {
+            channel.close();
+            throw ex;
+        }
+    }
+
+    @Override
+    public Schema getSchema() {
+        return schema;
+    }
+
+    @Override
+    public int getProductCount() {
+        return productCount;
+    }
+
+    @Override
+    public synchronized int indexOf(int expressId) {
+        if (expressIds == null) {
+            expressIds = new IntIntMap(productCount);
+            for (int i = 0; i < productCount; i++) {
+                expressIds.put(getExpressId(i), i);
+            }
+        }
+        return expressIds.get(expressId, -1);
+    }
+
+    @Override
+    public int getExpressId(int product) {
+        return columns.getInt(position(layout.expressIds, 4, product, productCount));
+    }
+
+    @Override
+    public String getType(int product) {
+        return types[columns.getInt(position(layout.typeCodes, 4, product, productCount))];
+    }
+
+    @Override
+    public String getGuid(int product) {
+        int position = position(layout.guids, GUID_SIZE, product, productCount);
+        byte[] guid = new byte[GUID_SIZE];
+        int length = 0;
+        while (length < GUID_SIZE && columns.get(position + length) != 0) {
+            guid[length] = columns.get(position + length);
+            length++;
+        }
+        return length == 0 ? null : new String(guid, 0, length, StandardCharsets.US_ASCII);
+    }
+
+    @Override
+    public int getGeometry(int product) {
+        return columns.getInt(position(layout.geometries, 4, product, productCount));
+    }
+
+    @Override
+    public double[] getBounds(int product) {
+        return getDoubles(position(layout.bounds, 48, product, productCount), 6);
+    }
+
+    @Override
+    public double[] getTransformation(int product) {
+        return getDoubles(position(layout.transformations, 128, product, productCount), 16);
+    }
+
+    @Override
+    public double getArea(int product) {
+        return columns.getDouble(position(layout.areas, 8, product, productCount));
+    }
+
+    @Override
+    public double getVolume(int product) {
+        return columns.getDouble(position(layout.volumes, 8, product, productCount));
+    }
+
+    @Override
+    public int getPrimitiveCount(int product) {
+        return columns.getInt(position(layout.primitiveCounts, 4, product, productCount));
+    }
+
+    @Override
+    public int getGeometryCount() {
+        return geometryCount;
+    }
+
+    @Override
+    public int getNrIndices(int geometry) {
+        return columns.getInt(position(layout.nrIndices, 4, geometry, geometryCount));
+    }
+
+    @Override
+    public ByteBuffer getIndices(int geometry) {
+        return getPayload(geometry, 0);
+    }
+
+    @Override
+    public ByteBuffer getVertices(int geometry) {
+        return getPayload(geometry, 1);
+    }
+
+    @Override
+    public ByteBuffer getNormals(int geometry) {
+        return getPayload(geometry, 2);
+    }
+
+    @Override
+    public ByteBuffer getColors(int geometry) {
+        return getPayload(geometry, 3);
+    }
+
+    private ByteBuffer getPayload(int geometry, int buffer) {
+        position(layout.nrIndices, 4, geometry, geometryCount);
+        int payload = geometry * BUFFERS_PER_GEOMETRY + buffer;
+        int length = columns.getInt((int) (layout.bufferLengths + 4L * payload));
+        if (length < 0) {
+            return null;
+        }
+        long offset = columns.getLong((int) (layout.bufferOffsets + 8L * payload));
+        ByteBuffer view;
+        try {
+            view = segmentFor(offset, length);
+        } catch (IOException ex) {
+            throw new IllegalStateException("Unable to map snapshot geometry", ex);
+        }
+        return view.slice().asReadOnlyBuffer().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private synchronized ByteBuffer segmentFor(long offset, int length) throws IOException {
+        if (closed) {
+            throw new IllegalStateException("Snapshot has been closed");
+        }
+        if (length > SEGMENT_SIZE) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, blobOffset + offset, length);
+        }
+        long segmentIndex = offset / SEGMENT_SIZE;
+        MappedByteBuffer segment = segments.get(segmentIndex);
+        if (segment == null) {
+            long start = segmentIndex * SEGMENT_SIZE;
+            segment = channel.map(FileChannel.MapMode.READ_ONLY, blobOffset + start,
+                    Math.min(SEGMENT_SIZE, channel.size() - blobOffset - start));
+            segments.put(segmentIndex, segment);
+        }
+        ByteBuffer view = segment.duplicate();
+        view.position((int) (offset % SEGMENT_SIZE));
+        view.limit(view.position() + length);
+        return view;
+    }
+
+    private double[] getDoubles(int position, int count) {
+        double[] values = new double[count];
+        for (int i = 0; i < count; i++) {
+            values[i] = columns.getDouble(position + 8 * i);
+        }
+        return values;
+    }
+
+    private static int position(long column, int width, int index, int count) {
+        if (index < 0 || index >= count) {
+            throw new IndexOutOfBoundsException("Index " + index + " out of " + count);
+        }
+        return (int) (column + (long) width * index);
+    }
+
+    // Views handed out earlier stay readable until they are collected
+    @Override
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        segments.clear();
+        try {
+            channel.close();
+        } catch (IOException ex) {
+            throw new IllegalStateException("Unable to close snapshot", ex);
+        }
+    }
+}
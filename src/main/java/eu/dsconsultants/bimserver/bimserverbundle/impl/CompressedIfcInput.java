@@ -0,0 +1,67 @@
+package eu.dsconsultants.bimserver.bimserverbundle.impl;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/*
+ * Compressed input is inflated once into a temporary file, which is then
+ * mapped like an uncompressed model. Nothing of it stays on the heap and the
+ * length is known from the single pass over the stream.
+ */
+class CompressedIfcInput extends IfcInput {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(CompressedIfcInput.class);
+    private final Path inflatedFile;
+    private final MappedIfcInput inflated;
+
+    private CompressedIfcInput(String fileName, Path inflatedFile, MappedIfcInput inflated) {
+        super(fileName);
+        this.inflatedFile = inflatedFile;
+        this.inflated = inflated;
+    }
+
+    static CompressedIfcInput inflate(String fileName, InputStream decompressed) throws IOException {
+        Path file = Files.createTempFile("ifc-input", ".ifc");
+        try {
+            Files.copy(decompressed, file, StandardCopyOption.REPLACE_EXISTING);
+            return new CompressedIfcInput(fileName, file, MappedIfcInput.open(file.toFile()));
+        } catch (IOException | RuntimeException ex) {
+            Files.deleteIfExists(file);
+            throw ex;
+        }
+    }
+
+    Path inflatedFile() {
+        return inflatedFile;
+    }
+
+    @Override
+    long length() {
+        return inflated.length();
+    }
+
+    @Override
+    InputStream newInputStream() throws IOException {
+        return inflated.newInputStream();
+    }
+
+    @Override
+    int read(long position, byte[] b, int off, int len) throws IOException {
+        return inflated.read(position, b, off, len);
+    }
+
+    @Override
+    public void close() {
+        inflated.close();
+        try {
+            Files.deleteIfExists(inflatedFile);
+        } catch (IOException ex) {
+            LOGGER.warn("Unable to remove inflated input " + inflatedFile, ex);
+        }
+    }
+}
@@ -0,0 +1,205 @@
+package eu.dsconsultants.bimserver.bimserverbundle.impl;
+
+import eu.dsconsultants.bimserver.bimserverbundle.BimServerApiException;
+import eu.dsconsultants.bimserver.bimserverbundle.IfcParseOptions;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import org.bimserver.emf.PackageMetaData;
+import org.bimserver.models.geometry.GeometryData;
+import org.bimserver.models.geometry.GeometryInfo;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/*
+ * Coordinator side of sharded geometry generation. The products are split
+ * round robin and every worker JVM gets only the StepSubset closure of its
+ * shard, so each engine loads and tessellates its own part of the model. The
+ * returned geometry is deduplicated and assigned on the calling thread. When
+ * a worker fails or the workers run out of time all of them are killed, which
+ * ends their clients' reads.
+ */
+class DistributedGeometryGenerator {
+
+    private static final Logger LOG = LoggerFactory.getLogger(DistributedGeometryGenerator.class);
+    private final List<String> workerCommand;
+    private final IfcParseOptions options;
+    private final PackageMetaData packageMetaData;
+    private final GeometryArena arena;
+    private final Map<Integer, GeometryData> hashes = new HashMap<>();
+    private final Set<Process> processes = ConcurrentHashMap.newKeySet();
+    private volatile boolean killed = false;
+
+    DistributedGeometryGenerator(List<String> workerCommand, IfcParseOptions options, PackageMetaData packageMetaData,
+            GeometryArena arena) {
+        this.workerCommand = workerCommand;
+        this.options = options;
+        this.packageMetaData = packageMetaData;
+        this.arena = arena;
+    }
+
+    static List<String> localWorkerCommand(String classpath, String geomServerExecutable) {
+        String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+        return Arrays.asList(java, "-cp", classpath, GeometryWorker.class.getName(), geomServerExecutable);
+    }
+
+    void generate(IfcInput input, StepIndex index, Map<Integer, Consumer<GeometryInfo>> targets) throws BimServerApiException {
+        List<Integer> expressIds = new ArrayList<>(targets.keySet());
+        int workerCount = Math.max(1, Math.min(options.getWorkerCount(), expressIds.size()));
+        int[][] shards = new int[workerCount][];
+        for (int w = 0; w < workerCount; w++) {
+            shards[w] = new int[(expressIds.size() - w + workerCount - 1) / workerCount];
+        }
+        for (int i = 0; i < expressIds.size(); i++) {
+            shards[i % workerCount][i / workerCount] = expressIds.get(i);
+        }
+
+        AtomicInteger threadCounter = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(workerCount, runnable -> {
+            Thread thread = new Thread(runnable, "GeometryWorker-client-" + threadCounter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(options.getWorkerTimeoutSeconds());
+        boolean completed = false;
+        try {
+            List<Future<Map<Integer, GeometryInfo>>> results = new ArrayList<>();
+            for (int[] shard : shards) {
+                results.add(executor.submit(() -> runWorker(input, index, shard)));
+            }
+            for (Future<Map<Integer, GeometryInfo>> result : results) {
+                for (Map.Entry<Integer, GeometryInfo> entry : result.get(deadline - System.nanoTime(), TimeUnit.NANOSECONDS).entrySet()) {
+                    targets.get(entry.getKey()).accept(deduplicate(entry.getValue()));
+                }
+            }
+            completed = true;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new BimServerApiException("Interrupted while waiting for geometry workers", ex);
+        } catch (ExecutionException ex) {
+            throw new BimServerApiException("Geometry worker failed for " + input.getFileName(), ex.getCause());
+        } catch (TimeoutException ex) {
+            throw new BimServerApiException(String.format("Geometry workers did not finish %s within %d seconds",
+                    input.getFileName(), options.getWorkerTimeoutSeconds()), ex);
+        } finally {
+            executor.shutdownNow();
+            if (!completed) {
+                // Closes the pipes the clients are blocked on
+                killed = true;
+                for (Process process : processes) {
+                    process.destroyForcibly();
+                }
+            }
+            // The clients stream the input, they have to be done with it
+            // before the caller closes and unmaps it
+            awaitClients(executor);
+        }
+    }
+
+    private static void awaitClients(ExecutorService executor) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                if (executor.awaitTermination(1, TimeUnit.MINUTES)) {
+                    break;
+                }
+                LOG.warn("Still waiting for geometry worker clients to finish");
+            } catch (InterruptedException ex) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private Map<Integer, GeometryInfo> runWorker(IfcInput input, StepIndex index, int[] shard) throws IOException {
+        SubsetIfcInput shardInput = SubsetIfcInput.select(input, index, StepSubset.select(input, index, packageMetaData, shard));
+        LOG.debug(String.format("Geometry worker gets %d of %d entities for %d products", shardInput.size(), index.size(), shard.length));
+        return runWorker(shardInput, shard);
+    }
+
+    private Map<Integer, GeometryInfo> runWorker(IfcInput input, int[] shard) throws IOException {
+        Process process = new ProcessBuilder(workerCommand).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+        processes.add(process);
+        if (killed) {
+            process.destroyForcibly();
+        }
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(process.getOutputStream(), 64 * 1024));
+                DataInputStream in = new DataInputStream(new BufferedInputStream(process.getInputStream(), 64 * 1024))) {
+            out.writeBoolean(options.isCompactIndices());
+            out.writeBoolean(options.isOptimizeVertexCache());
+            out.writeBoolean(options.isQuantitiesOnly());
+            out.writeLong(input.length());
+            byte[] buffer = new byte[64 * 1024];
+            try (InputStream model = input.newInputStream()) {
+                for (int n = model.read(buffer); n != -1; n = model.read(buffer)) {
+                    out.write(buffer, 0, n);
+                }
+            }
+            out.writeInt(shard.length);
+            for (int expressId : shard) {
+                out.writeInt(expressId);
+            }
+            out.flush();
+
+            Map<Integer, GeometryInfo> geometry = new HashMap<>();
+            for (int expressId = in.readInt(); expressId != GeometryWorker.END_OF_SHARD; expressId = in.readInt()) {
+                if (in.readBoolean()) {
+                    geometry.put(expressId, GeometryCodec.read(in));
+                }
+            }
+            LOG.debug(String.format("Geometry worker returned %d of %d products", geometry.size(), shard.length));
+            return geometry;
+        } finally {
+            processes.remove(process);
+            if (killed) {
+                GeomServerProcessReaper.discard(process);
+            } else {
+                GeomServerProcessReaper.retire(process, () -> {
+                });
+            }
+        }
+    }
+
+    private GeometryInfo deduplicate(GeometryInfo geometryInfo) {
+        GeometryData geometryData = geometryInfo.getData();
+        if (geometryData == null) {
+            return geometryInfo;
+        }
+        int hash = ExpressIdGeometryGenerator.hash(geometryData);
+        GeometryData existing = hashes.get(hash);
+        if (existing != null) {
+            geometryInfo.setData(existing);
+        } else {
+            hashes.put(hash, geometryData);
+            if (arena != null) {
+                try {
+                    arena.moveOffHeap(geometryData);
+                } catch (IOException ex) {
+                    LOG.error("Unable to move geometry off-heap, keeping it on the heap", ex);
+                }
+            }
+        }
+        return geometryInfo;
+    }
+}
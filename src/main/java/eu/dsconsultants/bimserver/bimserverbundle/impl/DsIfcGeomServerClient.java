@@ -1,6 +1,5 @@
 package eu.dsconsultants.bimserver.bimserverbundle.impl;
 
-import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
@@ -8,13 +7,20 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.attribute.PosixFilePermission;
 import java.util.Collections;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.zip.ZipInputStream;
 
 import org.apache.commons.io.FileUtils;
@@ -38,11 +44,21 @@ public class DsIfcGeomServerClient implements AutoCloseable {
     private static final Logger LOGGER = LoggerFactory.getLogger(DsIfcGeomServerClient.class);
     private static final String IFCOPENSHELL_BUILDS_DESCRIPTOR
             = "https://github.com/ds-consultants/IfcOpenShell/releases/download/v0.6.0-5526f42/v0.6.0.json";
+    private static final AtomicInteger PROCESS_COUNTER = new AtomicInteger();
 
     private Process process = null;
+    private String processName = null;
     private LittleEndianDataInputStream dis = null;
     private LittleEndianDataOutputStream dos = null;
     private boolean hasMore = false;
+    private final MessageBuffer writeBuffer = new MessageBuffer();
+    private final Entity entityMessage = new Entity();
+    private final More moreMessage = new More();
+    private int readAhead = 0;
+    private Pipeline pipeline = null;
+    private boolean quantitiesOnly = false;
+    // What the engine was last told, it starts with normals and default materials
+    private boolean engineQuantitiesOnly = false;
 
     private volatile boolean running = true;
 
@@ -207,14 +223,25 @@ public class DsIfcGeomServerClient implements AutoCloseable {
         try {
             this.executableFilename = executableFilename;
 
+            ParserEvents.EngineProcessEvent event = null;
+            if (ParserEvents.ENABLED) {
+                event = new ParserEvents.EngineProcessEvent();
+                event.executable = executableFilename;
+                event.action = "spawn";
+                event.begin();
+            }
             process = Runtime.getRuntime().exec(executableFilename);
+            processName = "IfcGeomServer-" + PROCESS_COUNTER.incrementAndGet();
+            if (event != null) {
+                event.commit();
+            }
+            EngineIoThreads.drainErrors(process, processName);
             dos = new LittleEndianDataOutputStream(process.getOutputStream());
             dis = new LittleEndianDataInputStream(process.getInputStream());
 
             if (dis.readInt() != HELLO) {
-                LOGGER.error("Invalid welcome message received");
                 terminate();
-                return;
+                throw new RenderEngineException("Invalid welcome message received");
             }
             Hello h = new Hello();
             h.read(dis);
@@ -229,21 +256,81 @@ public class DsIfcGeomServerClient implements AutoCloseable {
         }
     }
 
+    // Number of decoded entities a reader thread may hold ahead of getNext(),
+    // 0 keeps the plain request/response exchange on the calling thread. The
+    // reader still has only one GET/NEXT exchange with the engine in flight,
+    // so this overlaps decoding and the caller's work with tessellation but
+    // does not queue requests in the engine. Takes effect with the next
+    // loaded model.
+    public void setReadAhead(int readAhead) {
+        if (readAhead < 0) {
+            throw new IllegalArgumentException("Read ahead must not be negative");
+        }
+        this.readAhead = readAhead;
+    }
+
+    public int getReadAhead() {
+        return readAhead;
+    }
+
+    // For callers that only need bounds and quantities: the engine generates
+    // no normals and no default materials, and the colours it still sends are
+    // dropped while reading. Takes effect with the next loaded model.
+    public void setQuantitiesOnly(boolean quantitiesOnly) {
+        this.quantitiesOnly = quantitiesOnly;
+    }
+
+    public boolean isQuantitiesOnly() {
+        return quantitiesOnly;
+    }
+
+    // Settings apply to the models loaded after them
+    private void writeSettings() throws IOException {
+        if (quantitiesOnly != engineQuantitiesOnly) {
+            new Setting(Setting.SettingId.NO_NORMALS, quantitiesOnly).write(dos, writeBuffer);
+            new Setting(Setting.SettingId.APPLY_DEFAULT_MATERIALS, !quantitiesOnly).write(dos, writeBuffer);
+            engineQuantitiesOnly = quantitiesOnly;
+        }
+        entityMessage.quantitiesOnly = quantitiesOnly;
+    }
+
     public void loadModel(InputStream inputStream) throws RenderEngineException {
+        finishPipeline();
         IfcModel m = new IfcModel(inputStream);
+        ParserEvents.ModelUploadEvent event = null;
+        if (ParserEvents.ENABLED) {
+            event = new ParserEvents.ModelUploadEvent();
+            event.bytes = -1;
+            event.begin();
+        }
         try {
-            m.write(dos);
+            writeSettings();
+            m.write(dos, writeBuffer);
             askForMore();
+            if (event != null) {
+                event.commit();
+            }
         } catch (IOException e) {
             close();
         }
     }
 
     public void loadModel(InputStream inputStream, long length) throws RenderEngineException {
+        finishPipeline();
         IfcModel m = new IfcModel(inputStream, length);
+        ParserEvents.ModelUploadEvent event = null;
+        if (ParserEvents.ENABLED) {
+            event = new ParserEvents.ModelUploadEvent();
+            event.bytes = length;
+            event.begin();
+        }
         try {
-            m.write(dos);
+            writeSettings();
+            m.write(dos, writeBuffer);
             askForMore();
+            if (event != null) {
+                event.commit();
+            }
         } catch (IOException e) {
             close();
         }
@@ -262,6 +349,8 @@ public class DsIfcGeomServerClient implements AutoCloseable {
     private static final int SETTING = DEFLECTION + 1;
 
     private static String VERSION = "IfcOpenShell-0.6.0a1-0";
+    private static final Get GET_COMMAND = new Get();
+    private static final Next NEXT_COMMAND = new Next();
 
     abstract static class Command {
 
@@ -278,17 +367,25 @@ public class DsIfcGeomServerClient implements AutoCloseable {
         }
 
         void write(LittleEndianDataOutputStream s) throws IOException {
+            write(s, new MessageBuffer());
+        }
+
+        void write(LittleEndianDataOutputStream s, MessageBuffer buffer) throws IOException {
             s.writeInt(iden);
-            ByteArrayOutputStream oss = new ByteArrayOutputStream();
-            write_contents(new LittleEndianDataOutputStream(oss));
+            buffer.reset();
+            write_contents(buffer.out);
 
             // Comment Ruben: It seems redundant to send the size twice (when sending a String, LittleEndianness should not change the size I think)
-            // Also storing the intermediate results in another buffer can be avoided I think, why not send the original s variable to write_contents?
-            s.writeInt(oss.size());
-            s.write(oss.toByteArray());
+            s.writeInt(buffer.size());
+            s.write(buffer.array(), 0, buffer.size());
             s.flush();
         }
 
+        // Commands without contents always encode to the same 8 bytes
+        static byte[] encodeEmpty(int iden) {
+            return ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN).putInt(iden).putInt(0).array();
+        }
+
         Command(int iden) {
             this.iden = iden;
         }
@@ -359,6 +456,19 @@ public class DsIfcGeomServerClient implements AutoCloseable {
         }
     }
 
+    static class MessageBuffer extends ByteArrayOutputStream {
+
+        private final LittleEndianDataOutputStream out = new LittleEndianDataOutputStream(this);
+
+        MessageBuffer() {
+            super(256);
+        }
+
+        byte[] array() {
+            return buf;
+        }
+    }
+
     static class Hello extends Command {
 
         private String string;
@@ -426,6 +536,19 @@ public class DsIfcGeomServerClient implements AutoCloseable {
             throw new UnsupportedOperationException();
         }
 
+        @Override
+        void write(LittleEndianDataOutputStream s, MessageBuffer buffer) throws IOException {
+            if (length == -1) {
+                // The size is only known after buffering the whole model, keep that out of the reusable buffer
+                super.write(s, new MessageBuffer());
+                return;
+            }
+            s.writeInt(iden);
+            s.writeInt(4 + (int) length + (4 - (int) (length % 4)) % 4);
+            writeStringBinary(s, ifcInputStream, (int) length);
+            s.flush();
+        }
+
         @Override
         void write_contents(LittleEndianDataOutputStream s) throws IOException {
             if (length == -1) {
@@ -441,10 +564,18 @@ public class DsIfcGeomServerClient implements AutoCloseable {
 
     static class Get extends Command {
 
+        private static final byte[] MESSAGE = encodeEmpty(GET);
+
         Get() {
             super(GET);
         }
 
+        @Override
+        void write(LittleEndianDataOutputStream s, MessageBuffer buffer) throws IOException {
+            s.write(MESSAGE);
+            s.flush();
+        }
+
         @Override
         void read_contents(LittleEndianDataInputStream s) throws IOException {
             throw new UnsupportedOperationException();
@@ -457,10 +588,18 @@ public class DsIfcGeomServerClient implements AutoCloseable {
 
     static class Next extends Command {
 
+        private static final byte[] MESSAGE = encodeEmpty(NEXT);
+
         Next() {
             super(NEXT);
         }
 
+        @Override
+        void write(LittleEndianDataOutputStream s, MessageBuffer buffer) throws IOException {
+            s.write(MESSAGE);
+            s.flush();
+        }
+
         @Override
         void read_contents(LittleEndianDataInputStream s) throws IOException {
             throw new UnsupportedOperationException();
@@ -473,10 +612,18 @@ public class DsIfcGeomServerClient implements AutoCloseable {
 
     static class Bye extends Command {
 
+        private static final byte[] MESSAGE = encodeEmpty(BYE);
+
         Bye() {
             super(BYE);
         }
 
+        @Override
+        void write(LittleEndianDataOutputStream s, MessageBuffer buffer) throws IOException {
+            s.write(MESSAGE);
+            s.flush();
+        }
+
         @Override
         void read_contents(LittleEndianDataInputStream s) throws IOException {
         }
@@ -488,7 +635,15 @@ public class DsIfcGeomServerClient implements AutoCloseable {
 
     static class Entity extends Command {
 
+        private static final int INITIAL_SIZE = 64 * 1024;
+        // A buffer grown past this for one huge entity is dropped afterwards
+        // instead of being held for the rest of the model
+        private static final int RETAINED_SIZE = 1024 * 1024;
+
         private IfcGeomServerClientEntity entity;
+        private boolean quantitiesOnly;
+        private byte[] message = new byte[INITIAL_SIZE];
+        private ByteBuffer view = ByteBuffer.wrap(message).order(ByteOrder.LITTLE_ENDIAN);
 
         Entity() {
             super(ENTITY);
@@ -496,34 +651,77 @@ public class DsIfcGeomServerClient implements AutoCloseable {
 
         @Override
         void read_contents(LittleEndianDataInputStream s0) throws IOException {
-            byte[] message = new byte[len];
+            if (message.length < len) {
+                message = new byte[Math.max(len, message.length * 2)];
+                view = ByteBuffer.wrap(message).order(ByteOrder.LITTLE_ENDIAN);
+            }
             s0.readFully(message, 0, len);
-            ByteArrayInputStream bis = new ByteArrayInputStream(message);
-            LittleEndianDataInputStream s = new LittleEndianDataInputStream(bis);
-            entity = new IfcGeomServerClientEntity(
-                    s.readInt(),
-                    readString(s),
-                    readString(s),
-                    readString(s),
-                    s.readInt(),
-                    readDoubleArray(s),
-                    s.readInt(),
-                    readFloatArray(s),
-                    readFloatArray(s),
-                    readIntArray(s),
-                    readFloatArray(s),
-                    readIntArray(s),
-                    readRemainder(bis)
-            );
-        }
-
-        private String readRemainder(ByteArrayInputStream bis) {
-            if (bis.available() == 0) {
-                return null;
-            }
-            byte[] remainder = new byte[bis.available()];
-            bis.read(remainder, 0, remainder.length);
-            return new String(remainder);
+            view.clear();
+            view.limit(len);
+            int id = view.getInt();
+            // Only the positions of the strings are recorded, they are decoded when asked for
+            int guidStart = view.position() + 4;
+            int guidLength = skipString(view);
+            int nameStart = view.position() + 4;
+            int nameLength = skipString(view);
+            int typeStart = view.position() + 4;
+            int typeLength = skipString(view);
+            int parentId = view.getInt();
+            double[] matrix = readDoubleArray(view);
+            int repId = view.getInt();
+            float[] positions = readFloatArray(view);
+            float[] normals = quantitiesOnly ? skipArray(view, new float[0]) : readFloatArray(view);
+            int[] indices = readIntArray(view);
+            float[] colors = quantitiesOnly ? skipArray(view, new float[0]) : readFloatArray(view);
+            int[] materialIndices = quantitiesOnly ? skipArray(view, new int[0]) : readIntArray(view);
+            int remainderLength = view.remaining();
+            byte[] text = new byte[guidLength + nameLength + typeLength + remainderLength];
+            System.arraycopy(message, guidStart, text, 0, guidLength);
+            System.arraycopy(message, nameStart, text, guidLength, nameLength);
+            System.arraycopy(message, typeStart, text, guidLength + nameLength, typeLength);
+            System.arraycopy(message, view.position(), text, guidLength + nameLength + typeLength, remainderLength);
+            entity = new LazyTextEntity(id, parentId, matrix, repId, positions, normals, indices, colors, materialIndices,
+                    text, guidLength, nameLength, typeLength, remainderLength > 0);
+            if (message.length > RETAINED_SIZE) {
+                message = new byte[INITIAL_SIZE];
+                view = ByteBuffer.wrap(message).order(ByteOrder.LITTLE_ENDIAN);
+            }
+        }
+
+        private int skipString(ByteBuffer s) {
+            int length = s.getInt();
+            s.position(s.position() + length + (4 - length % 4) % 4);
+            return length;
+        }
+
+        private <T> T skipArray(ByteBuffer s, T empty) {
+            int length = s.getInt();
+            s.position(s.position() + length);
+            return empty;
+        }
+
+        private float[] readFloatArray(ByteBuffer s) {
+            float[] fs = new float[s.getInt() / 4];
+            for (int i = 0; i < fs.length; ++i) {
+                fs[i] = s.getFloat();
+            }
+            return fs;
+        }
+
+        private double[] readDoubleArray(ByteBuffer s) {
+            double[] ds = new double[s.getInt() / 8];
+            for (int i = 0; i < ds.length; ++i) {
+                ds[i] = s.getDouble();
+            }
+            return ds;
+        }
+
+        private int[] readIntArray(ByteBuffer s) {
+            int[] is = new int[s.getInt() / 4];
+            for (int i = 0; i < is.length; ++i) {
+                is[i] = s.getInt();
+            }
+            return is;
         }
 
         public IfcGeomServerClientEntity getEntity() {
@@ -536,12 +734,75 @@ public class DsIfcGeomServerClient implements AutoCloseable {
         }
     }
 
+    static class LazyTextEntity extends IfcGeomServerClientEntity {
+
+        private final byte[] text;
+        private final int nameStart;
+        private final int typeStart;
+        private final int remainderStart;
+        private final boolean hasRemainder;
+        private String guid;
+        private String name;
+        private String type;
+        private String remainder;
+
+        LazyTextEntity(int id, int parentId, double[] matrix, int repId, float[] positions, float[] normals, int[] indices,
+                float[] colors, int[] materialIndices, byte[] text, int guidLength, int nameLength, int typeLength, boolean hasRemainder) {
+            super(id, null, null, null, parentId, matrix, repId, positions, normals, indices, colors, materialIndices, null);
+            this.text = text;
+            this.nameStart = guidLength;
+            this.typeStart = guidLength + nameLength;
+            this.remainderStart = guidLength + nameLength + typeLength;
+            this.hasRemainder = hasRemainder;
+        }
+
+        @Override
+        public String getGuid() {
+            if (guid == null) {
+                guid = new String(text, 0, nameStart, StandardCharsets.UTF_8);
+            }
+            return guid;
+        }
+
+        @Override
+        public String getName() {
+            if (name == null) {
+                name = new String(text, nameStart, typeStart - nameStart, StandardCharsets.UTF_8);
+            }
+            return name;
+        }
+
+        @Override
+        public String getType() {
+            if (type == null) {
+                type = new String(text, typeStart, remainderStart - typeStart, StandardCharsets.UTF_8);
+            }
+            return type;
+        }
+
+        @Override
+        public String getMessageRemainder() {
+            if (remainder == null && hasRemainder) {
+                remainder = new String(text, remainderStart, text.length - remainderStart, StandardCharsets.UTF_8);
+            }
+            return remainder;
+        }
+    }
+
     static class GetLog extends Command {
 
+        private static final byte[] MESSAGE = encodeEmpty(GET_LOG);
+
         GetLog() {
             super(GET_LOG);
         }
 
+        @Override
+        void write(LittleEndianDataOutputStream s, MessageBuffer buffer) throws IOException {
+            s.write(MESSAGE);
+            s.flush();
+        }
+
         @Override
         void read_contents(LittleEndianDataInputStream s) throws IOException {
             throw new UnsupportedOperationException();
@@ -601,6 +862,8 @@ public class DsIfcGeomServerClient implements AutoCloseable {
         private final int value;
 
         public enum SettingId {
+            APPLY_DEFAULT_MATERIALS(1 << 8),
+            NO_NORMALS(1 << 11),
             APPLY_LAYERSETS(1 << 17);
 
             private final int id;
@@ -632,12 +895,68 @@ public class DsIfcGeomServerClient implements AutoCloseable {
         }
     }
 
-    private void terminate() throws RenderEngineException {
+    private void finishPipeline() throws RenderEngineException {
+        if (pipeline != null) {
+            boolean intact = pipeline.finish();
+            pipeline = null;
+            if (!intact) {
+                terminate(false);
+                throw new RenderEngineException("IfcGeomServer process ended with the previous model");
+            }
+        }
+    }
+
+    private void terminate() {
+        boolean intact = pipeline == null || pipeline.finish();
+        pipeline = null;
+        terminate(intact);
+    }
+
+    private void terminate(boolean intact) {
         hasMore = false;
         if (process == null) {
             return;
         }
+        if (!intact) {
+            // Nothing more can be exchanged, the log is lost with the process
+            if (ParserEvents.ENABLED) {
+                ParserEvents.EngineProcessEvent event = new ParserEvents.EngineProcessEvent();
+                event.executable = executableFilename;
+                event.action = "discard";
+                event.commit();
+            }
+            GeomServerProcessReaper.discard(process);
+            dis = null;
+            dos = null;
+            process = null;
+            return;
+        }
 
+        // Collecting the log and reaping the process happens off the caller's
+        // thread, the results have all been read at this point
+        final LittleEndianDataInputStream retiredDis = dis;
+        final LittleEndianDataOutputStream retiredDos = dos;
+        final String retiredExecutable = executableFilename;
+        GeomServerProcessReaper.retire(process, () -> {
+            ParserEvents.EngineProcessEvent event = null;
+            if (ParserEvents.ENABLED) {
+                event = new ParserEvents.EngineProcessEvent();
+                event.executable = retiredExecutable;
+                event.action = "terminate";
+                event.begin();
+            }
+            sayGoodbye(retiredDis, retiredDos);
+            if (event != null) {
+                event.commit();
+            }
+        });
+
+        dis = null;
+        dos = null;
+        process = null;
+    }
+
+    private static void sayGoodbye(LittleEndianDataInputStream dis, LittleEndianDataOutputStream dos) {
         // Try and get the conversion log and say goodbye to the executable
         try {
             GetLog gl = new GetLog();
@@ -667,37 +986,6 @@ public class DsIfcGeomServerClient implements AutoCloseable {
         } catch (RuntimeException | IOException e) {
             LOGGER.warn("Exception during process termination", e);
         }
-
-        try {
-            // Give the executable some time to terminate by itself or kill
-            // it after 2 seconds have passed
-            for (int n = 0;;) {
-                try {
-                    if (process.exitValue() != 0) {
-                        // LOGGER.error(String.format("Exited with non-zero exit code: %d", process.exitValue()));
-                        throw new RenderEngineException(String.format("Exited with non-zero exit code: %d", process.exitValue()));
-                    }
-                    break;
-                } catch (IllegalThreadStateException e) {
-                    if (n++ == 20) {
-                        process.destroy();
-                        LOGGER.error("Forcefully terminated IfcOpenShell process");
-                        break;
-                    }
-                }
-                try {
-                    Thread.sleep(100);
-                } catch (InterruptedException e) {
-                    LOGGER.trace("Exception during invoking Thread.sleep()", e);
-                }
-            }
-        } finally {
-            process.destroyForcibly();
-        }
-
-        dis = null;
-        dos = null;
-        process = null;
     }
 
     private void askForMore() throws IOException {
@@ -707,36 +995,166 @@ public class DsIfcGeomServerClient implements AutoCloseable {
             throw new IOException();
         }
 
-        More mr = new More();
-        mr.read(dis);
+        moreMessage.read(dis);
 
-        hasMore = mr.hasMore();
+        hasMore = moreMessage.hasMore();
     }
 
     public IfcGeomServerClientEntity getNext() throws RenderEngineException {
+        if (readAhead > 0) {
+            return getNextPipelined();
+        }
         try {
-            Get g = new Get();
-            g.write(dos);
+            GET_COMMAND.write(dos, writeBuffer);
 
             if (dis.readInt() != ENTITY) {
                 LOGGER.error("Invalid command sequence encountered");
                 throw new IOException();
             }
-            Entity e = new Entity();
-            e.read(dis);
+            entityMessage.read(dis);
 
-            Next n = new Next();
-            n.write(dos);
+            NEXT_COMMAND.write(dos, writeBuffer);
 
             askForMore();
 
-            return e.getEntity();
+            return entityMessage.getEntity();
+        } catch (IOException e) {
+            terminate();
+            return null;
+        }
+    }
+
+    private IfcGeomServerClientEntity getNextPipelined() {
+        try {
+            if (pipeline == null) {
+                pipeline = new Pipeline(dis, dos, readAhead, processName, engineQuantitiesOnly);
+            }
+            Response response = pipeline.next();
+            hasMore = response.more;
+            return response.entity;
         } catch (IOException e) {
             terminate();
             return null;
         }
     }
 
+    private static class Response {
+
+        private final IfcGeomServerClientEntity entity;
+        private final boolean more;
+        private final IOException error;
+
+        Response(IfcGeomServerClientEntity entity, boolean more, IOException error) {
+            this.entity = entity;
+            this.more = more;
+            this.error = error;
+        }
+    }
+
+    /*
+     * Decodes up to readAhead entities ahead of getNext() on a reader thread, so
+     * the engine tessellates the next entity while the caller processes the
+     * previous one. The engine does not announce its entity count and exits
+     * on a GET past the last entity, so the reader only sends the next
+     * GET/NEXT pair after a MORE reply said there is one. Stopping happens
+     * between exchanges, which leaves the streams usable for the log and the
+     * goodbye.
+     */
+    private static class Pipeline {
+
+        private final LittleEndianDataInputStream in;
+        private final LittleEndianDataOutputStream out;
+        private final BlockingQueue<Response> responses;
+        private final Thread reader;
+        private final boolean quantitiesOnly;
+        private volatile boolean stopped = false;
+        private volatile boolean failed = false;
+        private boolean ended = false;
+
+        Pipeline(LittleEndianDataInputStream in, LittleEndianDataOutputStream out, int readAhead, String processName,
+                boolean quantitiesOnly) {
+            this.in = in;
+            this.out = out;
+            this.quantitiesOnly = quantitiesOnly;
+            this.responses = new ArrayBlockingQueue<>(readAhead);
+            reader = EngineIoThreads.start(processName + "-reader", this::read);
+        }
+
+        Response next() throws IOException {
+            if (ended) {
+                throw new IOException("No more entities");
+            }
+            Response response;
+            try {
+                response = responses.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+            if (response.error != null) {
+                ended = true;
+                throw response.error;
+            }
+            if (!response.more) {
+                ended = true;
+            }
+            return response;
+        }
+
+        private void read() {
+            Entity entityMessage = new Entity();
+            entityMessage.quantitiesOnly = quantitiesOnly;
+            More moreMessage = new More();
+            try {
+                while (!stopped) {
+                    out.write(Get.MESSAGE);
+                    out.write(Next.MESSAGE);
+                    out.flush();
+                    if (in.readInt() != ENTITY) {
+                        throw new IOException("Invalid command sequence encountered");
+                    }
+                    entityMessage.read(in);
+                    if (in.readInt() != MORE) {
+                        throw new IOException("Invalid command sequence encountered");
+                    }
+                    moreMessage.read(in);
+                    responses.put(new Response(entityMessage.getEntity(), moreMessage.hasMore(), null));
+                    if (!moreMessage.hasMore()) {
+                        return;
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                failed = true;
+                IOException error = e instanceof IOException ? (IOException) e : new IOException(e);
+                // finish() keeps emptying the queue when the caller is gone
+                try {
+                    responses.put(new Response(null, false, error));
+                } catch (InterruptedException ignored) {
+                    Thread.currentThread().interrupt();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        // Waits for the exchange in progress, true when the streams can be used
+        // for further commands afterwards. The reader is not interrupted, it
+        // stops between exchanges so the message framing stays intact.
+        boolean finish() {
+            stopped = true;
+            try {
+                while (reader.isAlive()) {
+                    responses.clear();
+                    reader.join(10);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+            return !failed;
+        }
+    }
+
     public boolean isRunning() {
         return running;
     }
@@ -0,0 +1,45 @@
+package eu.dsconsultants.bimserver.bimserverbundle.impl;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/*
+ * Threads that service engine processes, one reader and one stderr drainer per
+ * process. They are platform daemon threads: they spend their life blocked in
+ * pipe reads, which would pin a virtual thread to its carrier anyway, and they
+ * must not keep the JVM alive.
+ */
+class EngineIoThreads {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(EngineIoThreads.class);
+
+    private EngineIoThreads() {
+    }
+
+    static Thread start(String name, Runnable task) {
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    // Keeps the process from stalling on a full stderr pipe, the lines end up
+    // in the debug log
+    static Thread drainErrors(Process process, String name) {
+        InputStream errors = process.getErrorStream();
+        return start(name + "-stderr", () -> {
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(errors, StandardCharsets.UTF_8))) {
+                for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                    LOGGER.debug(name + ": " + line);
+                }
+            } catch (IOException e) {
+                LOGGER.trace("stderr of " + name + " closed", e);
+            }
+        });
+    }
+}
@@ -0,0 +1,131 @@
+package eu.dsconsultants.bimserver.bimserverbundle.impl;
+
+import eu.dsconsultants.bimserver.bimserverbundle.BimServerApiException;
+import eu.dsconsultants.bimserver.bimserverbundle.IfcEngineSession;
+import eu.dsconsultants.bimserver.bimserverbundle.IfcParseOptions;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.bimserver.emf.Schema;
+import org.bimserver.models.geometry.GeometryInfo;
+import org.bimserver.plugins.renderengine.RenderEngine;
+import org.bimserver.plugins.renderengine.RenderEngineException;
+import org.ifcopenshell.IfcOpenShellEngine;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+class EngineSession implements IfcEngineSession {
+
+    private static final Logger LOG = LoggerFactory.getLogger(EngineSession.class);
+    private final Schema schema;
+    private final String fileName;
+    private final RenderEngine renderEngine;
+    private final ExpressIdGeometryGenerator generator;
+    private final ParseAdmissionController.Reservation reservation;
+    private final EngineSessions owner;
+    private long lastUsed = System.nanoTime();
+    private boolean closed;
+
+    private EngineSession(Schema schema, String fileName, RenderEngine renderEngine, ExpressIdGeometryGenerator generator,
+            ParseAdmissionController.Reservation reservation, EngineSessions owner) {
+        this.schema = schema;
+        this.fileName = fileName;
+        this.renderEngine = renderEngine;
+        this.generator = generator;
+        this.reservation = reservation;
+        this.owner = owner;
+    }
+
+    static EngineSession open(IfcInput input, Schema schema, IfcParseOptions options, String executablePath,
+            ParseAdmissionController.Reservation reservation, EngineSessions owner) throws BimServerApiException {
+        RenderEngine renderEngine = null;
+        try {
+            renderEngine = new IfcOpenShellEngine(executablePath);
+            renderEngine.init();
+            try (InputStream in = input.newInputStream()) {
+                ExpressIdGeometryGenerator generator = new ExpressIdGeometryGenerator(in, input.length(), renderEngine);
+                generator.setCompactIndices(options.isCompactIndices());
+                generator.setOptimizeVertexCache(options.isOptimizeVertexCache());
+                generator.setQuantitiesOnly(options.isQuantitiesOnly());
+                generator.openModel();
+                return new EngineSession(schema, input.getFileName(), renderEngine, generator, reservation, owner);
+            }
+        } catch (IOException | RenderEngineException ex) {
+            if (renderEngine != null) {
+                closeQuietly(renderEngine);
+            }
+            throw new BimServerApiException("Unable to open engine session for " + input.getFileName(), ex);
+        }
+    }
+
+    @Override
+    public Schema getSchema() {
+        return schema;
+    }
+
+    @Override
+    public synchronized Map<Integer, GeometryInfo> generateGeometry(Collection<Integer> expressIds) throws BimServerApiException {
+        if (closed) {
+            throw new BimServerApiException("Engine session for " + fileName + " has been closed");
+        }
+        lastUsed = System.nanoTime();
+        Map<Integer, GeometryInfo> geometry = new LinkedHashMap<>();
+        try {
+            for (Integer expressId : expressIds) {
+                GeometryInfo geometryInfo = generator.generateGeometry(expressId, null);
+                if (geometryInfo != null) {
+                    geometry.put(expressId, geometryInfo);
+                }
+            }
+        } finally {
+            // Identical meshes are shared within a request, not across them
+            generator.clearSharedGeometry();
+        }
+        lastUsed = System.nanoTime();
+        return geometry;
+    }
+
+    @Override
+    public synchronized boolean isOpen() {
+        return !closed;
+    }
+
+    boolean closeIfIdle(long idleNanos) {
+        synchronized (this) {
+            if (closed || System.nanoTime() - lastUsed <= idleNanos) {
+                return false;
+            }
+            release();
+        }
+        owner.remove(this);
+        return true;
+    }
+
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            release();
+        }
+        owner.remove(this);
+    }
+
+    private void release() {
+        closed = true;
+        generator.closeModel();
+        closeQuietly(renderEngine);
+        reservation.close();
+    }
+
+    private static void closeQuietly(RenderEngine renderEngine) {
+        try {
+            renderEngine.close();
+        } catch (RenderEngineException ex) {
+            LOG.warn("Exception while closing render engine", ex);
+        }
+    }
+}
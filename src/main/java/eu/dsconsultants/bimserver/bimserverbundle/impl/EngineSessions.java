@@ -0,0 +1,90 @@
+package eu.dsconsultants.bimserver.bimserverbundle.impl;
+
+import eu.dsconsultants.bimserver.bimserverbundle.BimServerApiException;
+import eu.dsconsultants.bimserver.bimserverbundle.IfcEngineSession;
+import eu.dsconsultants.bimserver.bimserverbundle.IfcParseOptions;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import org.bimserver.emf.Schema;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/*
+ * Open engine sessions, closing the ones that have been idle for longer than
+ * the TTL so that abandoned sessions do not keep IfcGeomServer processes alive.
+ * Every session holds a process and its model, so their number is capped and
+ * each one reserves its memory from the parse admission budget.
+ */
+class EngineSessions implements AutoCloseable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(EngineSessions.class);
+    private final Set<EngineSession> sessions = ConcurrentHashMap.newKeySet();
+    private final Semaphore slots;
+    private final ParseAdmissionController admissionController;
+    private final long idleNanos;
+    private final ScheduledExecutorService reaper;
+
+    EngineSessions(int idleTtlSeconds, int maxSessions, ParseAdmissionController admissionController) {
+        if (maxSessions < 1) {
+            throw new IllegalArgumentException("maxSessions must be at least 1, was " + maxSessions);
+        }
+        this.slots = new Semaphore(maxSessions);
+        this.admissionController = admissionController;
+        this.idleNanos = TimeUnit.SECONDS.toNanos(idleTtlSeconds);
+        this.reaper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "IfcEngineSession-reaper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long period = Math.max(1, idleTtlSeconds / 4);
+        reaper.scheduleWithFixedDelay(this::closeIdleSessions, period, period, TimeUnit.SECONDS);
+    }
+
+    IfcEngineSession open(File file, IfcInput input, Schema schema, IfcParseOptions options, String executablePath)
+            throws BimServerApiException {
+        if (!slots.tryAcquire()) {
+            throw new BimServerApiException("Too many open engine sessions, rejecting " + file.getName());
+        }
+        ParseAdmissionController.Reservation reservation = null;
+        try {
+            reservation = admissionController.reserve(file, schema);
+            EngineSession session = EngineSession.open(input, schema, options, executablePath, reservation, this);
+            sessions.add(session);
+            return session;
+        } catch (BimServerApiException | RuntimeException ex) {
+            if (reservation != null) {
+                reservation.close();
+            }
+            slots.release();
+            throw ex;
+        }
+    }
+
+    // Called once per session, when it is closed or reaped
+    void remove(EngineSession session) {
+        sessions.remove(session);
+        slots.release();
+    }
+
+    private void closeIdleSessions() {
+        for (EngineSession session : sessions) {
+            if (session.closeIfIdle(idleNanos)) {
+                LOG.debug("Closed idle engine session");
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        reaper.shutdownNow();
+        List<EngineSession> open = new ArrayList<>(sessions);
+        open.forEach(EngineSession::close);
+    }
+}
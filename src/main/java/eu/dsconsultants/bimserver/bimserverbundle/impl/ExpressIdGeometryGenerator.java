@@ -0,0 +1,457 @@
+package eu.dsconsultants.bimserver.bimserverbundle.impl;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.bimserver.geometry.Matrix;
+import org.bimserver.models.geometry.Bounds;
+import org.bimserver.models.geometry.Buffer;
+import org.bimserver.models.geometry.GeometryData;
+import org.bimserver.models.geometry.GeometryFactory;
+import org.bimserver.models.geometry.GeometryInfo;
+import org.bimserver.models.geometry.Vector3f;
+import org.bimserver.plugins.renderengine.EntityNotFoundException;
+import org.bimserver.plugins.renderengine.IndexFormat;
+import org.bimserver.plugins.renderengine.Precision;
+import org.bimserver.plugins.renderengine.RenderEngine;
+import org.bimserver.plugins.renderengine.RenderEngineException;
+import org.bimserver.plugins.renderengine.RenderEngineFilter;
+import org.bimserver.plugins.renderengine.RenderEngineGeometry;
+import org.bimserver.plugins.renderengine.RenderEngineInstance;
+import org.bimserver.plugins.renderengine.RenderEngineModel;
+import org.bimserver.plugins.renderengine.RenderEngineSettings;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/*
+ * Generates geometry for individual express ids on an opened model, without a
+ * deserialized IfcModelInterface to walk. AbstractInputStreamGeometryGenerator
+ * adds the walk over a model's products.
+ */
+class ExpressIdGeometryGenerator {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ExpressIdGeometryGenerator.class);
+    private final RenderEngine renderEngine;
+    private final InputStream in;
+    private final long length;
+    private final Map<Integer, GeometryData> hashes = new ConcurrentHashMap<>();
+    private final Map<String, MappedTemplate> templates = new ConcurrentHashMap<>();
+    private final AtomicInteger instanced = new AtomicInteger();
+    private RenderEngineModel renderEngineModel;
+    private boolean compactIndices;
+    private boolean optimizeVertexCache;
+    private boolean quantitiesOnly;
+    private GeometryArena geometryArena;
+    private GlbExporter glbExporter;
+
+    ExpressIdGeometryGenerator(InputStream in, RenderEngine renderEngine) {
+        this(in, -1, renderEngine);
+    }
+
+    ExpressIdGeometryGenerator(InputStream in, long length, RenderEngine renderEngine) {
+        this.renderEngine = renderEngine;
+        this.in = in;
+        this.length = length;
+    }
+
+    void setCompactIndices(boolean compactIndices) {
+        this.compactIndices = compactIndices;
+    }
+
+    void setOptimizeVertexCache(boolean optimizeVertexCache) {
+        this.optimizeVertexCache = optimizeVertexCache;
+    }
+
+    void setQuantitiesOnly(boolean quantitiesOnly) {
+        this.quantitiesOnly = quantitiesOnly;
+    }
+
+    void setGeometryArena(GeometryArena geometryArena) {
+        this.geometryArena = geometryArena;
+    }
+
+    void setGlbExporter(GlbExporter glbExporter) {
+        this.glbExporter = glbExporter;
+    }
+
+    void openModel() throws RenderEngineException {
+        // With a known length the engine streams the upload instead of buffering it
+        ParserEvents.ModelUploadEvent uploadEvent = null;
+        if (ParserEvents.ENABLED) {
+            uploadEvent = new ParserEvents.ModelUploadEvent();
+            uploadEvent.bytes = length;
+            uploadEvent.begin();
+        }
+        renderEngineModel = length < 0 ? renderEngine.openModel(in) : renderEngine.openModel(in, length);
+        if (uploadEvent != null) {
+            uploadEvent.commit();
+        }
+        final RenderEngineSettings settings = new RenderEngineSettings();
+        settings.setPrecision(Precision.SINGLE);
+        settings.setIndexFormat(IndexFormat.AUTO_DETECT);
+        settings.setGenerateNormals(!quantitiesOnly);
+        settings.setGenerateTriangles(true);
+        settings.setGenerateWireFrame(false);
+
+        final RenderEngineFilter renderEngineFilter = new RenderEngineFilter();
+
+        renderEngineModel.setSettings(settings);
+        renderEngineModel.setFilter(renderEngineFilter);
+
+        ParserEvents.GeneralGeometryEvent generalGeometryEvent = null;
+        if (ParserEvents.ENABLED) {
+            generalGeometryEvent = new ParserEvents.GeneralGeometryEvent();
+            generalGeometryEvent.begin();
+        }
+        renderEngineModel.generateGeneralGeometry();
+        if (generalGeometryEvent != null) {
+            generalGeometryEvent.commit();
+        }
+    }
+
+    // Drops the meshes kept for sharing between products, a generator that
+    // serves many requests would otherwise hold every mesh it produced
+    void clearSharedGeometry() {
+        hashes.clear();
+        templates.clear();
+    }
+
+    void closeModel() {
+        clearSharedGeometry();
+        if (renderEngineModel == null) {
+            return;
+        }
+        try {
+            renderEngineModel.close();
+        } catch (RenderEngineException ex) {
+            LOGGER.warn("Exception while closing render engine model", ex);
+        }
+        renderEngineModel = null;
+    }
+
+    void logInstancing() {
+        LOGGER.debug(String.format("Instanced %d products from %d mapped representations", instanced.get(), templates.size()));
+    }
+
+    protected GeometryInfo generateGeometry(int expressId, String ifcType) {
+        return generateGeometry(expressId, ifcType, null);
+    }
+
+    // Products with the same instance key (see MappedRepresentations) are
+    // tessellated once, the others only get their own placement and bounds
+    protected GeometryInfo generateGeometry(int expressId, String ifcType, String instanceKey) {
+        GeometryInfo geometryInfo = ParserEvents.ENABLED
+                ? generateGeometryWithEvent(expressId, ifcType, instanceKey)
+                : tessellate(expressId, instanceKey);
+        if (glbExporter != null) {
+            glbExporter.add(expressId, ifcType, geometryInfo);
+        }
+        return geometryInfo;
+    }
+
+    private GeometryInfo generateGeometryWithEvent(int expressId, String ifcType, String instanceKey) {
+        ParserEvents.TessellationEvent event = new ParserEvents.TessellationEvent();
+        event.begin();
+        GeometryInfo geometryInfo = tessellate(expressId, instanceKey);
+        event.end();
+        if (event.shouldCommit()) {
+            event.expressId = expressId;
+            event.ifcType = ifcType;
+            if (geometryInfo != null) {
+                event.triangles = geometryInfo.getPrimitiveCount();
+                event.bytes = geometryInfo.getData() == null ? 0 : byteCount(geometryInfo.getData());
+            }
+            event.commit();
+        }
+        return geometryInfo;
+    }
+
+    private GeometryInfo tessellate(int expressId, String instanceKey) {
+        try {
+            RenderEngineInstance renderEngineInstance = renderEngineModel.getInstanceFromExpressId(expressId);
+            MappedTemplate template = instanceKey == null ? null : templates.get(instanceKey);
+            if (template != null) {
+                return instantiate(template, renderEngineInstance);
+            }
+            RenderEngineGeometry geometry = renderEngineInstance.generateGeometry();
+            boolean translate = true;
+            if (geometry != null && geometry.getNrIndices() > 0) {
+                GeometryInfo geometryInfo = createGeometryInfo();
+
+                try {
+                    double area = renderEngineInstance.getArea();
+                    geometryInfo.setArea(area);
+                    double volume = renderEngineInstance.getVolume();
+                    if (volume < 0d) {
+                        volume = -volume;
+                    }
+                    geometryInfo.setVolume(volume);
+
+                } catch (UnsupportedOperationException e) {
+                    LOGGER.trace("Exception during setting volume", e);
+                }
+
+                int[] indices = geometry.getIndices();
+                float[] vertices = geometry.getVertices();
+
+                double[] tranformationMatrix = new double[16];
+                Matrix.setIdentityM(tranformationMatrix, 0);
+                if (translate && renderEngineInstance.getTransformationMatrix() != null) {
+                    tranformationMatrix = renderEngineInstance.getTransformationMatrix();
+                }
+
+                for (int i = 0; i < indices.length; i++) {
+                    processExtends(geometryInfo, tranformationMatrix, vertices, indices[i] * 3);
+                }
+
+                if (quantitiesOnly) {
+                    // The mesh was only needed for the bounds, instances of it
+                    // keep its distinct positions for theirs and nothing else
+                    geometryInfo.setPrimitiveCount(indices.length / 3);
+                    setTransformationMatrix(geometryInfo, tranformationMatrix);
+                    if (instanceKey != null) {
+                        float[] positions = MeshCompactor.weld(vertices, null, null, indices).getVertices();
+                        templates.put(instanceKey, new MappedTemplate(geometryInfo, positions));
+                    }
+                    return geometryInfo;
+                }
+
+                GeometryData geometryData = GeometryFactory.eINSTANCE.createGeometryData();
+
+                float[] normals = geometry.getNormals();
+                float[] colors = null;
+                if (geometry.getMaterialIndices() != null && geometry.getMaterialIndices().length > 0) {
+                    boolean hasMaterial = false;
+                    float[] vertex_colors = new float[vertices.length / 3 * 4];
+                    for (int i = 0; i < geometry.getMaterialIndices().length; ++i) {
+                        int c = geometry.getMaterialIndices()[i];
+                        for (int j = 0; j < 3; ++j) {
+                            int k = indices[i * 3 + j];
+                            if (c > -1) {
+                                hasMaterial = true;
+                                for (int l = 0; l < 4; ++l) {
+                                    vertex_colors[4 * k + l] = geometry.getMaterials()[4 * c + l];
+                                }
+                            }
+                        }
+                    }
+                    if (hasMaterial) {
+                        colors = vertex_colors;
+                    }
+                }
+
+                if (compactIndices) {
+                    MeshCompactor mesh = MeshCompactor.weld(vertices, normals, colors, indices);
+                    indices = mesh.getIndices();
+                    vertices = mesh.getVertices();
+                    normals = mesh.getNormals();
+                    colors = mesh.getColors();
+                }
+                if (optimizeVertexCache) {
+                    MeshCompactor mesh = VertexCacheOptimizer.optimize(vertices, normals, colors, indices);
+                    indices = mesh.getIndices();
+                    vertices = mesh.getVertices();
+                    normals = mesh.getNormals();
+                    colors = mesh.getColors();
+                }
+                if (compactIndices) {
+                    // Readers derive the index width from the buffer size and nrIndices
+                    geometryData.setIndices(createBuffer(MeshCompactor.indicesToByteArray(indices, vertices.length / 3)));
+                } else {
+                    geometryData.setIndices(createBuffer(intArrayToByteArray(indices)));
+                }
+                geometryData.setNrIndices(indices.length);
+                geometryData.setVertices(createBuffer(floatArrayToByteArray(vertices)));
+                geometryData.setNormals(createBuffer(floatArrayToByteArray(normals)));
+                if (colors != null) {
+                    geometryData.setColorsQuantized(createBuffer(floatArrayToByteArray(colors)));
+                }
+
+                geometryInfo.setPrimitiveCount(indices.length / 3);
+
+                geometryInfo.setData(geometryData);
+
+                setTransformationMatrix(geometryInfo, tranformationMatrix);
+                int hash = hash(geometryData);
+                if (hashes.containsKey(hash)) {
+                    geometryInfo.setData(hashes.get(hash));
+                } else {
+                    hashes.put(hash, geometryData);
+                    moveOffHeap(geometryData);
+                }
+                if (instanceKey != null) {
+                    templates.put(instanceKey, new MappedTemplate(geometryInfo, vertices));
+                }
+
+                return geometryInfo;
+            }
+        } catch (EntityNotFoundException e) {
+            LOGGER.trace("Entity not found", e);
+        } catch (RenderEngineException ex) {
+            LOGGER.error("Exception during geometry generation", ex);
+        }
+        return null;
+    }
+
+    // The template's mesh is shared as is, its vertices are only transformed
+    // with the instance's placement for the bounds
+    private GeometryInfo instantiate(MappedTemplate template, RenderEngineInstance renderEngineInstance) throws RenderEngineException {
+        double[] tranformationMatrix = renderEngineInstance.getTransformationMatrix();
+        if (tranformationMatrix == null) {
+            tranformationMatrix = new double[16];
+            Matrix.setIdentityM(tranformationMatrix, 0);
+        }
+        GeometryInfo geometryInfo = createGeometryInfo();
+        for (int i = 0; i < template.vertices.length; i += 3) {
+            processExtends(geometryInfo, tranformationMatrix, template.vertices, i);
+        }
+        geometryInfo.setArea(template.geometryInfo.getArea());
+        geometryInfo.setVolume(template.geometryInfo.getVolume());
+        geometryInfo.setPrimitiveCount(template.geometryInfo.getPrimitiveCount());
+        geometryInfo.setData(template.geometryInfo.getData());
+        setTransformationMatrix(geometryInfo, tranformationMatrix);
+        instanced.incrementAndGet();
+        return geometryInfo;
+    }
+
+    private GeometryInfo createGeometryInfo() {
+        GeometryInfo geometryInfo = GeometryFactory.eINSTANCE.createGeometryInfo();
+
+        Bounds bounds = GeometryFactory.eINSTANCE.createBounds();
+
+        bounds.setMin(createVector3f(Double.POSITIVE_INFINITY));
+        bounds.setMax(createVector3f(-Double.POSITIVE_INFINITY));
+
+        geometryInfo.setBounds(bounds);
+        return geometryInfo;
+    }
+
+    private void moveOffHeap(GeometryData geometryData) {
+        if (geometryArena == null) {
+            return;
+        }
+        try {
+            geometryArena.moveOffHeap(geometryData);
+        } catch (IOException ex) {
+            LOGGER.error("Unable to move geometry off-heap, keeping it on the heap", ex);
+        }
+    }
+
+    private long byteCount(GeometryData geometryData) {
+        long bytes = 0;
+        for (Buffer buffer : new Buffer[]{geometryData.getIndices(), geometryData.getVertices(), geometryData.getNormals(),
+            geometryData.getColorsQuantized()}) {
+            if (buffer != null && geometryArena != null) {
+                bytes += geometryArena.length(buffer);
+            } else if (buffer != null && buffer.getData() != null) {
+                bytes += buffer.getData().length;
+            }
+        }
+        return bytes;
+    }
+
+    private Buffer createBuffer(byte[] data) {
+        Buffer buffer = GeometryFactory.eINSTANCE.createBuffer();
+        buffer.setData(data);
+        return buffer;
+    }
+
+    private byte[] floatArrayToByteArray(float[] vertices) {
+        if (vertices == null) {
+            return null;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(new byte[vertices.length * 4]);
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        FloatBuffer asFloatBuffer = buffer.asFloatBuffer();
+        for (float f : vertices) {
+            asFloatBuffer.put(f);
+        }
+        return buffer.array();
+    }
+
+    private byte[] intArrayToByteArray(int[] indices) {
+        if (indices == null) {
+            return null;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(new byte[indices.length * 4]);
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        IntBuffer asIntBuffer = buffer.asIntBuffer();
+        for (int i : indices) {
+            asIntBuffer.put(i);
+        }
+        return buffer.array();
+    }
+
+    private void setTransformationMatrix(GeometryInfo geometryInfo, double[] transformationMatrix) {
+        ByteBuffer byteBuffer = ByteBuffer.allocate(16 * 8);
+        byteBuffer.order(ByteOrder.nativeOrder());
+        DoubleBuffer asDoubleBuffer = byteBuffer.asDoubleBuffer();
+        for (double f : transformationMatrix) {
+            asDoubleBuffer.put(f);
+        }
+        geometryInfo.setTransformation(byteBuffer.array());
+    }
+
+    private Vector3f createVector3f(double defaultValue) {
+        Vector3f vector3f = GeometryFactory.eINSTANCE.createVector3f();
+        vector3f.setX(defaultValue);
+        vector3f.setY(defaultValue);
+        vector3f.setZ(defaultValue);
+        return vector3f;
+    }
+
+    static int hash(GeometryData geometryData) {
+        int hashCode = 0;
+        if (geometryData.getIndices() != null) {
+            hashCode += Arrays.hashCode(geometryData.getIndices().getData());
+        }
+        if (geometryData.getVertices() != null) {
+            hashCode += Arrays.hashCode(geometryData.getVertices().getData());
+        }
+        if (geometryData.getNormals() != null) {
+            hashCode += Arrays.hashCode(geometryData.getNormals().getData());
+        }
+        if (geometryData.getColorsQuantized() != null) {
+            hashCode += Arrays.hashCode(geometryData.getColorsQuantized().getData());
+        }
+        return hashCode;
+    }
+
+    private static class MappedTemplate {
+
+        private final GeometryInfo geometryInfo;
+        private final float[] vertices;
+
+        MappedTemplate(GeometryInfo geometryInfo, float[] vertices) {
+            this.geometryInfo = geometryInfo;
+            this.vertices = vertices;
+        }
+    }
+
+    private void processExtends(GeometryInfo geometryInfo, double[] transformationMatrix, float[] vertices, int index) {
+        double x = vertices[index];
+        double y = vertices[index + 1];
+        double z = vertices[index + 2];
+        double[] result = new double[4];
+        Matrix.multiplyMV(result, 0, transformationMatrix, 0, new double[]{x, y, z, 1}, 0);
+        x = result[0];
+        y = result[1];
+        z = result[2];
+        Bounds bounds = geometryInfo.getBounds();
+        bounds.getMin().setX(Math.min(x, bounds.getMin().getX()));
+        bounds.getMin().setY(Math.min(y, bounds.getMin().getY()));
+        bounds.getMin().setZ(Math.min(z, bounds.getMin().getZ()));
+        bounds.getMax().setX(Math.max(x, bounds.getMax().getX()));
+        bounds.getMax().setY(Math.max(y, bounds.getMax().getY()));
+        bounds.getMax().setZ(Math.max(z, bounds.getMax().getZ()));
+    }
+}
@@ -0,0 +1,110 @@
+package eu.dsconsultants.bimserver.bimserverbundle.impl;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+class GeomServerProcessReaper {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(GeomServerProcessReaper.class);
+    private static final long EXIT_TIMEOUT_MILLIS = 2000;
+    private static final long DESTROY_TIMEOUT_MILLIS = 500;
+    private static final AtomicInteger THREAD_COUNTER = new AtomicInteger();
+    private static final Set<Process> PENDING = ConcurrentHashMap.newKeySet();
+    private static ExecutorService executor = null;
+
+    private GeomServerProcessReaper() {
+    }
+
+    // Created on demand so a stopped bundle that is started again gets a new one
+    private static synchronized ExecutorService executor() {
+        if (executor == null) {
+            executor = Executors.newCachedThreadPool(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "IfcGeomServer-reaper-" + THREAD_COUNTER.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return executor;
+    }
+
+    // Lets the processes being retired finish saying goodbye, the ones still
+    // around after that are killed, which also unblocks a farewell waiting on
+    // a hung process
+    static void shutdown() {
+        ExecutorService retired;
+        synchronized (GeomServerProcessReaper.class) {
+            retired = executor;
+            executor = null;
+        }
+        if (retired == null) {
+            return;
+        }
+        retired.shutdown();
+        try {
+            if (!retired.awaitTermination(EXIT_TIMEOUT_MILLIS + DESTROY_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                retired.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            retired.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+        for (Process process : PENDING) {
+            process.destroyForcibly();
+        }
+    }
+
+    static void retire(Process process, Runnable farewell) {
+        PENDING.add(process);
+        executor().execute(() -> {
+            try {
+                farewell.run();
+            } catch (RuntimeException e) {
+                LOGGER.warn("Exception during process termination", e);
+            }
+            reap(process);
+        });
+    }
+
+    // For a process that has already been told to go away in some other way,
+    // its exit code is of no interest
+    static void discard(Process process) {
+        PENDING.add(process);
+        executor().execute(() -> reap(process, false));
+    }
+
+    private static void reap(Process process) {
+        reap(process, true);
+    }
+
+    private static void reap(Process process, boolean checkExitValue) {
+        try {
+            // Give the executable some time to terminate by itself or kill
+            // it after 2 seconds have passed
+            if (process.waitFor(EXIT_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                if (checkExitValue && process.exitValue() != 0) {
+                    LOGGER.error(String.format("Exited with non-zero exit code: %d", process.exitValue()));
+                }
+                return;
+            }
+            process.destroy();
+            LOGGER.error("Forcefully terminated IfcOpenShell process");
+            process.waitFor(DESTROY_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            LOGGER.trace("Exception during waiting for process termination", e);
+            Thread.currentThread().interrupt();
+        } finally {
+            process.destroyForcibly();
+            PENDING.remove(process);
+        }
+    }
+}
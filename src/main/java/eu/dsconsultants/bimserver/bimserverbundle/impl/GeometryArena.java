@@ -0,0 +1,134 @@
+package eu.dsconsultants.bimserver.bimserverbundle.impl;
+
+import eu.dsconsultants.bimserver.bimserverbundle.GeometryBuffers;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import org.bimserver.models.geometry.Buffer;
+import org.bimserver.models.geometry.GeometryData;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/*
+ * Per-model storage for geometry payloads in memory-mapped segments of a
+ * temporary file. Buffers moved into the arena drop their byte[] and keep only
+ * a small slice handle, everything is released together when the arena closes.
+ */
+class GeometryArena implements GeometryBuffers {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(GeometryArena.class);
+    private static final int SEGMENT_SIZE = 64 * 1024 * 1024;
+    private final Path file;
+    private final FileChannel channel;
+    private final List<MappedByteBuffer> segments = new ArrayList<>();
+    private final Map<Buffer, Slice> slices = new IdentityHashMap<>();
+    private long mappedEnd;
+    private int segmentPosition;
+    private boolean closed;
+
+    private GeometryArena(Path file, FileChannel channel) {
+        this.file = file;
+        this.channel = channel;
+    }
+
+    static GeometryArena create() throws IOException {
+        Path file = Files.createTempFile("ifc-geometry", ".bin");
+        return new GeometryArena(file, FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE));
+    }
+
+    void moveOffHeap(GeometryData geometryData) throws IOException {
+        moveOffHeap(geometryData.getIndices());
+        moveOffHeap(geometryData.getVertices());
+        moveOffHeap(geometryData.getNormals());
+        moveOffHeap(geometryData.getColorsQuantized());
+    }
+
+    synchronized void moveOffHeap(Buffer buffer) throws IOException {
+        if (buffer == null || buffer.getData() == null || slices.containsKey(buffer)) {
+            return;
+        }
+        if (closed) {
+            throw new IOException("Geometry arena has been closed");
+        }
+        byte[] data = buffer.getData();
+        if (segments.isEmpty() || segmentPosition + data.length > segments.get(segments.size() - 1).capacity()) {
+            int size = Math.max(SEGMENT_SIZE, data.length);
+            segments.add(channel.map(FileChannel.MapMode.READ_WRITE, mappedEnd, size));
+            mappedEnd += size;
+            segmentPosition = 0;
+        }
+        ByteBuffer segment = segments.get(segments.size() - 1).duplicate();
+        segment.position(segmentPosition);
+        segment.put(data);
+        slices.put(buffer, new Slice(segments.size() - 1, segmentPosition, data.length));
+        segmentPosition += data.length;
+        buffer.setData(null);
+    }
+
+    synchronized int length(Buffer buffer) {
+        Slice slice = slices.get(buffer);
+        if (slice != null) {
+            return slice.length;
+        }
+        return buffer.getData() == null ? 0 : buffer.getData().length;
+    }
+
+    @Override
+    public synchronized ByteBuffer getData(Buffer buffer) {
+        if (buffer == null) {
+            return null;
+        }
+        Slice slice = slices.get(buffer);
+        if (slice == null) {
+            return buffer.getData() == null ? null : ByteBuffer.wrap(buffer.getData()).asReadOnlyBuffer().order(ByteOrder.LITTLE_ENDIAN);
+        }
+        if (closed) {
+            throw new IllegalStateException("Geometry arena has been closed");
+        }
+        ByteBuffer view = segments.get(slice.segment).duplicate();
+        view.position(slice.offset);
+        view.limit(slice.offset + slice.length);
+        return view.slice().asReadOnlyBuffer().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    @Override
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        // Views handed out by getData may still be in use, so the segments
+        // are left to the garbage collector instead of being unmapped. The
+        // file's space is given back once the last view has been collected.
+        segments.clear();
+        slices.clear();
+        try {
+            channel.close();
+            Files.deleteIfExists(file);
+        } catch (IOException ex) {
+            LOGGER.warn("Unable to remove geometry arena " + file, ex);
+        }
+    }
+
+    private static class Slice {
+
+        private final int segment;
+        private final int offset;
+        private final int length;
+
+        Slice(int segment, int offset, int length) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+}
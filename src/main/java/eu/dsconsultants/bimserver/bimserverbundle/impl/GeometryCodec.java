@@ -0,0 +1,108 @@
+package eu.dsconsultants.bimserver.bimserverbundle.impl;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import org.bimserver.models.geometry.Bounds;
+import org.bimserver.models.geometry.Buffer;
+import org.bimserver.models.geometry.GeometryData;
+import org.bimserver.models.geometry.GeometryFactory;
+import org.bimserver.models.geometry.GeometryInfo;
+import org.bimserver.models.geometry.Vector3f;
+
+/*
+ * Binary form of a GeometryInfo and its GeometryData as exchanged between the
+ * coordinator and geometry worker processes.
+ */
+class GeometryCodec {
+
+    private GeometryCodec() {
+    }
+
+    static void write(DataOutputStream out, GeometryInfo geometryInfo) throws IOException {
+        writeVector(out, geometryInfo.getBounds().getMin());
+        writeVector(out, geometryInfo.getBounds().getMax());
+        out.writeDouble(geometryInfo.getArea());
+        out.writeDouble(geometryInfo.getVolume());
+        out.writeInt(geometryInfo.getPrimitiveCount());
+        writeBytes(out, geometryInfo.getTransformation());
+        GeometryData geometryData = geometryInfo.getData();
+        out.writeBoolean(geometryData != null);
+        if (geometryData != null) {
+            out.writeInt(geometryData.getNrIndices());
+            writeBuffer(out, geometryData.getIndices());
+            writeBuffer(out, geometryData.getVertices());
+            writeBuffer(out, geometryData.getNormals());
+            writeBuffer(out, geometryData.getColorsQuantized());
+        }
+    }
+
+    static GeometryInfo read(DataInputStream in) throws IOException {
+        GeometryInfo geometryInfo = GeometryFactory.eINSTANCE.createGeometryInfo();
+        Bounds bounds = GeometryFactory.eINSTANCE.createBounds();
+        bounds.setMin(readVector(in));
+        bounds.setMax(readVector(in));
+        geometryInfo.setBounds(bounds);
+        geometryInfo.setArea(in.readDouble());
+        geometryInfo.setVolume(in.readDouble());
+        geometryInfo.setPrimitiveCount(in.readInt());
+        geometryInfo.setTransformation(readBytes(in));
+        if (in.readBoolean()) {
+            GeometryData geometryData = GeometryFactory.eINSTANCE.createGeometryData();
+            geometryData.setNrIndices(in.readInt());
+            geometryData.setIndices(readBuffer(in));
+            geometryData.setVertices(readBuffer(in));
+            geometryData.setNormals(readBuffer(in));
+            geometryData.setColorsQuantized(readBuffer(in));
+            geometryInfo.setData(geometryData);
+        }
+        return geometryInfo;
+    }
+
+    private static void writeVector(DataOutputStream out, Vector3f vector) throws IOException {
+        out.writeDouble(vector.getX());
+        out.writeDouble(vector.getY());
+        out.writeDouble(vector.getZ());
+    }
+
+    private static Vector3f readVector(DataInputStream in) throws IOException {
+        Vector3f vector = GeometryFactory.eINSTANCE.createVector3f();
+        vector.setX(in.readDouble());
+        vector.setY(in.readDouble());
+        vector.setZ(in.readDouble());
+        return vector;
+    }
+
+    private static void writeBuffer(DataOutputStream out, Buffer buffer) throws IOException {
+        writeBytes(out, buffer == null ? null : buffer.getData());
+    }
+
+    private static Buffer readBuffer(DataInputStream in) throws IOException {
+        byte[] data = readBytes(in);
+        if (data == null) {
+            return null;
+        }
+        Buffer buffer = GeometryFactory.eINSTANCE.createBuffer();
+        buffer.setData(data);
+        return buffer;
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] data) throws IOException {
+        if (data == null) {
+            out.writeInt(-1);
+            return;
+        }
+        out.writeInt(data.length);
+        out.write(data);
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] data = new byte[length];
+        in.readFully(data);
+        return data;
+    }
+}
@@ -0,0 +1,131 @@
+package eu.dsconsultants.bimserver.bimserverbundle.impl;
+
+import eu.dsconsultants.bimserver.bimserverbundle.GeometryBuffers;
+import eu.dsconsultants.bimserver.bimserverbundle.GeometryMemoryReport;
+import eu.dsconsultants.bimserver.bimserverbundle.GeometryMemoryUsage;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.bimserver.emf.IdEObject;
+import org.bimserver.models.geometry.Buffer;
+import org.bimserver.models.geometry.GeometryData;
+import org.bimserver.models.geometry.GeometryInfo;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/*
+ * Measures the geometry a parse result holds by walking its products once.
+ * Whatever made products share GeometryData (the hash deduplication, mapped
+ * item instancing or reuse from a previous revision) shows up the same way:
+ * the payload is counted for the first product and as shared bytes for the
+ * others.
+ */
+final class GeometryMemoryAccounting {
+
+    private static final Logger LOG = LoggerFactory.getLogger(GeometryMemoryAccounting.class);
+    private static final int PRODUCTS = 0;
+    private static final int VERTICES = 1;
+    private static final int NORMALS = 2;
+    private static final int INDICES = 3;
+    private static final int COLORS = 4;
+    private static final int TRANSFORMATIONS = 5;
+    private static final int SHARED = 6;
+
+    private GeometryMemoryAccounting() {
+    }
+
+    static GeometryMemoryReport measure(List<? extends IdEObject> products, GeometryBuffers geometryBuffers, boolean offHeap) {
+        long[] total = new long[7];
+        Map<String, long[]> byType = new HashMap<>();
+        Map<GeometryData, long[]> payloads = new IdentityHashMap<>();
+        for (IdEObject product : products) {
+            GeometryInfo geometryInfo = (GeometryInfo) product.eGet(product.eClass().getEStructuralFeature("geometry"));
+            if (geometryInfo == null) {
+                continue;
+            }
+            long[] type = byType.computeIfAbsent(product.eClass().getName(), name -> new long[7]);
+            long[] counts = new long[7];
+            counts[PRODUCTS] = 1;
+            counts[TRANSFORMATIONS] = geometryInfo.getTransformation() == null ? 0 : geometryInfo.getTransformation().length;
+            GeometryData geometryData = geometryInfo.getData();
+            if (geometryData != null) {
+                long[] payload = payloads.get(geometryData);
+                if (payload == null) {
+                    payload = new long[]{
+                        length(geometryBuffers, geometryData.getVertices()),
+                        length(geometryBuffers, geometryData.getNormals()),
+                        length(geometryBuffers, geometryData.getIndices()),
+                        length(geometryBuffers, geometryData.getColorsQuantized())};
+                    payloads.put(geometryData, payload);
+                    System.arraycopy(payload, 0, counts, VERTICES, payload.length);
+                } else {
+                    counts[SHARED] = payload[0] + payload[1] + payload[2] + payload[3];
+                }
+            }
+            for (int i = 0; i < counts.length; i++) {
+                type[i] += counts[i];
+                total[i] += counts[i];
+            }
+        }
+
+        List<Map.Entry<String, long[]>> types = new ArrayList<>(byType.entrySet());
+        types.sort((a, b) -> Long.compare(bytes(b.getValue()), bytes(a.getValue())));
+        Map<String, GeometryMemoryUsage> usages = new LinkedHashMap<>();
+        for (Map.Entry<String, long[]> type : types) {
+            usages.put(type.getKey(), usage(type.getValue()));
+        }
+        GeometryMemoryReport report = new GeometryMemoryReport(usage(total), Collections.unmodifiableMap(usages), offHeap);
+        LOG.debug(String.format("Geometry of %d products takes %d bytes, %d bytes are shared between products",
+                total[PRODUCTS], bytes(total), total[SHARED]));
+        return report;
+    }
+
+    static void commitEvents(String file, GeometryMemoryReport report) {
+        GeometryMemoryUsage total = report.getTotal();
+        ParserEvents.GeometryMemoryEvent event = new ParserEvents.GeometryMemoryEvent();
+        if (!event.shouldCommit()) {
+            return;
+        }
+        event.file = file;
+        event.offHeap = report.isOffHeap();
+        set(event, total);
+        event.commit();
+        for (Map.Entry<String, GeometryMemoryUsage> type : report.getByType().entrySet()) {
+            ParserEvents.GeometryMemoryEvent typeEvent = new ParserEvents.GeometryMemoryEvent();
+            typeEvent.file = file;
+            typeEvent.ifcType = type.getKey();
+            typeEvent.offHeap = report.isOffHeap();
+            set(typeEvent, type.getValue());
+            typeEvent.commit();
+        }
+    }
+
+    private static void set(ParserEvents.GeometryMemoryEvent event, GeometryMemoryUsage usage) {
+        event.products = usage.getProducts();
+        event.vertexBytes = usage.getVertexBytes();
+        event.normalBytes = usage.getNormalBytes();
+        event.indexBytes = usage.getIndexBytes();
+        event.colorBytes = usage.getColorBytes();
+        event.transformationBytes = usage.getTransformationBytes();
+        event.sharedBytes = usage.getSharedBytes();
+    }
+
+    private static long length(GeometryBuffers geometryBuffers, Buffer buffer) {
+        ByteBuffer data = geometryBuffers.getData(buffer);
+        return data == null ? 0 : data.remaining();
+    }
+
+    private static long bytes(long[] counts) {
+        return counts[VERTICES] + counts[NORMALS] + counts[INDICES] + counts[COLORS] + counts[TRANSFORMATIONS];
+    }
+
+    private static GeometryMemoryUsage usage(long[] counts) {
+        return new GeometryMemoryUsage((int) counts[PRODUCTS], counts[VERTICES], counts[NORMALS], counts[INDICES], counts[COLORS],
+                counts[TRANSFORMATIONS], counts[SHARED]);
+    }
+}
@@ -0,0 +1,97 @@
+package eu.dsconsultants.bimserver.bimserverbundle.impl;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.bimserver.models.geometry.GeometryInfo;
+import org.bimserver.plugins.renderengine.RenderEngine;
+import org.bimserver.plugins.renderengine.RenderEngineException;
+import org.ifcopenshell.IfcOpenShellEngine;
+
+/*
+ * Entry point of a geometry worker JVM. Reads the generator settings, the IFC
+ * file and a shard of express ids from stdin and writes the geometry of each
+ * express id to stdout, see DistributedGeometryGenerator for the other side.
+ */
+public class GeometryWorker {
+
+    static final int END_OF_SHARD = -1;
+
+    private GeometryWorker() {
+    }
+
+    public static void main(String[] args) throws IOException, RenderEngineException {
+        if (args.length != 1) {
+            System.err.println("Usage: GeometryWorker <IfcGeomServer executable>");
+            System.exit(2);
+        }
+        // stdout carries the protocol, anything else printed goes to stderr
+        OutputStream protocolOut = new FileOutputStream(FileDescriptor.out);
+        System.setOut(System.err);
+        DataInputStream in = new DataInputStream(new BufferedInputStream(System.in, 64 * 1024));
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(protocolOut, 64 * 1024));
+        run(args[0], in, out);
+    }
+
+    static void run(String executable, DataInputStream in, DataOutputStream out) throws IOException, RenderEngineException {
+        boolean compactIndices = in.readBoolean();
+        boolean optimizeVertexCache = in.readBoolean();
+        boolean quantitiesOnly = in.readBoolean();
+        Path file = Files.createTempFile("ifc-worker", ".ifc");
+        try {
+            receiveModel(in, file);
+            try (IfcInput input = IfcInput.open(file.toFile()); RenderEngine renderEngine = new IfcOpenShellEngine(executable)) {
+                renderEngine.init();
+                ExpressIdGeometryGenerator generator;
+                try (InputStream modelIn = input.newInputStream()) {
+                    generator = new ExpressIdGeometryGenerator(modelIn, input.length(), renderEngine);
+                    generator.setCompactIndices(compactIndices);
+                    generator.setOptimizeVertexCache(optimizeVertexCache);
+                    generator.setQuantitiesOnly(quantitiesOnly);
+                    generator.openModel();
+                }
+                // The whole shard is read before answering, so neither side blocks on a full pipe
+                int[] shard = new int[in.readInt()];
+                for (int i = 0; i < shard.length; i++) {
+                    shard[i] = in.readInt();
+                }
+                for (int expressId : shard) {
+                    GeometryInfo geometryInfo = generator.generateGeometry(expressId, null);
+                    out.writeInt(expressId);
+                    out.writeBoolean(geometryInfo != null);
+                    if (geometryInfo != null) {
+                        GeometryCodec.write(out, geometryInfo);
+                    }
+                }
+                out.writeInt(END_OF_SHARD);
+                out.flush();
+                generator.closeModel();
+            }
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    private static void receiveModel(DataInputStream in, Path file) throws IOException {
+        long remaining = in.readLong();
+        byte[] buffer = new byte[64 * 1024];
+        try (OutputStream fileOut = Files.newOutputStream(file)) {
+            while (remaining > 0) {
+                int n = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (n == -1) {
+                    throw new IOException("Model upload ended " + remaining + " bytes early");
+                }
+                fileOut.write(buffer, 0, n);
+                remaining -= n;
+            }
+        }
+    }
+}
@@ -0,0 +1,333 @@
+package eu.dsconsultants.bimserver.bimserverbundle.impl;
+
+import eu.dsconsultants.bimserver.bimserverbundle.GeometryBuffers;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import org.bimserver.models.geometry.GeometryData;
+import org.bimserver.models.geometry.GeometryInfo;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/*
+ * Writes binary glTF while products are tessellated. Mesh payloads go straight
+ * into a temporary BIN chunk and the JSON sections into temporary files of
+ * their own, so memory use does not grow with the model. finish() assembles
+ * the GLB with channel transfers once the JSON length is known. Every distinct
+ * GeometryData becomes one mesh, products are nodes referencing it with their
+ * placement as matrix, under a root node that turns IFC's Z up into Y up.
+ */
+class GlbExporter implements AutoCloseable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(GlbExporter.class);
+    private static final int GLB_MAGIC = 0x46546C67;
+    private static final int CHUNK_JSON = 0x4E4F534A;
+    private static final int CHUNK_BIN = 0x004E4942;
+    private static final int FLOAT = 5126;
+    private static final int UNSIGNED_SHORT = 5123;
+    private static final int UNSIGNED_INT = 5125;
+    private static final int ARRAY_BUFFER = 34962;
+    private static final int ELEMENT_ARRAY_BUFFER = 34963;
+    private static final String Z_UP_TO_Y_UP = "[1,0,0,0,0,0,-1,0,0,1,0,0,0,0,0,1]";
+
+    private final Path target;
+    private final GeometryBuffers geometryBuffers;
+    private final Path binFile;
+    private final FileChannel bin;
+    private final JsonSection nodes;
+    private final JsonSection meshes;
+    private final JsonSection accessors;
+    private final JsonSection bufferViews;
+    private final List<Path> files = new ArrayList<>();
+    private final Map<GeometryData, Integer> meshIndices = new IdentityHashMap<>();
+    private final ByteBuffer padding = ByteBuffer.allocate(4);
+    private IOException failure;
+
+    private GlbExporter(Path target, GeometryBuffers geometryBuffers) throws IOException {
+        this.target = target;
+        this.geometryBuffers = geometryBuffers;
+        try {
+            binFile = createFile("bin");
+            bin = FileChannel.open(binFile, StandardOpenOption.WRITE, StandardOpenOption.READ);
+            nodes = new JsonSection("nodes", createFile("nodes"));
+            meshes = new JsonSection("meshes", createFile("meshes"));
+            accessors = new JsonSection("accessors", createFile("accessors"));
+            bufferViews = new JsonSection("bufferViews", createFile("bufferViews"));
+        } catch (IOException | RuntimeException ex) {
+            close();
+            throw ex;
+        }
+    }
+
+    static GlbExporter create(Path target, GeometryBuffers geometryBuffers) throws IOException {
+        return new GlbExporter(target, geometryBuffers);
+    }
+
+    private Path createFile(String section) throws IOException {
+        Path file = Files.createTempFile("glb-" + section, ".part");
+        files.add(file);
+        return file;
+    }
+
+    // Failures are kept for finish(), tessellation carries on without export
+    synchronized void add(int expressId, String ifcType, GeometryInfo geometryInfo) {
+        if (failure != null || geometryInfo == null || geometryInfo.getData() == null) {
+            return;
+        }
+        try {
+            Integer mesh = meshIndices.get(geometryInfo.getData());
+            if (mesh == null) {
+                mesh = writeMesh(geometryInfo.getData());
+                meshIndices.put(geometryInfo.getData(), mesh);
+            }
+            if (mesh < 0) {
+                return;
+            }
+            StringBuilder node = new StringBuilder(256);
+            node.append("{\"name\":\"");
+            if (ifcType != null) {
+                node.append(ifcType).append(' ');
+            }
+            node.append('#').append(expressId).append("\",\"mesh\":").append(mesh);
+            if (geometryInfo.getTransformation() != null) {
+                ByteBuffer transformation = ByteBuffer.wrap(geometryInfo.getTransformation()).order(ByteOrder.nativeOrder());
+                node.append(",\"matrix\":[");
+                for (int i = 0; i < 16; i++) {
+                    node.append(i == 0 ? "" : ",").append(transformation.getDouble(i * 8));
+                }
+                node.append(']');
+            }
+            node.append(",\"extras\":{\"expressId\":").append(expressId).append("}}");
+            nodes.add(node);
+        } catch (IOException ex) {
+            LOGGER.error("Unable to export geometry to " + target, ex);
+            failure = ex;
+        }
+    }
+
+    // Returns -1 for geometry without triangles, which gets no node either
+    private int writeMesh(GeometryData geometryData) throws IOException {
+        ByteBuffer indices = geometryBuffers.getData(geometryData.getIndices());
+        ByteBuffer vertices = geometryBuffers.getData(geometryData.getVertices());
+        if (indices == null || vertices == null || geometryData.getNrIndices() == 0 || vertices.remaining() < 12) {
+            return -1;
+        }
+        int vertexCount = vertices.remaining() / 12;
+        boolean shortIndices = indices.remaining() == geometryData.getNrIndices() * 2;
+
+        StringBuilder position = new StringBuilder();
+        float[] min = {Float.POSITIVE_INFINITY, Float.POSITIVE_INFINITY, Float.POSITIVE_INFINITY};
+        float[] max = {Float.NEGATIVE_INFINITY, Float.NEGATIVE_INFINITY, Float.NEGATIVE_INFINITY};
+        for (int i = 0; i < vertexCount * 3; i++) {
+            float value = vertices.getFloat(vertices.position() + i * 4);
+            min[i % 3] = Math.min(min[i % 3], value);
+            max[i % 3] = Math.max(max[i % 3], value);
+        }
+        position.append(",\"min\":[").append(min[0]).append(',').append(min[1]).append(',').append(min[2])
+                .append("],\"max\":[").append(max[0]).append(',').append(max[1]).append(',').append(max[2]).append(']');
+
+        StringBuilder attributes = new StringBuilder("{\"POSITION\":");
+        attributes.append(writeAccessor(vertices, ARRAY_BUFFER, FLOAT, vertexCount, "VEC3", position));
+        ByteBuffer normals = geometryBuffers.getData(geometryData.getNormals());
+        if (normals != null && normals.remaining() == vertexCount * 12) {
+            attributes.append(",\"NORMAL\":").append(writeAccessor(normals, ARRAY_BUFFER, FLOAT, vertexCount, "VEC3", null));
+        }
+        ByteBuffer colors = geometryBuffers.getData(geometryData.getColorsQuantized());
+        if (colors != null && colors.remaining() == vertexCount * 16) {
+            attributes.append(",\"COLOR_0\":").append(writeAccessor(colors, ARRAY_BUFFER, FLOAT, vertexCount, "VEC4", null));
+        }
+        attributes.append('}');
+        int indexAccessor = writeAccessor(indices, ELEMENT_ARRAY_BUFFER, shortIndices ? UNSIGNED_SHORT : UNSIGNED_INT,
+                geometryData.getNrIndices(), "SCALAR", null);
+
+        StringBuilder mesh = new StringBuilder("{\"primitives\":[{\"attributes\":");
+        mesh.append(attributes).append(",\"indices\":").append(indexAccessor).append(",\"mode\":4}]}");
+        return meshes.add(mesh);
+    }
+
+    private int writeAccessor(ByteBuffer data, int target, int componentType, int count, String type, CharSequence extra)
+            throws IOException {
+        long offset = bin.position();
+        int length = data.remaining();
+        while (data.hasRemaining()) {
+            bin.write(data);
+        }
+        pad(bin, length, (byte) 0);
+
+        StringBuilder bufferView = new StringBuilder(96);
+        bufferView.append("{\"buffer\":0,\"byteOffset\":").append(offset).append(",\"byteLength\":").append(length)
+                .append(",\"target\":").append(target).append('}');
+        int view = bufferViews.add(bufferView);
+
+        StringBuilder accessor = new StringBuilder(160);
+        accessor.append("{\"bufferView\":").append(view).append(",\"componentType\":").append(componentType)
+                .append(",\"count\":").append(count).append(",\"type\":\"").append(type).append('"');
+        if (extra != null) {
+            accessor.append(extra);
+        }
+        accessor.append('}');
+        return accessors.add(accessor);
+    }
+
+    private void pad(FileChannel channel, long length, byte value) throws IOException {
+        int bytes = (int) ((4 - length % 4) % 4);
+        if (bytes == 0) {
+            return;
+        }
+        padding.clear();
+        for (int i = 0; i < bytes; i++) {
+            padding.put(value);
+        }
+        padding.flip();
+        channel.write(padding);
+    }
+
+    synchronized void finish() throws IOException {
+        if (failure != null) {
+            throw failure;
+        }
+        Path jsonFile = createFile("json");
+        try (FileChannel json = FileChannel.open(jsonFile, StandardOpenOption.WRITE, StandardOpenOption.READ)) {
+            write(json, "{\"asset\":{\"version\":\"2.0\",\"generator\":\"bimserver-bundle\"},\"scene\":0,\"scenes\":[{\"nodes\":[0]}],");
+            write(json, "\"nodes\":[{\"name\":\"IfcModel\",\"matrix\":" + Z_UP_TO_Y_UP);
+            if (nodes.count > 0) {
+                StringBuilder children = new StringBuilder(",\"children\":[");
+                for (int node = 1; node <= nodes.count; node++) {
+                    children.append(node == 1 ? "" : ",").append(node);
+                    if (children.length() > 8192) {
+                        write(json, children);
+                        children.setLength(0);
+                    }
+                }
+                write(json, children.append(']'));
+            }
+            write(json, "}");
+            if (nodes.count > 0) {
+                write(json, ",");
+                nodes.transferTo(json);
+            }
+            write(json, "]");
+            for (JsonSection section : new JsonSection[]{meshes, accessors, bufferViews}) {
+                if (section.count > 0) {
+                    write(json, ",\"" + section.name + "\":[");
+                    section.transferTo(json);
+                    write(json, "]");
+                }
+            }
+            if (bin.size() > 0) {
+                write(json, ",\"buffers\":[{\"byteLength\":" + bin.size() + "}]");
+            }
+            write(json, "}");
+            long jsonLength = json.size();
+            pad(json, jsonLength, (byte) ' ');
+            jsonLength = json.size();
+            long binLength = bin.size();
+            long total = 12 + 8 + jsonLength + (binLength > 0 ? 8 + binLength : 0);
+            if (total > 0xFFFFFFFFL) {
+                throw new IOException("Geometry does not fit into a GLB file: " + total + " bytes");
+            }
+
+            try (FileChannel out = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING)) {
+                ByteBuffer header = ByteBuffer.allocate(20).order(ByteOrder.LITTLE_ENDIAN);
+                header.putInt(GLB_MAGIC).putInt(2).putInt((int) total).putInt((int) jsonLength).putInt(CHUNK_JSON).flip();
+                writeFully(out, header);
+                transferFully(json, jsonLength, out);
+                if (binLength > 0) {
+                    ByteBuffer binHeader = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+                    binHeader.putInt((int) binLength).putInt(CHUNK_BIN).flip();
+                    writeFully(out, binHeader);
+                    transferFully(bin, binLength, out);
+                }
+            }
+        }
+        LOGGER.info(String.format("Exported %d products with %d meshes to %s", nodes.count, meshes.count, target));
+    }
+
+    private static void write(FileChannel channel, CharSequence json) throws IOException {
+        writeFully(channel, StandardCharsets.UTF_8.encode(json.toString()));
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer data) throws IOException {
+        while (data.hasRemaining()) {
+            channel.write(data);
+        }
+    }
+
+    private static void transferFully(FileChannel from, long length, FileChannel to) throws IOException {
+        for (long position = 0; position < length; ) {
+            position += from.transferTo(position, length - position, to);
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        for (JsonSection section : new JsonSection[]{nodes, meshes, accessors, bufferViews}) {
+            if (section != null) {
+                section.close();
+            }
+        }
+        try {
+            if (bin != null) {
+                bin.close();
+            }
+        } catch (IOException ex) {
+            LOGGER.trace("Exception while closing " + binFile, ex);
+        }
+        for (Path file : files) {
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException ex) {
+                LOGGER.warn("Unable to remove " + file, ex);
+            }
+        }
+    }
+
+    // One top level JSON array, written element by element to its own file
+    private static class JsonSection {
+
+        private final String name;
+        private final Path file;
+        private final Writer writer;
+        private int count;
+
+        JsonSection(String name, Path file) throws IOException {
+            this.name = name;
+            this.file = file;
+            this.writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8);
+        }
+
+        int add(CharSequence element) throws IOException {
+            if (count > 0) {
+                writer.write(',');
+            }
+            writer.append(element);
+            return count++;
+        }
+
+        void transferTo(FileChannel target) throws IOException {
+            writer.flush();
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                transferFully(channel, channel.size(), target);
+            }
+        }
+
+        void close() {
+            try {
+                writer.close();
+            } catch (IOException ex) {
+                LOGGER.trace("Exception while closing " + file, ex);
+            }
+        }
+    }
+}
@@ -0,0 +1,211 @@
+package eu.dsconsultants.bimserver.bimserverbundle.impl;
+
+import eu.dsconsultants.bimserver.bimserverbundle.ProductIndex;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import org.bimserver.emf.IdEObject;
+import org.eclipse.emf.ecore.EClass;
+import org.eclipse.emf.ecore.EStructuralFeature;
+
+/*
+ * Product lookups built in one pass over the parsed products. Products are
+ * numbered by their position in the product list; express ids go through an
+ * IntIntMap, GlobalIds through an open addressing table of positions, and
+ * the members of every type and storey are kept as ranges of one int array.
+ * Attributes are looked up by name so both schemas are covered.
+ */
+class HashedProductIndex implements ProductIndex {
+
+    private static final int[] NONE = new int[0];
+    private static final int MAX_DEPTH = 64;
+    private final IdEObject[] products;
+    private final IntIntMap positions;
+    private final String[] guids;
+    private final int[] guidTable;
+    private final String[][] typeNames;
+    private final int[] typeStarts;
+    private final int[] typeMembers;
+    private final int[] storeys;
+    private final IntIntMap storeyGroups;
+    private final int[] storeyStarts;
+    private final int[] storeyMembers;
+
+    private HashedProductIndex(List<? extends IdEObject> products) {
+        int size = products.size();
+        this.products = products.toArray(new IdEObject[size]);
+        positions = new IntIntMap(size);
+        guids = new String[size];
+        guidTable = new int[Integer.highestOneBit(Math.max(4, size * 2 - 1)) << 1];
+        storeys = new int[size];
+        int[] typeCodes = new int[size];
+        Map<EClass, Integer> eClasses = new IdentityHashMap<>();
+        List<String[]> names = new ArrayList<>();
+        for (int position = 0; position < size; position++) {
+            IdEObject product = this.products[position];
+            positions.put(product.getExpressId(), position);
+            Object guid = get(product, "GlobalId");
+            if (guid instanceof String) {
+                guids[position] = (String) guid;
+                putGuid(position);
+            }
+            Integer typeCode = eClasses.get(product.eClass());
+            if (typeCode == null) {
+                typeCode = names.size();
+                eClasses.put(product.eClass(), typeCode);
+                names.add(typeNames(product.eClass()));
+            }
+            typeCodes[position] = typeCode;
+            storeys[position] = findStorey(product);
+        }
+        typeNames = names.toArray(new String[names.size()][]);
+        typeStarts = new int[typeNames.length + 1];
+        typeMembers = group(typeCodes, typeStarts);
+
+        storeyGroups = new IntIntMap(16);
+        int[] storeyCodes = new int[size];
+        for (int position = 0; position < size; position++) {
+            if (storeys[position] == -1) {
+                storeyCodes[position] = -1;
+                continue;
+            }
+            storeyCodes[position] = storeyGroups.get(storeys[position], storeyGroups.size());
+            if (storeyCodes[position] == storeyGroups.size()) {
+                storeyGroups.put(storeys[position], storeyCodes[position]);
+            }
+        }
+        storeyStarts = new int[storeyGroups.size() + 1];
+        storeyMembers = group(storeyCodes, storeyStarts);
+    }
+
+    static HashedProductIndex build(List<? extends IdEObject> products) {
+        return new HashedProductIndex(products);
+    }
+
+    // Counting sort of the express ids by group, starts receives the offset of
+    // every group and members without a group (-1) are left out
+    private int[] group(int[] codes, int[] starts) {
+        for (int code : codes) {
+            if (code >= 0) {
+                starts[code + 1]++;
+            }
+        }
+        for (int code = 1; code < starts.length; code++) {
+            starts[code] += starts[code - 1];
+        }
+        int[] members = new int[starts[starts.length - 1]];
+        int[] next = Arrays.copyOf(starts, starts.length - 1);
+        for (int position = 0; position < codes.length; position++) {
+            if (codes[position] >= 0) {
+                members[next[codes[position]]++] = products[position].getExpressId();
+            }
+        }
+        return members;
+    }
+
+    private void putGuid(int position) {
+        int mask = guidTable.length - 1;
+        for (int slot = guids[position].hashCode() & mask;; slot = (slot + 1) & mask) {
+            if (guidTable[slot] == 0) {
+                guidTable[slot] = position + 1;
+                return;
+            } else if (guids[guidTable[slot] - 1].equals(guids[position])) {
+                // Duplicate GlobalIds do occur, the first product keeps it
+                return;
+            }
+        }
+    }
+
+    private static String[] typeNames(EClass eClass) {
+        List<EClass> superTypes = eClass.getEAllSuperTypes();
+        String[] names = new String[superTypes.size() + 1];
+        names[0] = eClass.getName().toUpperCase(Locale.ROOT);
+        for (int i = 0; i < superTypes.size(); i++) {
+            names[i + 1] = superTypes.get(i).getName().toUpperCase(Locale.ROOT);
+        }
+        return names;
+    }
+
+    // Walks up through spatial containment and aggregation until a storey
+    private static int findStorey(IdEObject product) {
+        IdEObject current = product;
+        for (int depth = 0; depth < MAX_DEPTH; depth++) {
+            IdEObject parent = related(get(current, "ContainedInStructure"), "RelatingStructure");
+            if (parent == null) {
+                parent = related(get(current, "Decomposes"), "RelatingObject");
+            }
+            if (parent == null) {
+                return -1;
+            }
+            if ("IfcBuildingStorey".equals(parent.eClass().getName())) {
+                return parent.getExpressId();
+            }
+            current = parent;
+        }
+        return -1;
+    }
+
+    private static IdEObject related(Object relationships, String feature) {
+        if (!(relationships instanceof List) || ((List<?>) relationships).isEmpty()) {
+            return null;
+        }
+        Object related = get((IdEObject) ((List<?>) relationships).get(0), feature);
+        return related instanceof IdEObject ? (IdEObject) related : null;
+    }
+
+    private static Object get(IdEObject object, String name) {
+        EStructuralFeature feature = object.eClass().getEStructuralFeature(name);
+        return feature == null ? null : object.eGet(feature);
+    }
+
+    @Override
+    public int size() {
+        return products.length;
+    }
+
+    @Override
+    public IdEObject getProduct(int expressId) {
+        int position = positions.get(expressId, -1);
+        return position == -1 ? null : products[position];
+    }
+
+    @Override
+    public int findByGlobalId(String globalId) {
+        int mask = guidTable.length - 1;
+        for (int slot = globalId.hashCode() & mask; guidTable[slot] != 0; slot = (slot + 1) & mask) {
+            if (guids[guidTable[slot] - 1].equals(globalId)) {
+                return products[guidTable[slot] - 1].getExpressId();
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public int[] findByType(String ifcType) {
+        String name = ifcType.toUpperCase(Locale.ROOT);
+        int[] result = NONE;
+        for (int code = 0; code < typeNames.length; code++) {
+            if (Arrays.asList(typeNames[code]).contains(name)) {
+                int count = typeStarts[code + 1] - typeStarts[code];
+                result = Arrays.copyOf(result, result.length + count);
+                System.arraycopy(typeMembers, typeStarts[code], result, result.length - count, count);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public int[] findByStorey(int storeyExpressId) {
+        int group = storeyGroups.get(storeyExpressId, -1);
+        return group == -1 ? NONE : Arrays.copyOfRange(storeyMembers, storeyStarts[group], storeyStarts[group + 1]);
+    }
+
+    @Override
+    public int getStorey(int expressId) {
+        int position = positions.get(expressId, -1);
+        return position == -1 ? -1 : storeys[position];
+    }
+}
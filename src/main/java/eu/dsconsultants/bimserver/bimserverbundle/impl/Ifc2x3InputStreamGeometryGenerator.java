@@ -1,7 +1,11 @@
 package eu.dsconsultants.bimserver.bimserverbundle.impl;
 
 import java.io.InputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Consumer;
 import org.bimserver.emf.IfcModelInterface;
+import org.bimserver.models.geometry.GeometryInfo;
 import org.bimserver.models.ifc2x3tc1.IfcProduct;
 import org.bimserver.plugins.renderengine.RenderEngine;
 
@@ -11,11 +15,26 @@ public class Ifc2x3InputStreamGeometryGenerator extends AbstractInputStreamGeome
         super(model, in, renderEngine);
     }
 
+    public Ifc2x3InputStreamGeometryGenerator(IfcModelInterface model, InputStream in, long length, RenderEngine renderEngine) {
+        super(model, in, length, renderEngine);
+    }
+
+    static Map<Integer, Consumer<GeometryInfo>> geometryTargets(IfcModelInterface model) {
+        Map<Integer, Consumer<GeometryInfo>> targets = new LinkedHashMap<>();
+        for (IfcProduct ifcProduct : model.getAllWithSubTypes(IfcProduct.class)) {
+            if (ifcProduct.getRepresentation() != null && !ifcProduct.getRepresentation().getRepresentations().isEmpty()) {
+                targets.put(ifcProduct.getExpressId(), ifcProduct::setGeometry);
+            }
+        }
+        return targets;
+    }
+
     @Override
     protected void generateForAllIfcProducts() {
         for (IfcProduct ifcProduct : model.getAllWithSubTypes(IfcProduct.class)) {
             if (ifcProduct.getRepresentation() != null && !ifcProduct.getRepresentation().getRepresentations().isEmpty()) {
-                ifcProduct.setGeometry(generateGeometry(ifcProduct.getExpressId()));
+                ifcProduct.setGeometry(generateGeometry(ifcProduct.getExpressId(), ifcProduct.eClass().getName(),
+                        MappedRepresentations.instanceKey(ifcProduct)));
             }
         }
     }
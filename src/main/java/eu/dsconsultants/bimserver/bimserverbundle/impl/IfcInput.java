@@ -0,0 +1,124 @@
+package eu.dsconsultants.bimserver.bimserverbundle.impl;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.Enumeration;
+import java.util.Locale;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+
+abstract class IfcInput implements AutoCloseable {
+
+    private static final int GZIP_MAGIC = 0x8b1f;
+    private static final int ZIP_MAGIC = 0x4b50;
+    private final String fileName;
+
+    IfcInput(String fileName) {
+        this.fileName = fileName;
+    }
+
+    static IfcInput open(File file) throws IOException {
+        int magic = readMagic(file);
+        if (magic == GZIP_MAGIC) {
+            try (InputStream in = new GZIPInputStream(new FileInputStream(file), 64 * 1024)) {
+                return CompressedIfcInput.inflate(stripExtension(file.getName()), in);
+            }
+        } else if (magic == ZIP_MAGIC) {
+            try (ZipInputStream zis = new ZipInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024))) {
+                ZipEntry entry = findIfcEntry(zis);
+                return CompressedIfcInput.inflate(new File(entry.getName()).getName(), zis);
+            }
+        }
+        return MappedIfcInput.open(file);
+    }
+
+    // The STEP data of file as a plain stream, for reading the header without
+    // setting up an IfcInput
+    static InputStream openStream(File file) throws IOException {
+        int magic = readMagic(file);
+        if (magic == GZIP_MAGIC) {
+            return new GZIPInputStream(new FileInputStream(file), 64 * 1024);
+        } else if (magic == ZIP_MAGIC) {
+            ZipInputStream zis = new ZipInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024));
+            try {
+                findIfcEntry(zis);
+                return zis;
+            } catch (IOException | RuntimeException ex) {
+                zis.close();
+                throw ex;
+            }
+        }
+        return new BufferedInputStream(new FileInputStream(file), 64 * 1024);
+    }
+
+    // Size of the STEP data in file, taken from the gzip trailer or the zip
+    // directory so nothing has to be inflated
+    static long uncompressedLength(File file) throws IOException {
+        int magic = readMagic(file);
+        if (magic == GZIP_MAGIC) {
+            try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+                raf.seek(raf.length() - 4);
+                // ISIZE holds the length modulo 2^32 in little endian order
+                long size = Integer.reverseBytes(raf.readInt()) & 0xffffffffL;
+                return Math.max(size, file.length());
+            }
+        } else if (magic == ZIP_MAGIC) {
+            try (ZipFile zip = new ZipFile(file)) {
+                Enumeration<? extends ZipEntry> entries = zip.entries();
+                while (entries.hasMoreElements()) {
+                    ZipEntry entry = entries.nextElement();
+                    if (isIfcEntry(entry)) {
+                        return entry.getSize() < 0 ? file.length() : entry.getSize();
+                    }
+                }
+            }
+            throw new IOException("No .ifc entry found in archive");
+        }
+        return file.length();
+    }
+
+    private static int readMagic(File file) throws IOException {
+        try (InputStream in = new FileInputStream(file)) {
+            return in.read() | in.read() << 8;
+        }
+    }
+
+    private static boolean isIfcEntry(ZipEntry entry) {
+        return !entry.isDirectory() && entry.getName().toLowerCase(Locale.ROOT).endsWith(".ifc");
+    }
+
+    private static ZipEntry findIfcEntry(ZipInputStream zis) throws IOException {
+        ZipEntry entry;
+        while ((entry = zis.getNextEntry()) != null) {
+            if (isIfcEntry(entry)) {
+                return entry;
+            }
+        }
+        throw new IOException("No .ifc entry found in archive");
+    }
+
+    private static String stripExtension(String fileName) {
+        int dot = fileName.lastIndexOf('.');
+        return dot > 0 ? fileName.substring(0, dot) : fileName;
+    }
+
+    String getFileName() {
+        return fileName;
+    }
+
+    abstract long length() throws IOException;
+
+    abstract InputStream newInputStream() throws IOException;
+
+    abstract int read(long position, byte[] b, int off, int len) throws IOException;
+
+    @Override
+    public void close() throws IOException {
+    }
+}
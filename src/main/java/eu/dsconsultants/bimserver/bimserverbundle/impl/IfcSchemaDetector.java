@@ -0,0 +1,58 @@
+package eu.dsconsultants.bimserver.bimserverbundle.impl;
+
+import eu.dsconsultants.bimserver.bimserverbundle.BimServerApiException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import org.bimserver.emf.Schema;
+
+class IfcSchemaDetector {
+
+    private static final int MAX_HEADER_SIZE = 64 * 1024;
+
+    private IfcSchemaDetector() {
+    }
+
+    static Schema detect(IfcInput input) throws BimServerApiException {
+        try (InputStream in = input.newInputStream()) {
+            return detect(in, input.getFileName());
+        } catch (IOException ex) {
+            throw new BimServerApiException("Unable to read the header of " + input.getFileName(), ex);
+        }
+    }
+
+    static Schema detect(File file) throws BimServerApiException {
+        try (InputStream in = IfcInput.openStream(file)) {
+            return detect(in, file.getName());
+        } catch (IOException ex) {
+            throw new BimServerApiException("Unable to read the header of " + file.getName(), ex);
+        }
+    }
+
+    static Schema detect(InputStream in, String fileName) throws IOException, BimServerApiException {
+        byte[] header = new byte[MAX_HEADER_SIZE];
+        int length = 0;
+        int read;
+        while (length < header.length && (read = in.read(header, length, header.length - length)) != -1) {
+            length += read;
+        }
+        String text = new String(header, 0, length, StandardCharsets.ISO_8859_1).toUpperCase(Locale.ROOT);
+        int fileSchema = text.indexOf("FILE_SCHEMA");
+        if (fileSchema != -1) {
+            int start = text.indexOf('\'', fileSchema);
+            int end = start == -1 ? -1 : text.indexOf('\'', start + 1);
+            if (end != -1) {
+                String schemaName = text.substring(start + 1, end).trim();
+                if (schemaName.startsWith("IFC2X3")) {
+                    return Schema.IFC2X3TC1;
+                } else if (schemaName.startsWith("IFC4")) {
+                    return Schema.IFC4;
+                }
+                throw new BimServerApiException("Unsupported schema " + schemaName + " in " + fileName);
+            }
+        }
+        throw new BimServerApiException("No FILE_SCHEMA found in the header of " + fileName);
+    }
+}
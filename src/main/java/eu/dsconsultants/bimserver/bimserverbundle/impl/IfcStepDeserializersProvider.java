@@ -1,5 +1,7 @@
 package eu.dsconsultants.bimserver.bimserverbundle.impl;
 
+import org.bimserver.emf.PackageMetaData;
+import org.bimserver.emf.Schema;
 import org.bimserver.ifc.step.deserializer.IfcStepDeserializer;
 
 interface IfcStepDeserializersProvider {
@@ -7,4 +9,6 @@ interface IfcStepDeserializersProvider {
     IfcStepDeserializer getIfc2x3tc1StepDeserializer();
 
     IfcStepDeserializer getIfc4StepDeserializer();
+
+    PackageMetaData getPackageMetaData(Schema schema);
 }
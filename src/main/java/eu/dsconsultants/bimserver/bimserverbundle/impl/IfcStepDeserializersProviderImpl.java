@@ -31,4 +31,9 @@ class IfcStepDeserializersProviderImpl implements IfcStepDeserializersProvider {
         return deserializer;
     }
 
+    @Override
+    public PackageMetaData getPackageMetaData(Schema schema) {
+        return schema == Schema.IFC2X3TC1 ? ifc2x3MetaData : ifc4MetaData;
+    }
+
 }
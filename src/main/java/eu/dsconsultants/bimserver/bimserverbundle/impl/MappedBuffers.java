@@ -0,0 +1,68 @@
+package eu.dsconsultants.bimserver.bimserverbundle.impl;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.MappedByteBuffer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/*
+ * Releases file mappings right away instead of when their buffers happen to
+ * be collected, which keeps the file open and, for a deleted file, its disk
+ * space in use. Looked up through reflection as the bundle is built for Java
+ * 8: Unsafe.invokeCleaner on Java 9 and newer, the buffer's cleaner before.
+ * Any view of an unmapped buffer must not be touched any more, reading it
+ * crashes the JVM, so only buffers whose views never leave their owner may
+ * be passed here.
+ */
+class MappedBuffers {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(MappedBuffers.class);
+    private static final Object UNSAFE = findUnsafe();
+    private static final Method INVOKE_CLEANER = findMethod(UNSAFE, "invokeCleaner", java.nio.ByteBuffer.class);
+
+    private MappedBuffers() {
+    }
+
+    static void unmap(MappedByteBuffer buffer) {
+        if (buffer == null) {
+            return;
+        }
+        try {
+            if (INVOKE_CLEANER != null) {
+                INVOKE_CLEANER.invoke(UNSAFE, buffer);
+                return;
+            }
+            Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+            cleanerMethod.setAccessible(true);
+            Object cleaner = cleanerMethod.invoke(buffer);
+            if (cleaner != null) {
+                cleaner.getClass().getMethod("clean").invoke(cleaner);
+            }
+        } catch (IllegalAccessException | InvocationTargetException | NoSuchMethodException | RuntimeException e) {
+            LOGGER.trace("Unable to unmap buffer, leaving it to the garbage collector", e);
+        }
+    }
+
+    private static Object findUnsafe() {
+        try {
+            Field field = Class.forName("sun.misc.Unsafe").getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            return field.get(null);
+        } catch (ClassNotFoundException | NoSuchFieldException | IllegalAccessException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    private static Method findMethod(Object target, String name, Class<?>... parameterTypes) {
+        if (target == null) {
+            return null;
+        }
+        try {
+            return target.getClass().getMethod(name, parameterTypes);
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,192 @@
+package eu.dsconsultants.bimserver.bimserverbundle.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+class MappedIfcInput extends IfcInput {
+
+    private static final long SEGMENT_SIZE = 1L << 30;
+    private final long length;
+    private MappedByteBuffer[] segments;
+    // Open streams and reads in progress, the segments are unmapped when the
+    // last of them finishes after close
+    private int users;
+    private boolean closed;
+
+    private MappedIfcInput(String fileName, long length, MappedByteBuffer[] segments) {
+        super(fileName);
+        this.length = length;
+        this.segments = segments;
+    }
+
+    static MappedIfcInput open(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long length = channel.size();
+            MappedByteBuffer[] segments = new MappedByteBuffer[(int) ((length + SEGMENT_SIZE - 1) / SEGMENT_SIZE)];
+            for (int i = 0; i < segments.length; i++) {
+                long position = i * SEGMENT_SIZE;
+                segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(SEGMENT_SIZE, length - position));
+            }
+            // The mapping stays valid after the channel has been closed
+            return new MappedIfcInput(file.getName(), length, segments);
+        }
+    }
+
+    @Override
+    long length() {
+        return length;
+    }
+
+    @Override
+    InputStream newInputStream() throws IOException {
+        MappedByteBuffer[] mapped = acquire();
+        ByteBuffer[] views = new ByteBuffer[mapped.length];
+        for (int i = 0; i < mapped.length; i++) {
+            views[i] = mapped[i].duplicate();
+        }
+        return new ByteBufferInputStream(views) {
+            @Override
+            public void close() {
+                if (!isClosed()) {
+                    super.close();
+                    release();
+                }
+            }
+        };
+    }
+
+    @Override
+    int read(long position, byte[] b, int off, int len) throws IOException {
+        if (position >= length) {
+            return -1;
+        }
+        MappedByteBuffer[] mapped = acquire();
+        try {
+            ByteBuffer view = mapped[(int) (position / SEGMENT_SIZE)].duplicate();
+            view.position((int) (position % SEGMENT_SIZE));
+            int n = Math.min(len, view.remaining());
+            view.get(b, off, n);
+            return n;
+        } finally {
+            release();
+        }
+    }
+
+    private synchronized MappedByteBuffer[] acquire() throws IOException {
+        if (closed) {
+            throw new IOException("Input " + getFileName() + " has been closed");
+        }
+        users++;
+        return segments;
+    }
+
+    private void release() {
+        MappedByteBuffer[] unmap = null;
+        synchronized (this) {
+            if (--users == 0 && closed) {
+                unmap = segments;
+                segments = null;
+            }
+        }
+        unmapAll(unmap);
+    }
+
+    // Streams that are still open keep the segments mapped until they are
+    // closed, they can no longer be read once the input is closed
+    @Override
+    public void close() {
+        MappedByteBuffer[] unmap = null;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (users == 0) {
+                unmap = segments;
+                segments = null;
+            }
+        }
+        unmapAll(unmap);
+    }
+
+    private static void unmapAll(MappedByteBuffer[] segments) {
+        if (segments != null) {
+            for (MappedByteBuffer segment : segments) {
+                MappedBuffers.unmap(segment);
+            }
+        }
+    }
+
+    static class ByteBufferInputStream extends InputStream {
+
+        private final ByteBuffer[] buffers;
+        private int current;
+        private boolean closed;
+
+        ByteBufferInputStream(ByteBuffer... buffers) {
+            this.buffers = buffers;
+        }
+
+        boolean isClosed() {
+            return closed;
+        }
+
+        private ByteBuffer currentBuffer() {
+            if (closed) {
+                return null;
+            }
+            while (current < buffers.length && !buffers[current].hasRemaining()) {
+                current++;
+            }
+            return current < buffers.length ? buffers[current] : null;
+        }
+
+        @Override
+        public int read() {
+            ByteBuffer buffer = currentBuffer();
+            return buffer == null ? -1 : buffer.get() & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) {
+                return 0;
+            }
+            ByteBuffer buffer = currentBuffer();
+            if (buffer == null) {
+                return -1;
+            }
+            int n = Math.min(len, buffer.remaining());
+            buffer.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public long skip(long n) {
+            long skipped = 0;
+            ByteBuffer buffer;
+            while (skipped < n && (buffer = currentBuffer()) != null) {
+                int step = (int) Math.min(n - skipped, buffer.remaining());
+                buffer.position(buffer.position() + step);
+                skipped += step;
+            }
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            ByteBuffer buffer = currentBuffer();
+            return buffer == null ? 0 : buffer.remaining();
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package eu.dsconsultants.bimserver.bimserverbundle.impl;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.bimserver.emf.IdEObject;
+import org.eclipse.emf.ecore.EStructuralFeature;
+
+/*
+ * Recognizes products whose shape consists of IfcMappedItems only. In its own
+ * coordinate system such a product's mesh depends on nothing but the mapped
+ * representations and the mapping targets, so products with equal keys get
+ * the same mesh from the engine and only differ in their placement. Products
+ * with openings are left out, their mesh has the openings cut from it, and
+ * styles and material associations are part of the key since they decide the
+ * colors. Attributes are looked up by name so both schemas are covered.
+ */
+final class MappedRepresentations {
+
+    private static final String[] OPERATOR_FEATURES = {"Axis1", "Axis2", "Axis3", "LocalOrigin", "Scale", "Scale2", "Scale3"};
+
+    private MappedRepresentations() {
+    }
+
+    static Map<Integer, String> instanceKeys(List<? extends IdEObject> products) {
+        Map<Integer, String> keys = new HashMap<>();
+        for (IdEObject product : products) {
+            String key = instanceKey(product);
+            if (key != null) {
+                keys.put(product.getExpressId(), key);
+            }
+        }
+        return keys;
+    }
+
+    // Null when the product's geometry is not made of mapped items alone
+    static String instanceKey(IdEObject product) {
+        if (!list(get(product, "HasOpenings")).isEmpty()) {
+            return null;
+        }
+        Object representation = get(product, "Representation");
+        if (!(representation instanceof IdEObject)) {
+            return null;
+        }
+        StringBuilder key = new StringBuilder();
+        for (Object shape : list(get((IdEObject) representation, "Representations"))) {
+            key.append('[');
+            for (Object item : list(get((IdEObject) shape, "Items"))) {
+                IdEObject mappedItem = (IdEObject) item;
+                Object source = get(mappedItem, "MappingSource");
+                if (!"IfcMappedItem".equals(mappedItem.eClass().getName()) || !(source instanceof IdEObject)) {
+                    return null;
+                }
+                key.append(((IdEObject) source).getExpressId()).append('@');
+                appendOperator(key, get(mappedItem, "MappingTarget"));
+                for (Object style : list(get(mappedItem, "StyledByItem"))) {
+                    key.append('~').append(((IdEObject) style).getExpressId());
+                }
+                key.append(';');
+            }
+            key.append(']');
+        }
+        if (key.length() == 0) {
+            return null;
+        }
+        for (Object association : list(get(product, "HasAssociations"))) {
+            key.append('+').append(((IdEObject) association).getExpressId());
+        }
+        return key.toString();
+    }
+
+    // Mapping targets are compared by value, exporters tend to write a new
+    // operator for every occurrence
+    private static void appendOperator(StringBuilder key, Object operator) {
+        if (!(operator instanceof IdEObject)) {
+            key.append('-');
+            return;
+        }
+        IdEObject object = (IdEObject) operator;
+        key.append(object.eClass().getName());
+        for (String feature : OPERATOR_FEATURES) {
+            key.append(',');
+            appendValue(key, get(object, feature));
+        }
+    }
+
+    private static void appendValue(StringBuilder key, Object value) {
+        if (value instanceof IdEObject) {
+            IdEObject object = (IdEObject) value;
+            Object ratios = get(object, "DirectionRatios");
+            appendValue(key, ratios != null ? ratios : get(object, "Coordinates"));
+        } else if (value instanceof List) {
+            key.append('(');
+            for (Object element : (List<?>) value) {
+                appendValue(key, element);
+                key.append(' ');
+            }
+            key.append(')');
+        } else {
+            key.append(value);
+        }
+    }
+
+    private static Object get(IdEObject object, String name) {
+        EStructuralFeature feature = object.eClass().getEStructuralFeature(name);
+        return feature == null ? null : object.eGet(feature);
+    }
+
+    private static List<?> list(Object value) {
+        return value instanceof List ? (List<?>) value : Collections.emptyList();
+    }
+}
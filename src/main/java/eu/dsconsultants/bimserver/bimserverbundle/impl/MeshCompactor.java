@@ -0,0 +1,155 @@
+package eu.dsconsultants.bimserver.bimserverbundle.impl;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/*
+ * Welds vertices with identical position, normal and colour and writes the
+ * indices with the smallest width that can address the remaining vertices.
+ */
+class MeshCompactor {
+
+    static final int MAX_SHORT_INDEX_VERTICES = 1 << 16;
+
+    private final float[] vertices;
+    private final float[] normals;
+    private final float[] colors;
+    private final int[] indices;
+
+    MeshCompactor(float[] vertices, float[] normals, float[] colors, int[] indices) {
+        this.vertices = vertices;
+        this.normals = normals;
+        this.colors = colors;
+        this.indices = indices;
+    }
+
+    float[] getVertices() {
+        return vertices;
+    }
+
+    float[] getNormals() {
+        return normals;
+    }
+
+    float[] getColors() {
+        return colors;
+    }
+
+    int[] getIndices() {
+        return indices;
+    }
+
+    int getVertexCount() {
+        return vertices.length / 3;
+    }
+
+    static MeshCompactor weld(float[] vertices, float[] normals, float[] colors, int[] indices) {
+        int vertexCount = vertices.length / 3;
+        boolean hasNormals = normals != null && normals.length == vertices.length;
+        boolean hasColors = colors != null && colors.length == vertexCount * 4;
+        if ((normals != null && !hasNormals) || (colors != null && !hasColors)) {
+            // Attributes that do not line up with the vertices cannot be
+            // welded along with them, the mesh is kept as it came
+            return new MeshCompactor(vertices, normals, colors, indices);
+        }
+        int[] table = new int[Integer.highestOneBit(Math.max(2, vertexCount * 2 - 1)) << 1];
+        Arrays.fill(table, -1);
+        int mask = table.length - 1;
+        int[] remap = new int[vertexCount];
+        int[] firstOccurrence = new int[vertexCount];
+        int unique = 0;
+        for (int v = 0; v < vertexCount; v++) {
+            int slot = hash(vertices, normals, colors, v, hasNormals, hasColors) & mask;
+            while (true) {
+                int candidate = table[slot];
+                if (candidate == -1) {
+                    table[slot] = v;
+                    firstOccurrence[unique] = v;
+                    remap[v] = unique++;
+                    break;
+                } else if (same(vertices, normals, colors, candidate, v, hasNormals, hasColors)) {
+                    remap[v] = remap[candidate];
+                    break;
+                }
+                slot = (slot + 1) & mask;
+            }
+        }
+        if (unique == vertexCount) {
+            return new MeshCompactor(vertices, normals, colors, indices);
+        }
+        float[] weldedVertices = new float[unique * 3];
+        float[] weldedNormals = hasNormals ? new float[unique * 3] : normals;
+        float[] weldedColors = hasColors ? new float[unique * 4] : colors;
+        for (int u = 0; u < unique; u++) {
+            int v = firstOccurrence[u];
+            System.arraycopy(vertices, v * 3, weldedVertices, u * 3, 3);
+            if (hasNormals) {
+                System.arraycopy(normals, v * 3, weldedNormals, u * 3, 3);
+            }
+            if (hasColors) {
+                System.arraycopy(colors, v * 4, weldedColors, u * 4, 4);
+            }
+        }
+        int[] weldedIndices = new int[indices.length];
+        for (int i = 0; i < indices.length; i++) {
+            weldedIndices[i] = remap[indices[i]];
+        }
+        return new MeshCompactor(weldedVertices, weldedNormals, weldedColors, weldedIndices);
+    }
+
+    // 16-bit little endian indices when every vertex can be addressed, 32-bit otherwise
+    static byte[] indicesToByteArray(int[] indices, int vertexCount) {
+        if (indices == null) {
+            return null;
+        }
+        ByteBuffer buffer;
+        if (vertexCount <= MAX_SHORT_INDEX_VERTICES) {
+            buffer = ByteBuffer.wrap(new byte[indices.length * 2]).order(ByteOrder.LITTLE_ENDIAN);
+            for (int i : indices) {
+                buffer.putShort((short) i);
+            }
+        } else {
+            buffer = ByteBuffer.wrap(new byte[indices.length * 4]).order(ByteOrder.LITTLE_ENDIAN);
+            for (int i : indices) {
+                buffer.putInt(i);
+            }
+        }
+        return buffer.array();
+    }
+
+    private static int hash(float[] vertices, float[] normals, float[] colors, int v, boolean hasNormals, boolean hasColors) {
+        int h = 1;
+        for (int i = v * 3; i < v * 3 + 3; i++) {
+            h = 31 * h + Float.floatToIntBits(vertices[i]);
+            if (hasNormals) {
+                h = 31 * h + Float.floatToIntBits(normals[i]);
+            }
+        }
+        if (hasColors) {
+            for (int i = v * 4; i < v * 4 + 4; i++) {
+                h = 31 * h + Float.floatToIntBits(colors[i]);
+            }
+        }
+        return h ^ (h >>> 16);
+    }
+
+    private static boolean same(float[] vertices, float[] normals, float[] colors, int a, int b, boolean hasNormals, boolean hasColors) {
+        for (int i = 0; i < 3; i++) {
+            if (Float.floatToIntBits(vertices[a * 3 + i]) != Float.floatToIntBits(vertices[b * 3 + i])) {
+                return false;
+            }
+            if (hasNormals && Float.floatToIntBits(normals[a * 3 + i]) != Float.floatToIntBits(normals[b * 3 + i])) {
+                return false;
+            }
+        }
+        if (hasColors) {
+            for (int i = 0; i < 4; i++) {
+                if (Float.floatToIntBits(colors[a * 4 + i]) != Float.floatToIntBits(colors[b * 4 + i])) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+}
@@ -19,7 +19,15 @@ public class ModuleActivator implements BundleActivator {
 
     private static final Hashtable<String, Object> EMPTY_PROPERTIES = new Hashtable<>();
     private static final Logger LOG = LoggerFactory.getLogger(ModuleActivator.class);
+    private static final String MAX_CONCURRENT_PARSES_PROPERTY = "eu.dsconsultants.bimserver.parser.maxConcurrency";
+    private static final String MAX_QUEUED_PARSES_PROPERTY = "eu.dsconsultants.bimserver.parser.maxQueued";
+    private static final String PARSER_MEMORY_BUDGET_PROPERTY = "eu.dsconsultants.bimserver.parser.memoryBudgetMb";
+    private static final String SESSION_IDLE_TTL_PROPERTY = "eu.dsconsultants.bimserver.parser.sessionIdleTtlSeconds";
+    private static final String MAX_SESSIONS_PROPERTY = "eu.dsconsultants.bimserver.parser.maxSessions";
+    static final String WORKER_CLASSPATH_PROPERTY = "eu.dsconsultants.bimserver.parser.workerClasspath";
     private final List<ServiceRegistration> registrations = new ArrayList<>();
+    private ParseAdmissionController admissionController;
+    private EngineSessions engineSessions;
 
     @Override
     public void start(BundleContext bc) throws Exception {
@@ -43,7 +51,21 @@ public class ModuleActivator implements BundleActivator {
             registrations.add(bc.registerService(GeomServerExecutablePathProvider.class, geomServerPathProvider, EMPTY_PROPERTIES));
 
             LOG.info("Initializing BimServerIfcParser service");
-            BimServerIfcParser ifcParser = new BimServerIfcParserImpl(geomServerPathProvider, deserializersProvider);
+            admissionController = new ParseAdmissionController(
+                    getIntProperty(bc, MAX_CONCURRENT_PARSES_PROPERTY, Math.max(1, Runtime.getRuntime().availableProcessors() / 2), 1),
+                    getIntProperty(bc, MAX_QUEUED_PARSES_PROPERTY, 16, 0),
+                    getIntProperty(bc, PARSER_MEMORY_BUDGET_PROPERTY, (int) Math.max(1, Runtime.getRuntime().maxMemory() / 2 / (1024 * 1024)), 1));
+            engineSessions = new EngineSessions(getIntProperty(bc, SESSION_IDLE_TTL_PROPERTY, 300),
+                    getIntProperty(bc, MAX_SESSIONS_PROPERTY, 8, 1), admissionController);
+            // Geometry workers need this bundle, the BIMserver model and slf4j on their
+            // classpath. The framework's own classpath holds none of them, so worker
+            // mode is unavailable unless it is given
+            String workerClasspath = bc.getProperty(WORKER_CLASSPATH_PROPERTY);
+            if (workerClasspath != null && workerClasspath.trim().isEmpty()) {
+                workerClasspath = null;
+            }
+            BimServerIfcParser ifcParser = new BimServerIfcParserImpl(geomServerPathProvider, deserializersProvider, admissionController,
+                    engineSessions, workerClasspath);
             registrations.add(bc.registerService(BimServerIfcParser.class, ifcParser, EMPTY_PROPERTIES));
         }
     }
@@ -53,6 +75,36 @@ public class ModuleActivator implements BundleActivator {
         LOG.info("Unregistering services");
         registrations.forEach(ServiceRegistration::unregister);
         registrations.clear();
+        if (admissionController != null) {
+            admissionController.close();
+            admissionController = null;
+        }
+        if (engineSessions != null) {
+            engineSessions.close();
+            engineSessions = null;
+        }
+        GeomServerProcessReaper.shutdown();
+    }
+
+    private static int getIntProperty(BundleContext bc, String name, int defaultValue) {
+        return getIntProperty(bc, name, defaultValue, Integer.MIN_VALUE);
+    }
+
+    private static int getIntProperty(BundleContext bc, String name, int defaultValue, int minimum) {
+        String value = bc.getProperty(name);
+        if (value == null || value.trim().isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            int parsed = Integer.parseInt(value.trim());
+            if (parsed >= minimum) {
+                return parsed;
+            }
+        } catch (NumberFormatException ex) {
+            LOG.trace("Not a number", ex);
+        }
+        LOG.warn(String.format("Invalid value '%s' for %s, using %d", value, name, defaultValue));
+        return defaultValue;
     }
 
 }
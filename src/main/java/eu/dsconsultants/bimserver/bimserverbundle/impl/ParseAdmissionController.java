@@ -0,0 +1,241 @@
+package eu.dsconsultants.bimserver.bimserverbundle.impl;
+
+import eu.dsconsultants.bimserver.bimserverbundle.BimServerApiException;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.bimserver.emf.Schema;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/*
+ * Admits parses in arrival order once a parser thread and their estimated
+ * memory are both available. Waiting happens in the controller's own queue,
+ * a job only reaches the thread pool when it can start, so pool threads never
+ * block on memory. Engine sessions reserve memory from the same budget for as
+ * long as they stay open.
+ */
+class ParseAdmissionController implements AutoCloseable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ParseAdmissionController.class);
+    private static final long MB = 1024 * 1024;
+    // Rough heap needed per byte of STEP input for the EMF model plus geometry
+    private static final long IFC2X3TC1_MEMORY_FACTOR = 12;
+    private static final long IFC4_MEMORY_FACTOR = 15;
+
+    private final ExecutorService executor;
+    private final int maxConcurrency;
+    private final int maxQueued;
+    private final int memoryBudgetMb;
+    private final Deque<Pending> pending = new ArrayDeque<>();
+    private int running = 0;
+    private int availableMb;
+    private boolean closed = false;
+
+    @FunctionalInterface
+    interface ParseTask<T> {
+
+        T call() throws BimServerApiException;
+    }
+
+    // Memory held by an open engine session, given back on close
+    final class Reservation implements AutoCloseable {
+
+        private final int permits;
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        private Reservation(int permits) {
+            this.permits = permits;
+        }
+
+        @Override
+        public void close() {
+            if (released.compareAndSet(false, true)) {
+                finished(permits, false);
+            }
+        }
+    }
+
+    private static class Pending {
+
+        private final int permits;
+        private final boolean needsThread;
+        private final CompletableFuture<?> future;
+        private final Runnable start;
+
+        Pending(int permits, boolean needsThread, CompletableFuture<?> future, Runnable start) {
+            this.permits = permits;
+            this.needsThread = needsThread;
+            this.future = future;
+            this.start = start;
+        }
+    }
+
+    ParseAdmissionController(int maxConcurrency, int maxQueued, int memoryBudgetMb) {
+        if (maxConcurrency < 1) {
+            throw new IllegalArgumentException("maxConcurrency must be at least 1, was " + maxConcurrency);
+        }
+        if (maxQueued < 0) {
+            throw new IllegalArgumentException("maxQueued must not be negative, was " + maxQueued);
+        }
+        if (memoryBudgetMb < 1) {
+            throw new IllegalArgumentException("memoryBudgetMb must be at least 1, was " + memoryBudgetMb);
+        }
+        AtomicInteger threadCounter = new AtomicInteger();
+        // Never holds more than maxConcurrency jobs, admission happens before
+        this.executor = new ThreadPoolExecutor(maxConcurrency, maxConcurrency, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(), runnable -> {
+                    Thread thread = new Thread(runnable, "BimServerIfcParser-" + threadCounter.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        this.maxConcurrency = maxConcurrency;
+        this.maxQueued = maxQueued;
+        this.memoryBudgetMb = memoryBudgetMb;
+        this.availableMb = memoryBudgetMb;
+    }
+
+    <T> CompletableFuture<T> submit(File file, Schema schema, ParseTask<T> task) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        int permits = estimateMemoryMb(file, schema);
+        admit(file, new Pending(permits, true, future, () -> executor.execute(() -> run(file, permits, task, future))));
+        return future;
+    }
+
+    // Blocks until the memory for keeping the model open is available
+    Reservation reserve(File file, Schema schema) throws BimServerApiException {
+        CompletableFuture<Reservation> future = new CompletableFuture<>();
+        int permits = estimateMemoryMb(file, schema);
+        admit(file, new Pending(permits, false, future, () -> future.complete(new Reservation(permits))));
+        try {
+            return future.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            if (!future.cancel(false) && !future.isCompletedExceptionally()) {
+                future.join().close();
+            }
+            throw new BimServerApiException("Interrupted while waiting for memory to open " + file.getName(), ex);
+        } catch (ExecutionException ex) {
+            throw ex.getCause() instanceof BimServerApiException
+                    ? (BimServerApiException) ex.getCause()
+                    : new BimServerApiException(ex.getCause());
+        } catch (CancellationException ex) {
+            throw new BimServerApiException("Opening " + file.getName() + " was cancelled", ex);
+        }
+    }
+
+    private synchronized void admit(File file, Pending job) {
+        if (closed) {
+            job.future.completeExceptionally(new BimServerApiException("Parser has been shut down, rejecting " + file.getName()));
+            return;
+        }
+        // Jobs cancelled while waiting do not take up queue space
+        pending.removeIf(waiting -> waiting.future.isDone());
+        if (pending.isEmpty() && canStart(job)) {
+            start(job);
+        } else if (pending.size() >= maxQueued) {
+            job.future.completeExceptionally(new BimServerApiException("Parser queue is full, rejecting " + file.getName()));
+        } else {
+            pending.add(job);
+        }
+    }
+
+    private boolean canStart(Pending job) {
+        return job.permits <= availableMb && (!job.needsThread || running < maxConcurrency);
+    }
+
+    private void start(Pending job) {
+        availableMb -= job.permits;
+        if (job.needsThread) {
+            running++;
+        }
+        job.start.run();
+    }
+
+    private synchronized void finished(int permits, boolean hadThread) {
+        availableMb += permits;
+        if (hadThread) {
+            running--;
+        }
+        if (closed) {
+            return;
+        }
+        // First come first served, a large model at the head is not overtaken
+        while (!pending.isEmpty()) {
+            Pending head = pending.peek();
+            if (head.future.isDone()) {
+                pending.poll();
+            } else if (canStart(head)) {
+                start(pending.poll());
+            } else {
+                break;
+            }
+        }
+    }
+
+    private <T> void run(File file, int permits, ParseTask<T> task, CompletableFuture<T> future) {
+        try {
+            if (!future.isCancelled()) {
+                LOG.debug("Parsing {} with an estimated {} MB", file.getName(), permits);
+                future.complete(task.call());
+            }
+        } catch (BimServerApiException | RuntimeException ex) {
+            future.completeExceptionally(ex);
+        } finally {
+            finished(permits, true);
+        }
+    }
+
+    int estimateMemoryMb(File file, Schema schema) {
+        if (schema == null) {
+            schema = detectSchema(file);
+        }
+        // Without a known schema assume the more expensive one
+        long factor = schema == Schema.IFC2X3TC1 ? IFC2X3TC1_MEMORY_FACTOR : IFC4_MEMORY_FACTOR;
+        long estimate = (stepLength(file) * factor + MB - 1) / MB;
+        // A model larger than the whole budget is admitted on its own rather than never
+        return (int) Math.max(1, Math.min(estimate, memoryBudgetMb));
+    }
+
+    // Compressed input is estimated by its inflated size, the model is built from that
+    private static long stepLength(File file) {
+        try {
+            return IfcInput.uncompressedLength(file);
+        } catch (IOException ex) {
+            LOG.debug("Unable to read the uncompressed size of " + file.getName(), ex);
+            return file.length();
+        }
+    }
+
+    // The parse itself reports an unreadable or unsupported file
+    private static Schema detectSchema(File file) {
+        try {
+            return IfcSchemaDetector.detect(file);
+        } catch (BimServerApiException ex) {
+            LOG.debug("Unable to detect the schema of " + file.getName(), ex);
+            return null;
+        }
+    }
+
+    @Override
+    public void close() {
+        synchronized (this) {
+            closed = true;
+            for (Pending job : pending) {
+                job.future.completeExceptionally(new BimServerApiException("Parser has been shut down"));
+            }
+            pending.clear();
+        }
+        executor.shutdownNow();
+    }
+}
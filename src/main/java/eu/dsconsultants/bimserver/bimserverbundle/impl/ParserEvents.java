@@ -0,0 +1,148 @@
+package eu.dsconsultants.bimserver.bimserverbundle.impl;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/*
+ * Flight recorder events for the parser and the IfcOpenShell engine. JFR is
+ * optional: callers check ENABLED before touching an event class, so nothing
+ * of jdk.jfr is resolved on runtimes or in frameworks that do not provide it.
+ */
+final class ParserEvents {
+
+    static final boolean ENABLED = isFlightRecorderAvailable();
+
+    private ParserEvents() {
+    }
+
+    private static boolean isFlightRecorderAvailable() {
+        try {
+            Class.forName("jdk.jfr.Event", false, ParserEvents.class.getClassLoader());
+            return true;
+        } catch (ClassNotFoundException | LinkageError ex) {
+            return false;
+        }
+    }
+
+    @Name("eu.dsconsultants.bimserver.Parse")
+    @Label("IFC Parse")
+    @Category({"BIMserver Bundle", "Parser"})
+    @StackTrace(false)
+    static class ParseEvent extends Event {
+
+        @Label("File")
+        String file;
+
+        @Label("Schema")
+        String schema;
+
+        @Label("Input Size")
+        @DataAmount
+        long bytes;
+
+        @Label("Products")
+        int products;
+
+        @Label("Triangles")
+        long triangles;
+    }
+
+    @Name("eu.dsconsultants.bimserver.EngineProcess")
+    @Label("IfcGeomServer Process")
+    @Category({"BIMserver Bundle", "Engine"})
+    @StackTrace(false)
+    static class EngineProcessEvent extends Event {
+
+        @Label("Executable")
+        String executable;
+
+        @Label("Action")
+        String action;
+    }
+
+    @Name("eu.dsconsultants.bimserver.ModelUpload")
+    @Label("Model Upload")
+    @Category({"BIMserver Bundle", "Engine"})
+    @StackTrace(false)
+    static class ModelUploadEvent extends Event {
+
+        @Label("Size")
+        @DataAmount
+        long bytes;
+    }
+
+    @Name("eu.dsconsultants.bimserver.GeneralGeometry")
+    @Label("Generate General Geometry")
+    @Category({"BIMserver Bundle", "Engine"})
+    @StackTrace(false)
+    static class GeneralGeometryEvent extends Event {
+    }
+
+    @Name("eu.dsconsultants.bimserver.Tessellation")
+    @Label("Entity Tessellation")
+    @Category({"BIMserver Bundle", "Engine"})
+    @StackTrace(false)
+    static class TessellationEvent extends Event {
+
+        @Label("Express Id")
+        int expressId;
+
+        @Label("IFC Type")
+        String ifcType;
+
+        @Label("Triangles")
+        int triangles;
+
+        @Label("Geometry Size")
+        @DataAmount
+        long bytes;
+    }
+
+    // One for the whole model, without an IFC type, and one per IFC type
+    @Name("eu.dsconsultants.bimserver.GeometryMemory")
+    @Label("Geometry Memory")
+    @Category({"BIMserver Bundle", "Parser"})
+    @StackTrace(false)
+    static class GeometryMemoryEvent extends Event {
+
+        @Label("File")
+        String file;
+
+        @Label("IFC Type")
+        String ifcType;
+
+        @Label("Off-Heap")
+        boolean offHeap;
+
+        @Label("Products")
+        int products;
+
+        @Label("Vertices")
+        @DataAmount
+        long vertexBytes;
+
+        @Label("Normals")
+        @DataAmount
+        long normalBytes;
+
+        @Label("Indices")
+        @DataAmount
+        long indexBytes;
+
+        @Label("Colors")
+        @DataAmount
+        long colorBytes;
+
+        @Label("Transformations")
+        @DataAmount
+        long transformationBytes;
+
+        @Label("Shared")
+        @DataAmount
+        long sharedBytes;
+    }
+}
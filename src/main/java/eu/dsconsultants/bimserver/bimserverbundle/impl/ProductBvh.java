@@ -0,0 +1,311 @@
+package eu.dsconsultants.bimserver.bimserverbundle.impl;
+
+import eu.dsconsultants.bimserver.bimserverbundle.ProductSpatialIndex;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+import org.bimserver.emf.IdEObject;
+import org.bimserver.models.geometry.Bounds;
+import org.bimserver.models.geometry.GeometryInfo;
+
+/*
+ * Bounding volume hierarchy over product bounds, built top down by splitting
+ * at the median centroid along the longest axis. Everything is kept in
+ * primitive arrays with six doubles per box. Nodes are stored depth first: an
+ * inner node's left child follows it directly and nodeFirst holds its right
+ * child, a leaf's nodeFirst and nodeItems give its range of items.
+ */
+class ProductBvh implements ProductSpatialIndex {
+
+    private static final int LEAF_SIZE = 8;
+    private static final int[] NONE = new int[0];
+    private final int[] ids;
+    private final double[] bounds;
+    private final double[] nodeBounds;
+    private final int[] nodeFirst;
+    private final int[] nodeItems;
+    private int nodeCount;
+
+    private ProductBvh(int[] ids, double[] bounds) {
+        int size = ids.length;
+        int[] order = new int[size];
+        double[] centroids = new double[size * 3];
+        for (int i = 0; i < size; i++) {
+            order[i] = i;
+            for (int axis = 0; axis < 3; axis++) {
+                centroids[i * 3 + axis] = (bounds[i * 6 + axis] + bounds[i * 6 + 3 + axis]) / 2;
+            }
+        }
+        int maxNodes = size == 0 ? 0 : 2 * size - 1;
+        double[] nodeBounds = new double[maxNodes * 6];
+        int[] nodeFirst = new int[maxNodes];
+        int[] nodeItems = new int[maxNodes];
+        this.nodeBounds = nodeBounds;
+        this.nodeFirst = nodeFirst;
+        this.nodeItems = nodeItems;
+        if (size > 0) {
+            build(order, centroids, bounds, 0, size);
+        }
+
+        // Items are stored in leaf order so a leaf scans a contiguous range
+        this.ids = new int[size];
+        this.bounds = new double[size * 6];
+        for (int i = 0; i < size; i++) {
+            this.ids[i] = ids[order[i]];
+            System.arraycopy(bounds, order[i] * 6, this.bounds, i * 6, 6);
+        }
+    }
+
+    static ProductBvh build(List<? extends IdEObject> products) {
+        int[] ids = new int[products.size()];
+        double[] bounds = new double[products.size() * 6];
+        int size = 0;
+        for (IdEObject product : products) {
+            GeometryInfo geometry = (GeometryInfo) product.eGet(product.eClass().getEStructuralFeature("geometry"));
+            if (geometry == null || geometry.getBounds() == null) {
+                continue;
+            }
+            Bounds box = geometry.getBounds();
+            ids[size] = product.getExpressId();
+            bounds[size * 6] = box.getMin().getX();
+            bounds[size * 6 + 1] = box.getMin().getY();
+            bounds[size * 6 + 2] = box.getMin().getZ();
+            bounds[size * 6 + 3] = box.getMax().getX();
+            bounds[size * 6 + 4] = box.getMax().getY();
+            bounds[size * 6 + 5] = box.getMax().getZ();
+            size++;
+        }
+        return new ProductBvh(Arrays.copyOf(ids, size), Arrays.copyOf(bounds, size * 6));
+    }
+
+    private void build(int[] order, double[] centroids, double[] bounds, int start, int end) {
+        int node = nodeCount++;
+        double[] centroidBounds = {
+            Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY,
+            Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY};
+        for (int axis = 0; axis < 3; axis++) {
+            nodeBounds[node * 6 + axis] = Double.POSITIVE_INFINITY;
+            nodeBounds[node * 6 + 3 + axis] = Double.NEGATIVE_INFINITY;
+        }
+        for (int i = start; i < end; i++) {
+            int item = order[i];
+            for (int axis = 0; axis < 3; axis++) {
+                nodeBounds[node * 6 + axis] = Math.min(nodeBounds[node * 6 + axis], bounds[item * 6 + axis]);
+                nodeBounds[node * 6 + 3 + axis] = Math.max(nodeBounds[node * 6 + 3 + axis], bounds[item * 6 + 3 + axis]);
+                centroidBounds[axis] = Math.min(centroidBounds[axis], centroids[item * 3 + axis]);
+                centroidBounds[3 + axis] = Math.max(centroidBounds[3 + axis], centroids[item * 3 + axis]);
+            }
+        }
+        if (end - start <= LEAF_SIZE) {
+            nodeFirst[node] = start;
+            nodeItems[node] = end - start;
+            return;
+        }
+        int axis = 0;
+        for (int a = 1; a < 3; a++) {
+            if (centroidBounds[3 + a] - centroidBounds[a] > centroidBounds[3 + axis] - centroidBounds[axis]) {
+                axis = a;
+            }
+        }
+        int middle = (start + end) >>> 1;
+        select(order, centroids, axis, start, end - 1, middle);
+        build(order, centroids, bounds, start, middle);
+        nodeFirst[node] = nodeCount;
+        build(order, centroids, bounds, middle, end);
+    }
+
+    // Partially sorts order[left..right] so that position k holds the item it
+    // would hold when fully sorted by centroid along the axis
+    private static void select(int[] order, double[] centroids, int axis, int left, int right, int k) {
+        while (left < right) {
+            double pivot = centroids[order[(left + right) >>> 1] * 3 + axis];
+            int i = left;
+            int j = right;
+            while (i <= j) {
+                while (centroids[order[i] * 3 + axis] < pivot) {
+                    i++;
+                }
+                while (centroids[order[j] * 3 + axis] > pivot) {
+                    j--;
+                }
+                if (i <= j) {
+                    int swap = order[i];
+                    order[i] = order[j];
+                    order[j] = swap;
+                    i++;
+                    j--;
+                }
+            }
+            if (k <= j) {
+                right = j;
+            } else if (k >= i) {
+                left = i;
+            } else {
+                return;
+            }
+        }
+    }
+
+    @Override
+    public int size() {
+        return ids.length;
+    }
+
+    @Override
+    public int[] queryBox(double minX, double minY, double minZ, double maxX, double maxY, double maxZ) {
+        if (nodeCount == 0) {
+            return NONE;
+        }
+        double[] box = {minX, minY, minZ, maxX, maxY, maxZ};
+        int[] result = new int[16];
+        int count = 0;
+        int[] stack = new int[64];
+        int top = 0;
+        stack[top++] = 0;
+        while (top > 0) {
+            int node = stack[--top];
+            if (!overlaps(nodeBounds, node, box)) {
+                continue;
+            }
+            if (nodeItems[node] == 0) {
+                stack[top++] = nodeFirst[node];
+                stack[top++] = node + 1;
+                continue;
+            }
+            for (int item = nodeFirst[node]; item < nodeFirst[node] + nodeItems[node]; item++) {
+                if (overlaps(bounds, item, box)) {
+                    if (count == result.length) {
+                        result = Arrays.copyOf(result, count * 2);
+                    }
+                    result[count++] = ids[item];
+                }
+            }
+        }
+        return Arrays.copyOf(result, count);
+    }
+
+    @Override
+    public int[] queryRay(double originX, double originY, double originZ, double directionX, double directionY, double directionZ) {
+        if (nodeCount == 0) {
+            return NONE;
+        }
+        double[] origin = {originX, originY, originZ};
+        double[] direction = {directionX, directionY, directionZ};
+        int[] hits = new int[16];
+        double[] distances = new double[16];
+        int count = 0;
+        int[] stack = new int[64];
+        int top = 0;
+        stack[top++] = 0;
+        while (top > 0) {
+            int node = stack[--top];
+            if (entry(nodeBounds, node, origin, direction) < 0) {
+                continue;
+            }
+            if (nodeItems[node] == 0) {
+                stack[top++] = nodeFirst[node];
+                stack[top++] = node + 1;
+                continue;
+            }
+            for (int item = nodeFirst[node]; item < nodeFirst[node] + nodeItems[node]; item++) {
+                double distance = entry(bounds, item, origin, direction);
+                if (distance >= 0) {
+                    if (count == hits.length) {
+                        hits = Arrays.copyOf(hits, count * 2);
+                        distances = Arrays.copyOf(distances, count * 2);
+                    }
+                    hits[count] = ids[item];
+                    distances[count++] = distance;
+                }
+            }
+        }
+        return sortByDistance(hits, distances, count);
+    }
+
+    @Override
+    public int[] nearest(double x, double y, double z, int k) {
+        if (k < 0) {
+            throw new IllegalArgumentException("k must not be negative: " + k);
+        }
+        if (nodeCount == 0 || k == 0) {
+            return NONE;
+        }
+        double[] point = {x, y, z};
+        int[] result = new int[Math.min(k, ids.length)];
+        int count = 0;
+        // Best first over nodes and items, [squared distance, node or -(item + 1)]
+        PriorityQueue<double[]> queue = new PriorityQueue<>((a, b) -> Double.compare(a[0], b[0]));
+        queue.add(new double[]{distance(nodeBounds, 0, point), 0});
+        while (count < result.length && !queue.isEmpty()) {
+            double[] next = queue.poll();
+            int ref = (int) next[1];
+            if (ref < 0) {
+                result[count++] = ids[-ref - 1];
+            } else if (nodeItems[ref] == 0) {
+                queue.add(new double[]{distance(nodeBounds, ref + 1, point), ref + 1});
+                queue.add(new double[]{distance(nodeBounds, nodeFirst[ref], point), nodeFirst[ref]});
+            } else {
+                for (int item = nodeFirst[ref]; item < nodeFirst[ref] + nodeItems[ref]; item++) {
+                    queue.add(new double[]{distance(bounds, item, point), -item - 1});
+                }
+            }
+        }
+        return result;
+    }
+
+    private static boolean overlaps(double[] boxes, int index, double[] box) {
+        int offset = index * 6;
+        return boxes[offset] <= box[3] && boxes[offset + 3] >= box[0]
+                && boxes[offset + 1] <= box[4] && boxes[offset + 4] >= box[1]
+                && boxes[offset + 2] <= box[5] && boxes[offset + 5] >= box[2];
+    }
+
+    // Distance along the ray at which it enters the box, zero when the origin
+    // is inside and negative when the ray misses it
+    private static double entry(double[] boxes, int index, double[] origin, double[] direction) {
+        int offset = index * 6;
+        double near = 0;
+        double far = Double.POSITIVE_INFINITY;
+        for (int axis = 0; axis < 3; axis++) {
+            double min = boxes[offset + axis];
+            double max = boxes[offset + 3 + axis];
+            if (direction[axis] == 0) {
+                if (origin[axis] < min || origin[axis] > max) {
+                    return -1;
+                }
+                continue;
+            }
+            double t1 = (min - origin[axis]) / direction[axis];
+            double t2 = (max - origin[axis]) / direction[axis];
+            near = Math.max(near, Math.min(t1, t2));
+            far = Math.min(far, Math.max(t1, t2));
+            if (near > far) {
+                return -1;
+            }
+        }
+        return near;
+    }
+
+    private static double distance(double[] boxes, int index, double[] point) {
+        int offset = index * 6;
+        double sum = 0;
+        for (int axis = 0; axis < 3; axis++) {
+            double d = Math.max(Math.max(boxes[offset + axis] - point[axis], 0), point[axis] - boxes[offset + 3 + axis]);
+            sum += d * d;
+        }
+        return sum;
+    }
+
+    private static int[] sortByDistance(int[] hits, double[] distances, int count) {
+        Integer[] order = new Integer[count];
+        for (int i = 0; i < count; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> Double.compare(distances[a], distances[b]));
+        int[] result = new int[count];
+        for (int i = 0; i < count; i++) {
+            result[i] = hits[order[i]];
+        }
+        return result;
+    }
+}
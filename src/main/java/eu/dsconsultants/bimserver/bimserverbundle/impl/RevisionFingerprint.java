@@ -0,0 +1,136 @@
+package eu.dsconsultants.bimserver.bimserverbundle.impl;
+
+import eu.dsconsultants.bimserver.bimserverbundle.GeometryBuffers;
+import eu.dsconsultants.bimserver.bimserverbundle.IfcParseOptions;
+import eu.dsconsultants.bimserver.bimserverbundle.IfcRevision;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import org.bimserver.models.geometry.Bounds;
+import org.bimserver.models.geometry.Buffer;
+import org.bimserver.models.geometry.GeometryData;
+import org.bimserver.models.geometry.GeometryFactory;
+import org.bimserver.models.geometry.GeometryInfo;
+import org.bimserver.models.geometry.Vector3f;
+
+/*
+ * Geometry of every product of a revision keyed by the StepHashes hash of the
+ * product record. Products without geometry are kept with a null value so
+ * they are not tessellated again either. The options that shape the geometry
+ * are part of the revision, geometry made with other options is not reused.
+ */
+class RevisionFingerprint implements IfcRevision {
+
+    private static final int QUANTITIES_ONLY = 1;
+    private static final int COMPACT_INDICES = 2;
+    private static final int OPTIMIZE_VERTEX_CACHE = 4;
+
+    private final String fileName;
+    private final int geometryOptions;
+    private final Map<Long, GeometryInfo> geometry;
+    private final GeometryBuffers geometryBuffers;
+
+    private RevisionFingerprint(String fileName, int geometryOptions, Map<Long, GeometryInfo> geometry, GeometryBuffers geometryBuffers) {
+        this.fileName = fileName;
+        this.geometryOptions = geometryOptions;
+        this.geometry = geometry;
+        this.geometryBuffers = geometryBuffers;
+    }
+
+    @Override
+    public String getFileName() {
+        return fileName;
+    }
+
+    @Override
+    public int getProductCount() {
+        return geometry.size();
+    }
+
+    static int geometryOptions(IfcParseOptions options) {
+        return (options.isQuantitiesOnly() ? QUANTITIES_ONLY : 0)
+                | (options.isCompactIndices() ? COMPACT_INDICES : 0)
+                | (options.isOptimizeVertexCache() ? OPTIMIZE_VERTEX_CACHE : 0);
+    }
+
+    boolean hasGeometryOptions(IfcParseOptions options) {
+        return geometryOptions == geometryOptions(options);
+    }
+
+    boolean contains(long hash) {
+        return geometry.containsKey(hash);
+    }
+
+    // Geometry in an arena is copied to the heap, as is geometry about to be
+    // moved into another arena, the previous revision's buffers stay untouched
+    GeometryInfo reuse(long hash, boolean copy, Map<GeometryData, GeometryData> copies) {
+        GeometryInfo geometryInfo = geometry.get(hash);
+        if (geometryInfo == null || (!copy && !(geometryBuffers instanceof GeometryArena))) {
+            return geometryInfo;
+        }
+        GeometryInfo result = GeometryFactory.eINSTANCE.createGeometryInfo();
+        Bounds bounds = GeometryFactory.eINSTANCE.createBounds();
+        bounds.setMin(copy(geometryInfo.getBounds().getMin()));
+        bounds.setMax(copy(geometryInfo.getBounds().getMax()));
+        result.setBounds(bounds);
+        result.setArea(geometryInfo.getArea());
+        result.setVolume(geometryInfo.getVolume());
+        result.setPrimitiveCount(geometryInfo.getPrimitiveCount());
+        result.setTransformation(geometryInfo.getTransformation());
+        GeometryData geometryData = geometryInfo.getData();
+        if (geometryData != null) {
+            GeometryData dataCopy = copies.get(geometryData);
+            if (dataCopy == null) {
+                dataCopy = GeometryFactory.eINSTANCE.createGeometryData();
+                dataCopy.setNrIndices(geometryData.getNrIndices());
+                dataCopy.setIndices(copy(geometryData.getIndices()));
+                dataCopy.setVertices(copy(geometryData.getVertices()));
+                dataCopy.setNormals(copy(geometryData.getNormals()));
+                dataCopy.setColorsQuantized(copy(geometryData.getColorsQuantized()));
+                copies.put(geometryData, dataCopy);
+            }
+            result.setData(dataCopy);
+        }
+        return result;
+    }
+
+    private Vector3f copy(Vector3f vector) {
+        Vector3f result = GeometryFactory.eINSTANCE.createVector3f();
+        result.setX(vector.getX());
+        result.setY(vector.getY());
+        result.setZ(vector.getZ());
+        return result;
+    }
+
+    private Buffer copy(Buffer buffer) {
+        ByteBuffer data = buffer == null ? null : geometryBuffers.getData(buffer);
+        if (data == null) {
+            return null;
+        }
+        byte[] bytes = new byte[data.remaining()];
+        data.get(bytes);
+        Buffer result = GeometryFactory.eINSTANCE.createBuffer();
+        result.setData(bytes);
+        return result;
+    }
+
+    static class Builder {
+
+        private final String fileName;
+        private final int geometryOptions;
+        private final Map<Long, GeometryInfo> geometry = new HashMap<>();
+
+        Builder(String fileName, IfcParseOptions options) {
+            this.fileName = fileName;
+            this.geometryOptions = geometryOptions(options);
+        }
+
+        synchronized void add(long hash, GeometryInfo geometryInfo) {
+            geometry.put(hash, geometryInfo);
+        }
+
+        RevisionFingerprint build(GeometryBuffers geometryBuffers) {
+            return new RevisionFingerprint(fileName, geometryOptions, geometry, geometryBuffers);
+        }
+    }
+}
@@ -0,0 +1,191 @@
+package eu.dsconsultants.bimserver.bimserverbundle.impl;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/*
+ * Content hashes of STEP records that cover everything a record references.
+ * A #id reference contributes the hash of the referenced record rather than
+ * the number, so a record keeps its hash when the exporter renumbers the
+ * file and changes whenever anything in its forward closure changes.
+ *
+ * Openings, styles and materials change a product's geometry without the
+ * product referencing them, the relationship references the product. Such a
+ * relationship is hashed without the attribute pointing at its target, and
+ * that hash is folded into the target's own before the hashes of the records
+ * referencing the target are computed.
+ */
+class StepHashes {
+
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+    // Relationship type and the attribute holding the records it attaches to
+    private static final Map<String, Integer> ATTACHING = new HashMap<>();
+
+    static {
+        ATTACHING.put("IFCRELVOIDSELEMENT", 4);
+        ATTACHING.put("IFCRELASSOCIATESMATERIAL", 4);
+        ATTACHING.put("IFCSTYLEDITEM", 0);
+    }
+
+    private StepHashes() {
+    }
+
+    static long[] compute(IfcInput input, StepIndex index) throws IOException {
+        int[] order = index.dependencyOrder();
+        long[] forward = compute(input, index, order, null);
+        long[] attached = attached(input, index, forward);
+        // A second pass so that the attached hashes reach everything referencing their targets
+        return attached == null ? forward : compute(input, index, order, attached);
+    }
+
+    private static long[] compute(IfcInput input, StepIndex index, int[] order, long[] attached) throws IOException {
+        int size = index.size();
+        long[] hashes = new long[size];
+        boolean[] computed = new boolean[size];
+        byte[] record = new byte[4096];
+        for (int r : order) {
+            int length = index.getLength(r);
+            if (record.length < length) {
+                record = new byte[Math.max(length, record.length * 2)];
+            }
+            readFully(input, index.getOffset(r), record, length);
+            hashes[r] = hashRecord(index, hashes, computed, record, length, -1);
+            if (attached != null && attached[r] != 0) {
+                hashes[r] = mix(hashes[r], attached[r]);
+            }
+            computed[r] = true;
+        }
+        return hashes;
+    }
+
+    // Per record the combined hashes of the relationships attached to it, null when there are none
+    private static long[] attached(IfcInput input, StepIndex index, long[] forward) throws IOException {
+        long[] attached = null;
+        boolean[] computed = new boolean[index.size()];
+        Arrays.fill(computed, true);
+        byte[] record = new byte[4096];
+        for (int r = 0; r < index.size(); r++) {
+            Integer attribute = ATTACHING.get(index.getTypeName(r).toUpperCase(Locale.ROOT));
+            if (attribute == null) {
+                continue;
+            }
+            int length = index.getLength(r);
+            if (record.length < length) {
+                record = new byte[Math.max(length, record.length * 2)];
+            }
+            readFully(input, index.getOffset(r), record, length);
+            long hash = hashRecord(index, forward, computed, record, length, attribute);
+            for (int id : references(record, length, attribute)) {
+                int target = index.indexOf(id);
+                if (target != -1) {
+                    if (attached == null) {
+                        attached = new long[index.size()];
+                    }
+                    // A sum, relationships are not in any particular order
+                    attached[target] += mix(FNV_OFFSET, hash);
+                }
+            }
+        }
+        return attached;
+    }
+
+    // Attributes are counted from 0 at the top level of the record, skipAttribute -1 hashes all of them
+    private static long hashRecord(StepIndex index, long[] hashes, boolean[] computed, byte[] record, int length, int skipAttribute) {
+        long hash = FNV_OFFSET;
+        int i = 0;
+        // The record's own '#id=' is not part of its content
+        while (i < length && record[i] != '=') {
+            i++;
+        }
+        boolean inString = false;
+        int depth = 0;
+        int attribute = 0;
+        for (i++; i < length; i++) {
+            byte c = record[i];
+            if (c == '\'') {
+                inString = !inString;
+            } else if (!inString) {
+                if (c == '(') {
+                    depth++;
+                } else if (c == ')') {
+                    depth--;
+                } else if (c == ',' && depth == 1) {
+                    attribute++;
+                }
+            }
+            boolean skipped = depth >= 1 && attribute == skipAttribute && !(depth == 1 && (c == ',' || c == '('));
+            if (!inString && c == '#') {
+                int id = 0;
+                while (i + 1 < length && record[i + 1] >= '0' && record[i + 1] <= '9') {
+                    id = id * 10 + (record[++i] - '0');
+                }
+                if (!skipped) {
+                    int ref = index.indexOf(id);
+                    // Back edges of reference cycles and dangling references fall back to the number
+                    hash = mix(hash, ref != -1 && computed[ref] ? hashes[ref] : id);
+                }
+                continue;
+            } else if (skipped || (!inString && (c == ' ' || c == '\r' || c == '\n' || c == '\t'))) {
+                continue;
+            }
+            hash = (hash ^ (c & 0xff)) * FNV_PRIME;
+        }
+        return hash;
+    }
+
+    private static List<Integer> references(byte[] record, int length, int attribute) {
+        List<Integer> ids = new ArrayList<>();
+        int i = 0;
+        while (i < length && record[i] != '=') {
+            i++;
+        }
+        boolean inString = false;
+        int depth = 0;
+        int current = 0;
+        for (i++; i < length; i++) {
+            byte c = record[i];
+            if (c == '\'') {
+                inString = !inString;
+            } else if (inString) {
+                continue;
+            } else if (c == '(') {
+                depth++;
+            } else if (c == ')') {
+                depth--;
+            } else if (c == ',' && depth == 1) {
+                current++;
+            } else if (c == '#' && current == attribute) {
+                int id = 0;
+                while (i + 1 < length && record[i + 1] >= '0' && record[i + 1] <= '9') {
+                    id = id * 10 + (record[++i] - '0');
+                }
+                ids.add(id);
+            }
+        }
+        return ids;
+    }
+
+    private static long mix(long hash, long value) {
+        for (int shift = 0; shift < 64; shift += 8) {
+            hash = (hash ^ ((value >>> shift) & 0xff)) * FNV_PRIME;
+        }
+        return hash;
+    }
+
+    private static void readFully(IfcInput input, long position, byte[] b, int length) throws IOException {
+        int read = 0;
+        while (read < length) {
+            int n = input.read(position + read, b, read, length - read);
+            if (n == -1) {
+                throw new IOException("Unexpected end of " + input.getFileName());
+            }
+            read += n;
+        }
+    }
+}
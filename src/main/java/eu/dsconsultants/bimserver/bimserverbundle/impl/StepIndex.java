@@ -0,0 +1,456 @@
+package eu.dsconsultants.bimserver.bimserverbundle.impl;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/*
+ * Positions, types and outgoing #id references of every record in the DATA
+ * section of a STEP file, kept in primitive arrays in file order.
+ */
+class StepIndex {
+
+    private static final int MIN_CHUNK_SIZE = 4 * 1024 * 1024;
+    private static final String ENDSEC = "ENDSEC";
+
+    private final long dataStart;
+    private final long dataEnd;
+    private final int[] ids;
+    private final long[] offsets;
+    private final int[] lengths;
+    private final int[] types;
+    private final String[] typeNames;
+    private final int[] refStart;
+    private final int[] refs;
+    private final IntIntMap positions;
+
+    private StepIndex(long dataStart, long dataEnd, int[] ids, long[] offsets, int[] lengths, int[] types, String[] typeNames,
+            int[] refStart, int[] refs) {
+        this.dataStart = dataStart;
+        this.dataEnd = dataEnd;
+        this.ids = ids;
+        this.offsets = offsets;
+        this.lengths = lengths;
+        this.types = types;
+        this.typeNames = typeNames;
+        this.refStart = refStart;
+        this.refs = refs;
+        this.positions = new IntIntMap(ids.length);
+        for (int i = 0; i < ids.length; i++) {
+            positions.put(ids[i], i);
+        }
+    }
+
+    int size() {
+        return ids.length;
+    }
+
+    long getDataStart() {
+        return dataStart;
+    }
+
+    long getDataEnd() {
+        return dataEnd;
+    }
+
+    int getId(int record) {
+        return ids[record];
+    }
+
+    long getOffset(int record) {
+        return offsets[record];
+    }
+
+    int getLength(int record) {
+        return lengths[record];
+    }
+
+    String getTypeName(int record) {
+        return typeNames[types[record]];
+    }
+
+    int getTypeCode(int record) {
+        return types[record];
+    }
+
+    String[] getTypeNames() {
+        return typeNames;
+    }
+
+    int getRefCount(int record) {
+        return refStart[record + 1] - refStart[record];
+    }
+
+    // Record index of the n-th reference of a record, -1 when it points outside the file
+    int getRef(int record, int n) {
+        return positions.get(refs[refStart[record] + n], -1);
+    }
+
+    int indexOf(int expressId) {
+        return positions.get(expressId, -1);
+    }
+
+    // Post-order walk over the reference graph, cycles are broken at the back edge
+    int[] dependencyOrder() {
+        int size = size();
+        int[] order = new int[size];
+        byte[] state = new byte[size];
+        int[] stackRecord = new int[64];
+        int[] stackRef = new int[64];
+        int ordered = 0;
+        for (int root = 0; root < size; root++) {
+            if (state[root] != 0) {
+                continue;
+            }
+            int depth = 0;
+            stackRecord[0] = root;
+            stackRef[0] = 0;
+            state[root] = 1;
+            while (depth >= 0) {
+                int record = stackRecord[depth];
+                if (stackRef[depth] < getRefCount(record)) {
+                    int ref = getRef(record, stackRef[depth]++);
+                    if (ref != -1 && state[ref] == 0) {
+                        state[ref] = 1;
+                        if (++depth == stackRecord.length) {
+                            stackRecord = Arrays.copyOf(stackRecord, depth * 2);
+                            stackRef = Arrays.copyOf(stackRef, depth * 2);
+                        }
+                        stackRecord[depth] = ref;
+                        stackRef[depth] = 0;
+                    }
+                } else {
+                    state[record] = 2;
+                    order[ordered++] = record;
+                    depth--;
+                }
+            }
+        }
+        return order;
+    }
+
+    static StepIndex build(IfcInput input) throws IOException {
+        return build(input, ForkJoinPool.commonPool(), ForkJoinPool.getCommonPoolParallelism());
+    }
+
+    static StepIndex build(IfcInput input, ExecutorService executor, int parallelism) throws IOException {
+        long length = input.length();
+        long dataStart = findDataSection(input, length);
+        int chunkCount = (int) Math.max(1, Math.min(parallelism * 4L, (length - dataStart) / MIN_CHUNK_SIZE));
+        long[] boundaries = new long[chunkCount + 1];
+        boundaries[0] = dataStart;
+        boundaries[chunkCount] = length;
+        for (int i = 1; i < chunkCount; i++) {
+            long estimate = dataStart + (length - dataStart) * i / chunkCount;
+            boundaries[i] = Math.max(boundaries[i - 1], findRecordStart(input, estimate, length));
+        }
+
+        List<Callable<Chunk>> tasks = new ArrayList<>();
+        for (int i = 0; i < chunkCount; i++) {
+            final long start = boundaries[i];
+            final long end = boundaries[i + 1];
+            tasks.add(() -> new Chunk(input, start, end).scan());
+        }
+        List<Chunk> chunks = new ArrayList<>();
+        try {
+            for (Future<Chunk> future : executor.invokeAll(tasks)) {
+                chunks.add(future.get());
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while indexing " + input.getFileName(), ex);
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof IOException) {
+                throw (IOException) ex.getCause();
+            }
+            throw new IOException("Unable to index " + input.getFileName(), ex.getCause());
+        }
+        return merge(dataStart, length, chunks);
+    }
+
+    private static StepIndex merge(long dataStart, long length, List<Chunk> chunks) {
+        int size = 0;
+        int refCount = 0;
+        long dataEnd = length;
+        for (Chunk chunk : chunks) {
+            size += chunk.size;
+            refCount += chunk.refCount;
+            if (chunk.dataEnd != -1) {
+                dataEnd = Math.min(dataEnd, chunk.dataEnd);
+            }
+        }
+        int[] ids = new int[size];
+        long[] offsets = new long[size];
+        int[] lengths = new int[size];
+        int[] types = new int[size];
+        int[] refStart = new int[size + 1];
+        int[] refs = new int[refCount];
+        Map<String, Integer> typeCodes = new HashMap<>();
+        List<String> typeNames = new ArrayList<>();
+        int record = 0;
+        int ref = 0;
+        for (Chunk chunk : chunks) {
+            int[] localToGlobal = new int[chunk.typeNames.size()];
+            for (int i = 0; i < localToGlobal.length; i++) {
+                String typeName = chunk.typeNames.get(i);
+                Integer code = typeCodes.get(typeName);
+                if (code == null) {
+                    code = typeNames.size();
+                    typeCodes.put(typeName, code);
+                    typeNames.add(typeName);
+                }
+                localToGlobal[i] = code;
+            }
+            for (int i = 0; i < chunk.size; i++, record++) {
+                ids[record] = chunk.ids[i];
+                offsets[record] = chunk.offsets[i];
+                lengths[record] = chunk.lengths[i];
+                types[record] = localToGlobal[chunk.types[i]];
+                refStart[record] = ref + chunk.refStart[i];
+            }
+            System.arraycopy(chunk.refs, 0, refs, ref, chunk.refCount);
+            ref += chunk.refCount;
+        }
+        refStart[size] = ref;
+        return new StepIndex(dataStart, dataEnd, ids, offsets, lengths, types, typeNames.toArray(new String[typeNames.size()]),
+                refStart, refs);
+    }
+
+    private static long findDataSection(IfcInput input, long length) throws IOException {
+        StepReader reader = new StepReader(input, 0, length);
+        boolean inString = false;
+        int matched = 0;
+        byte[] keyword = {'D', 'A', 'T', 'A', ';'};
+        for (int c = reader.next(); c != -1; c = reader.next()) {
+            if (c == '\'') {
+                inString = !inString;
+                matched = 0;
+            } else if (!inString) {
+                c = Character.toUpperCase(c);
+                matched = c == keyword[matched] ? matched + 1 : (c == 'D' ? 1 : 0);
+                if (matched == keyword.length) {
+                    return reader.position();
+                }
+            }
+        }
+        throw new IOException("No DATA section found in " + input.getFileName());
+    }
+
+    // Records start with '#id=' at the beginning of a line, wrapped references never carry the '='
+    private static long findRecordStart(IfcInput input, long position, long length) throws IOException {
+        StepReader reader = new StepReader(input, position, length);
+        int previous = -1;
+        int c = reader.next();
+        while (c != -1) {
+            if (c == '#' && (previous == '\n' || previous == '\r')) {
+                long candidate = reader.position() - 1;
+                c = reader.next();
+                while (c >= '0' && c <= '9') {
+                    c = reader.next();
+                }
+                while (c == ' ' || c == '\t') {
+                    c = reader.next();
+                }
+                if (c == '=') {
+                    return candidate;
+                }
+            } else {
+                previous = c;
+                c = reader.next();
+            }
+        }
+        return length;
+    }
+
+    static class StepReader {
+
+        private final IfcInput input;
+        private final long end;
+        private final byte[] buffer = new byte[256 * 1024];
+        private long bufferStart;
+        private int bufferLength;
+        private int bufferPosition;
+
+        StepReader(IfcInput input, long start, long end) {
+            this.input = input;
+            this.end = end;
+            this.bufferStart = start;
+        }
+
+        long position() {
+            return bufferStart + bufferPosition;
+        }
+
+        int next() throws IOException {
+            if (bufferPosition == bufferLength) {
+                bufferStart += bufferLength;
+                bufferPosition = 0;
+                bufferLength = 0;
+                if (bufferStart >= end) {
+                    return -1;
+                }
+                int n = input.read(bufferStart, buffer, 0, (int) Math.min(buffer.length, end - bufferStart));
+                if (n <= 0) {
+                    return -1;
+                }
+                bufferLength = n;
+            }
+            return buffer[bufferPosition++] & 0xff;
+        }
+    }
+
+    private static class Chunk {
+
+        private final IfcInput input;
+        private final long start;
+        private final long end;
+        private final List<String> typeNames = new ArrayList<>();
+        private final Map<String, Integer> typeCodes = new HashMap<>();
+        private final StringBuilder typeName = new StringBuilder();
+        private int size;
+        private int[] ids = new int[1024];
+        private long[] offsets = new long[1024];
+        private int[] lengths = new int[1024];
+        private int[] types = new int[1024];
+        private int[] refStart = new int[1024];
+        private int refCount;
+        private int[] refs = new int[4096];
+        private long dataEnd = -1;
+
+        Chunk(IfcInput input, long start, long end) {
+            this.input = input;
+            this.start = start;
+            this.end = end;
+        }
+
+        Chunk scan() throws IOException {
+            // Records starting in this chunk may continue past its end
+            StepReader reader = new StepReader(input, start, input.length());
+            int c = reader.next();
+            while (c != -1 && reader.position() - 1 < end) {
+                if (c == '#') {
+                    c = scanRecord(reader, reader.position() - 1);
+                } else if (c == '/') {
+                    c = skipComment(reader);
+                } else if (c == 'E' || c == 'e') {
+                    // ENDSEC of the DATA section, other words outside records are skipped
+                    long position = reader.position() - 1;
+                    int matched = 1;
+                    c = reader.next();
+                    while (matched < ENDSEC.length() && Character.toUpperCase(c) == ENDSEC.charAt(matched)) {
+                        matched++;
+                        c = reader.next();
+                    }
+                    while (matched == ENDSEC.length() && (c == ' ' || c == '\t' || c == '\r' || c == '\n')) {
+                        c = reader.next();
+                    }
+                    if (matched == ENDSEC.length() && c == ';') {
+                        dataEnd = position;
+                        break;
+                    }
+                } else {
+                    c = reader.next();
+                }
+            }
+            return this;
+        }
+
+        private int skipComment(StepReader reader) throws IOException {
+            int c = reader.next();
+            if (c != '*') {
+                return c;
+            }
+            int previous = -1;
+            for (c = reader.next(); c != -1; c = reader.next()) {
+                if (previous == '*' && c == '/') {
+                    return reader.next();
+                }
+                previous = c;
+            }
+            return c;
+        }
+
+        private int scanRecord(StepReader reader, long offset) throws IOException {
+            int id = 0;
+            int c = reader.next();
+            while (c >= '0' && c <= '9') {
+                id = id * 10 + (c - '0');
+                c = reader.next();
+            }
+            while (c == ' ' || c == '=' || c == '\t' || c == '\r' || c == '\n') {
+                c = reader.next();
+            }
+            typeName.setLength(0);
+            while (c != -1 && c != '(' && c != ' ' && c != ';') {
+                typeName.append((char) Character.toUpperCase(c));
+                c = reader.next();
+            }
+            int recordRefStart = refCount;
+            boolean inString = false;
+            while (c != -1) {
+                if (c == '\'') {
+                    inString = !inString;
+                    c = reader.next();
+                } else if (inString) {
+                    c = reader.next();
+                } else if (c == ';') {
+                    break;
+                } else if (c == '#') {
+                    int ref = 0;
+                    c = reader.next();
+                    while (c >= '0' && c <= '9') {
+                        ref = ref * 10 + (c - '0');
+                        c = reader.next();
+                    }
+                    addRef(ref);
+                } else {
+                    c = reader.next();
+                }
+            }
+            addRecord(id, offset, (int) (reader.position() - offset), typeCode(typeName.toString()), recordRefStart);
+            return reader.next();
+        }
+
+        private int typeCode(String name) {
+            Integer code = typeCodes.get(name);
+            if (code == null) {
+                code = typeNames.size();
+                typeCodes.put(name, code);
+                typeNames.add(name);
+            }
+            return code;
+        }
+
+        private void addRef(int ref) {
+            if (refCount == refs.length) {
+                refs = Arrays.copyOf(refs, refs.length * 2);
+            }
+            refs[refCount++] = ref;
+        }
+
+        private void addRecord(int id, long offset, int length, int type, int recordRefStart) {
+            if (size == ids.length) {
+                int capacity = size * 2;
+                ids = Arrays.copyOf(ids, capacity);
+                offsets = Arrays.copyOf(offsets, capacity);
+                lengths = Arrays.copyOf(lengths, capacity);
+                types = Arrays.copyOf(types, capacity);
+                refStart = Arrays.copyOf(refStart, capacity);
+            }
+            ids[size] = id;
+            offsets[size] = offset;
+            lengths[size] = length;
+            types[size] = type;
+            refStart[size] = recordRefStart;
+            size++;
+        }
+    }
+}
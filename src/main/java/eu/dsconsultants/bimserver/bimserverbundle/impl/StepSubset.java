@@ -0,0 +1,286 @@
+package eu.dsconsultants.bimserver.bimserverbundle.impl;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import org.bimserver.emf.PackageMetaData;
+import org.eclipse.emf.ecore.EClass;
+import org.eclipse.emf.ecore.EClassifier;
+
+/*
+ * The records reachable from the requested products: their forward closure
+ * plus the relationships and styled items that reference them. References from
+ * those relationships to products outside the selection are cut out of the
+ * relationship's aggregates, so they do not drag the rest of the model in.
+ */
+class StepSubset {
+
+    private final boolean[] included;
+    private final Map<Integer, byte[]> replacements;
+
+    private StepSubset(boolean[] included, Map<Integer, byte[]> replacements) {
+        this.included = included;
+        this.replacements = replacements;
+    }
+
+    boolean isIncluded(int record) {
+        return included[record];
+    }
+
+    byte[] getReplacement(int record) {
+        return replacements.get(record);
+    }
+
+    int size() {
+        int size = 0;
+        for (boolean b : included) {
+            if (b) {
+                size++;
+            }
+        }
+        return size;
+    }
+
+    static StepSubset select(IfcInput input, StepIndex index, PackageMetaData packageMetaData, Collection<String> productTypes)
+            throws IOException {
+        Map<String, EClass> eClasses = eClasses(packageMetaData);
+        Set<EClass> requested = new HashSet<>();
+        for (String productType : productTypes) {
+            EClass eClass = eClasses.get(productType.toUpperCase(Locale.ROOT));
+            if (eClass == null) {
+                throw new IOException("Unknown product type " + productType);
+            }
+            requested.add(eClass);
+        }
+
+        String[] typeNames = index.getTypeNames();
+        boolean[] requestedType = new boolean[typeNames.length];
+        for (int type = 0; type < typeNames.length; type++) {
+            EClass eClass = eClasses.get(typeNames[type]);
+            for (EClass requestedClass : requested) {
+                requestedType[type] |= eClass != null && requestedClass.isSuperTypeOf(eClass);
+            }
+        }
+        boolean[] selected = new boolean[index.size()];
+        for (int record = 0; record < selected.length; record++) {
+            selected[record] = requestedType[index.getTypeCode(record)];
+        }
+        return select(input, index, eClasses, selected);
+    }
+
+    // The products with the given express ids, ids not in the index are ignored
+    static StepSubset select(IfcInput input, StepIndex index, PackageMetaData packageMetaData, int[] expressIds) throws IOException {
+        boolean[] selected = new boolean[index.size()];
+        for (int expressId : expressIds) {
+            int record = index.indexOf(expressId);
+            if (record != -1) {
+                selected[record] = true;
+            }
+        }
+        return select(input, index, eClasses(packageMetaData), selected);
+    }
+
+    private static Map<String, EClass> eClasses(PackageMetaData packageMetaData) {
+        Map<String, EClass> eClasses = new HashMap<>();
+        for (EClassifier eClassifier : packageMetaData.getEPackage().getEClassifiers()) {
+            if (eClassifier instanceof EClass) {
+                eClasses.put(eClassifier.getName().toUpperCase(Locale.ROOT), (EClass) eClassifier);
+            }
+        }
+        return eClasses;
+    }
+
+    private static StepSubset select(IfcInput input, StepIndex index, Map<String, EClass> eClasses, boolean[] selected)
+            throws IOException {
+        EClass product = eClasses.get("IFCPRODUCT");
+        EClass relationship = eClasses.get("IFCRELATIONSHIP");
+        EClass styledItem = eClasses.get("IFCSTYLEDITEM");
+        EClass representationItem = eClasses.get("IFCREPRESENTATIONITEM");
+        String[] typeNames = index.getTypeNames();
+        boolean[] productType = new boolean[typeNames.length];
+        boolean[] relationshipType = new boolean[typeNames.length];
+        boolean[] styledItemType = new boolean[typeNames.length];
+        boolean[] representationItemType = new boolean[typeNames.length];
+        for (int type = 0; type < typeNames.length; type++) {
+            EClass eClass = eClasses.get(typeNames[type]);
+            if (eClass != null) {
+                productType[type] = product.isSuperTypeOf(eClass);
+                relationshipType[type] = relationship.isSuperTypeOf(eClass);
+                styledItemType[type] = styledItem.isSuperTypeOf(eClass);
+                representationItemType[type] = representationItem.isSuperTypeOf(eClass);
+            }
+        }
+
+        int size = index.size();
+        boolean[] included = new boolean[size];
+        Deque<Integer> pending = new ArrayDeque<>();
+        for (int record = 0; record < size; record++) {
+            if (selected[record]) {
+                included[record] = true;
+                pending.add(record);
+            }
+        }
+
+        Map<Integer, Set<Integer>> cutReferences = new HashMap<>();
+        for (int record = 0; record < size; record++) {
+            if (!relationshipType[index.getTypeCode(record)] || selected[record]) {
+                continue;
+            }
+            boolean referencesSelection = false;
+            Set<Integer> cut = new HashSet<>();
+            for (int n = 0; n < index.getRefCount(record); n++) {
+                int ref = index.getRef(record, n);
+                if (ref != -1 && selected[ref]) {
+                    referencesSelection = true;
+                } else if (ref != -1 && productType[index.getTypeCode(ref)]) {
+                    cut.add(index.getId(ref));
+                }
+            }
+            if (referencesSelection) {
+                included[record] = true;
+                pending.add(record);
+                if (!cut.isEmpty()) {
+                    cutReferences.put(record, cut);
+                }
+            }
+        }
+
+        Map<Integer, byte[]> replacements = new HashMap<>();
+        for (Map.Entry<Integer, Set<Integer>> entry : cutReferences.entrySet()) {
+            byte[] rewritten = removeAggregateReferences(input, index, entry.getKey(), entry.getValue());
+            replacements.put(entry.getKey(), rewritten);
+            // Products that are still referenced as single values stay part of the subset
+            entry.getValue().removeAll(remainingReferences(rewritten));
+        }
+
+        close(index, included, pending, cutReferences);
+        // Styled items point at the representation items they colour, the
+        // engine looks them up from the item. Styles are shared, so only the
+        // reference to the item counts.
+        for (int record = 0; record < size; record++) {
+            if (styledItemType[index.getTypeCode(record)] && !included[record]) {
+                for (int n = 0; n < index.getRefCount(record); n++) {
+                    int ref = index.getRef(record, n);
+                    if (ref != -1 && included[ref] && representationItemType[index.getTypeCode(ref)]) {
+                        included[record] = true;
+                        pending.add(record);
+                        break;
+                    }
+                }
+            }
+        }
+        close(index, included, pending, cutReferences);
+        return new StepSubset(included, replacements);
+    }
+
+    private static void close(StepIndex index, boolean[] included, Deque<Integer> pending, Map<Integer, Set<Integer>> cutReferences) {
+        while (!pending.isEmpty()) {
+            int record = pending.poll();
+            Set<Integer> cut = cutReferences.get(record);
+            for (int n = 0; n < index.getRefCount(record); n++) {
+                int ref = index.getRef(record, n);
+                if (ref != -1 && !included[ref] && (cut == null || !cut.contains(index.getId(ref)))) {
+                    included[ref] = true;
+                    pending.add(ref);
+                }
+            }
+        }
+    }
+
+    private static Set<Integer> remainingReferences(byte[] record) {
+        Set<Integer> references = new HashSet<>();
+        boolean inString = false;
+        for (int i = 1; i < record.length; i++) {
+            if (record[i] == '\'') {
+                inString = !inString;
+            } else if (!inString && record[i] == '#') {
+                int id = 0;
+                while (i + 1 < record.length && record[i + 1] >= '0' && record[i + 1] <= '9') {
+                    id = id * 10 + (record[++i] - '0');
+                }
+                references.add(id);
+            }
+        }
+        return references;
+    }
+
+    // Drops the given #ids where they appear inside a list or set, single valued attributes are left alone
+    static byte[] removeAggregateReferences(IfcInput input, StepIndex index, int record, Set<Integer> ids) throws IOException {
+        byte[] source = new byte[index.getLength(record)];
+        int read = 0;
+        while (read < source.length) {
+            int n = input.read(index.getOffset(record) + read, source, read, source.length - read);
+            if (n == -1) {
+                throw new IOException("Unexpected end of " + input.getFileName());
+            }
+            read += n;
+        }
+        byte[] out = new byte[source.length];
+        int length = 0;
+        int depth = 0;
+        boolean inString = false;
+        boolean skipComma = false;
+        int i = 0;
+        // The record's own '#id=' is copied unchanged
+        while (i < source.length && source[i] != '=') {
+            out[length++] = source[i++];
+        }
+        while (i < source.length) {
+            byte c = source[i];
+            if (inString) {
+                inString = c != '\'';
+                out[length++] = c;
+                i++;
+                continue;
+            }
+            if (c == '\'') {
+                inString = true;
+            } else if (c == '(') {
+                depth++;
+            } else if (c == ')') {
+                depth--;
+                length = trimTrailingComma(out, length);
+            } else if (c == ',' && skipComma) {
+                skipComma = false;
+                i++;
+                continue;
+            } else if (c == '#' && depth >= 2) {
+                int end = i + 1;
+                int id = 0;
+                while (end < source.length && source[end] >= '0' && source[end] <= '9') {
+                    id = id * 10 + (source[end++] - '0');
+                }
+                if (ids.contains(id)) {
+                    skipComma = true;
+                } else {
+                    System.arraycopy(source, i, out, length, end - i);
+                    length += end - i;
+                    skipComma = false;
+                }
+                i = end;
+                continue;
+            }
+            if (c != ' ' && c != '\r' && c != '\n' && c != '\t') {
+                skipComma = false;
+            }
+            out[length++] = c;
+            i++;
+        }
+        return Arrays.copyOf(out, length);
+    }
+
+    private static int trimTrailingComma(byte[] out, int length) {
+        int end = length;
+        while (end > 0 && (out[end - 1] == ' ' || out[end - 1] == '\r' || out[end - 1] == '\n' || out[end - 1] == '\t')) {
+            end--;
+        }
+        return end > 0 && out[end - 1] == ',' ? end - 1 : length;
+    }
+}
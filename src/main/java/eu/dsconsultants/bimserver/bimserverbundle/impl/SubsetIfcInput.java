@@ -0,0 +1,130 @@
+package eu.dsconsultants.bimserver.bimserverbundle.impl;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/*
+ * A STEP file made of the header, some of the records and the trailer of
+ * another input, each record on its own line. Records keep their express ids,
+ * so the deserializer and the engine can both be given only this part of a
+ * model and still agree on every id.
+ */
+class SubsetIfcInput extends IfcInput {
+
+    private final IfcInput input;
+    private final StepIndex index;
+    private final int[] records;
+    private final StepSubset subset;
+    // Where the header, every record and the trailer start, all but the trailer end with a newline
+    private final long[] starts;
+
+    SubsetIfcInput(IfcInput input, StepIndex index, int[] records, StepSubset subset) throws IOException {
+        super(input.getFileName());
+        this.input = input;
+        this.index = index;
+        this.records = records;
+        this.subset = subset;
+        this.starts = new long[records.length + 3];
+        starts[1] = index.getDataStart() + 1;
+        for (int slice = 0; slice < records.length; slice++) {
+            starts[slice + 2] = starts[slice + 1] + sliceLength(slice) + 1;
+        }
+        starts[records.length + 2] = starts[records.length + 1] + input.length() - index.getDataEnd();
+    }
+
+    // The records of subset in file order
+    static SubsetIfcInput select(IfcInput input, StepIndex index, StepSubset subset) throws IOException {
+        int[] records = new int[subset.size()];
+        int n = 0;
+        for (int record = 0; record < index.size(); record++) {
+            if (subset.isIncluded(record)) {
+                records[n++] = record;
+            }
+        }
+        return new SubsetIfcInput(input, index, records, subset);
+    }
+
+    int size() {
+        return records.length;
+    }
+
+    private long sliceLength(int slice) {
+        if (slice == -1) {
+            return index.getDataStart();
+        }
+        byte[] replacement = replacement(slice);
+        return replacement == null ? index.getLength(records[slice]) : replacement.length;
+    }
+
+    private byte[] replacement(int slice) {
+        return subset == null ? null : subset.getReplacement(records[slice]);
+    }
+
+    @Override
+    long length() {
+        return starts[starts.length - 1];
+    }
+
+    @Override
+    InputStream newInputStream() {
+        return new InputStream() {
+            private long position;
+
+            @Override
+            public int read() throws IOException {
+                byte[] b = new byte[1];
+                return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (len == 0) {
+                    return 0;
+                }
+                int n = SubsetIfcInput.this.read(position, b, off, len);
+                if (n > 0) {
+                    position += n;
+                }
+                return n;
+            }
+
+            @Override
+            public long skip(long n) {
+                long skipped = Math.max(0, Math.min(n, length() - position));
+                position += skipped;
+                return skipped;
+            }
+        };
+    }
+
+    // Reads from one slice at a time, the newline ending it included
+    @Override
+    int read(long position, byte[] b, int off, int len) throws IOException {
+        if (position >= length()) {
+            return -1;
+        }
+        int found = Arrays.binarySearch(starts, position);
+        int slice = (found >= 0 ? found : -found - 2) - 1;
+        long offset = position - starts[slice + 1];
+        int n = (int) Math.min(len, starts[slice + 2] - position);
+        if (slice == records.length) {
+            n = input.read(index.getDataEnd() + offset, b, off, n);
+        } else if (offset == sliceLength(slice)) {
+            b[off] = '\n';
+            return 1;
+        } else {
+            n = (int) Math.min(n, sliceLength(slice) - offset);
+            byte[] replacement = slice == -1 ? null : replacement(slice);
+            if (replacement != null) {
+                System.arraycopy(replacement, (int) offset, b, off, n);
+            } else {
+                n = input.read((slice == -1 ? 0 : index.getOffset(records[slice])) + offset, b, off, n);
+            }
+        }
+        if (n == -1) {
+            throw new IOException("Unexpected end of " + input.getFileName());
+        }
+        return n;
+    }
+}
@@ -0,0 +1,177 @@
+package eu.dsconsultants.bimserver.bimserverbundle.impl;
+
+import java.util.Arrays;
+
+/*
+ * Reorders triangles for post-transform vertex cache hits (Forsyth's linear
+ * speed optimiser) and then vertices in first use order for fetch locality.
+ * Stateless, so meshes can be optimised concurrently.
+ */
+class VertexCacheOptimizer {
+
+    private static final int CACHE_SIZE = 32;
+    private static final float LAST_TRIANGLE_SCORE = 0.75f;
+    private static final float CACHE_DECAY_POWER = 1.5f;
+    private static final float VALENCE_BOOST_SCALE = 2.0f;
+    private static final float VALENCE_BOOST_POWER = 0.5f;
+
+    private VertexCacheOptimizer() {
+    }
+
+    static MeshCompactor optimize(float[] vertices, float[] normals, float[] colors, int[] indices) {
+        int vertexCount = vertices.length / 3;
+        if (indices.length % 3 != 0 || indices.length == 0) {
+            return new MeshCompactor(vertices, normals, colors, indices);
+        }
+        return reorderVertices(vertices, normals, colors, optimizeTriangleOrder(indices, vertexCount));
+    }
+
+    static int[] optimizeTriangleOrder(int[] indices, int vertexCount) {
+        int triangleCount = indices.length / 3;
+        int[] remaining = new int[vertexCount];
+        for (int index : indices) {
+            remaining[index]++;
+        }
+        int[] adjacencyStart = new int[vertexCount + 1];
+        for (int v = 0; v < vertexCount; v++) {
+            adjacencyStart[v + 1] = adjacencyStart[v] + remaining[v];
+        }
+        int[] adjacency = new int[indices.length];
+        int[] fill = Arrays.copyOf(adjacencyStart, vertexCount);
+        for (int t = 0; t < triangleCount; t++) {
+            for (int k = 0; k < 3; k++) {
+                adjacency[fill[indices[t * 3 + k]]++] = t;
+            }
+        }
+
+        int[] cachePosition = new int[vertexCount];
+        Arrays.fill(cachePosition, -1);
+        float[] vertexScore = new float[vertexCount];
+        for (int v = 0; v < vertexCount; v++) {
+            vertexScore[v] = score(-1, remaining[v]);
+        }
+        boolean[] emitted = new boolean[triangleCount];
+        int[] cache = new int[CACHE_SIZE + 3];
+        int[] newCache = new int[CACHE_SIZE + 3];
+        int cacheCount = 0;
+        int[] out = new int[indices.length];
+        int outCount = 0;
+        int scanCursor = 0;
+        int best = -1;
+
+        for (int emittedCount = 0; emittedCount < triangleCount; emittedCount++) {
+            if (best == -1) {
+                while (emitted[scanCursor]) {
+                    scanCursor++;
+                }
+                best = scanCursor;
+            }
+            emitted[best] = true;
+            int newCount = 0;
+            for (int k = 0; k < 3; k++) {
+                int v = indices[best * 3 + k];
+                out[outCount++] = v;
+                // Keep the live triangles of a vertex at the front of its adjacency range
+                int start = adjacencyStart[v];
+                int end = start + remaining[v];
+                for (int i = start; i < end; i++) {
+                    if (adjacency[i] == best) {
+                        adjacency[i] = adjacency[end - 1];
+                        adjacency[end - 1] = best;
+                        break;
+                    }
+                }
+                remaining[v]--;
+                if (!contains(newCache, newCount, v)) {
+                    newCache[newCount++] = v;
+                }
+            }
+            for (int i = 0; i < cacheCount; i++) {
+                int v = cache[i];
+                if (!contains(newCache, newCount, v)) {
+                    newCache[newCount++] = v;
+                }
+            }
+            for (int i = 0; i < newCount; i++) {
+                int v = newCache[i];
+                cachePosition[v] = i < CACHE_SIZE ? i : -1;
+                vertexScore[v] = score(cachePosition[v], remaining[v]);
+            }
+            best = -1;
+            float bestScore = -1;
+            for (int i = 0; i < Math.min(newCount, CACHE_SIZE); i++) {
+                int v = newCache[i];
+                for (int a = adjacencyStart[v]; a < adjacencyStart[v] + remaining[v]; a++) {
+                    int t = adjacency[a];
+                    float triangleScore = vertexScore[indices[t * 3]] + vertexScore[indices[t * 3 + 1]] + vertexScore[indices[t * 3 + 2]];
+                    if (triangleScore > bestScore) {
+                        bestScore = triangleScore;
+                        best = t;
+                    }
+                }
+            }
+            cacheCount = Math.min(newCount, CACHE_SIZE);
+            int[] swap = cache;
+            cache = newCache;
+            newCache = swap;
+        }
+        return out;
+    }
+
+    private static MeshCompactor reorderVertices(float[] vertices, float[] normals, float[] colors, int[] indices) {
+        int vertexCount = vertices.length / 3;
+        boolean hasNormals = normals != null && normals.length == vertices.length;
+        boolean hasColors = colors != null && colors.length == vertexCount * 4;
+        int[] remap = new int[vertexCount];
+        Arrays.fill(remap, -1);
+        int used = 0;
+        int[] reordered = new int[indices.length];
+        for (int i = 0; i < indices.length; i++) {
+            int v = indices[i];
+            if (remap[v] == -1) {
+                remap[v] = used++;
+            }
+            reordered[i] = remap[v];
+        }
+        float[] reorderedVertices = new float[used * 3];
+        float[] reorderedNormals = hasNormals ? new float[used * 3] : normals;
+        float[] reorderedColors = hasColors ? new float[used * 4] : colors;
+        for (int v = 0; v < vertexCount; v++) {
+            int target = remap[v];
+            if (target == -1) {
+                continue;
+            }
+            System.arraycopy(vertices, v * 3, reorderedVertices, target * 3, 3);
+            if (hasNormals) {
+                System.arraycopy(normals, v * 3, reorderedNormals, target * 3, 3);
+            }
+            if (hasColors) {
+                System.arraycopy(colors, v * 4, reorderedColors, target * 4, 4);
+            }
+        }
+        return new MeshCompactor(reorderedVertices, reorderedNormals, reorderedColors, reordered);
+    }
+
+    private static boolean contains(int[] values, int count, int value) {
+        for (int i = 0; i < count; i++) {
+            if (values[i] == value) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static float score(int cachePosition, int remaining) {
+        if (remaining == 0) {
+            return -1;
+        }
+        float score = 0;
+        if (cachePosition >= 3) {
+            float scaler = 1.0f / (CACHE_SIZE - 3);
+            score = (float) Math.pow(1.0f - (cachePosition - 3) * scaler, CACHE_DECAY_POWER);
+        } else if (cachePosition >= 0) {
+            score = LAST_TRIANGLE_SCORE;
+        }
+        return score + VALENCE_BOOST_SCALE * (float) Math.pow(remaining, -VALENCE_BOOST_POWER);
+    }
+}
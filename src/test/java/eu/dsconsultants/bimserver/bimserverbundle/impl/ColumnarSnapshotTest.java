@@ -0,0 +1,151 @@
+package eu.dsconsultants.bimserver.bimserverbundle.impl;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import eu.dsconsultants.bimserver.bimserverbundle.GeometryBuffers;
+import eu.dsconsultants.bimserver.bimserverbundle.IfcParseResult;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import org.bimserver.emf.IdEObject;
+import org.bimserver.emf.Schema;
+import org.bimserver.models.geometry.Buffer;
+import org.bimserver.models.geometry.GeometryData;
+import org.bimserver.models.geometry.GeometryInfo;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ColumnarSnapshotTest {
+
+    private Path file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = Files.createTempFile("snapshot", ".bin");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(file);
+    }
+
+    @Test
+    public void roundTripsProductsAndGeometry() throws IOException {
+        GeometryData[] shared = {TestProducts.quad(1), TestProducts.quad(2)};
+        shared[1].setColorsQuantized(TestProducts.buffer(new byte[]{1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16}));
+        List<IdEObject> products = products(shared);
+
+        ColumnarSnapshot.write(new IfcParseResult.Builder(Schema.IFC4, null, products).build(), file);
+
+        try (ColumnarSnapshot snapshot = ColumnarSnapshot.open(file)) {
+            assertSnapshotEquals(products, GeometryBuffers.onHeap(), snapshot);
+            assertEquals(2, snapshot.getGeometryCount());
+        }
+    }
+
+    @Test
+    public void roundTripsGeometryFromAnArena() throws IOException {
+        GeometryData[] shared = {TestProducts.quad(1), TestProducts.quad(3)};
+        List<IdEObject> products = products(shared);
+        try (GeometryArena arena = GeometryArena.create()) {
+            for (GeometryData geometryData : shared) {
+                arena.moveOffHeap(geometryData);
+            }
+
+            ColumnarSnapshot.write(new IfcParseResult.Builder(Schema.IFC2X3TC1, null, products).geometryBuffers(arena).build(), file);
+
+            try (ColumnarSnapshot snapshot = ColumnarSnapshot.open(file)) {
+                assertSnapshotEquals(products, arena, snapshot);
+            }
+        }
+    }
+
+    @Test
+    public void keepsAnOpenSnapshotReadableWhenTheFileIsReplaced() throws IOException {
+        List<IdEObject> products = products(new GeometryData[]{TestProducts.quad(1)});
+        ColumnarSnapshot.write(new IfcParseResult.Builder(Schema.IFC4, null, products).build(), file);
+
+        try (ColumnarSnapshot snapshot = ColumnarSnapshot.open(file)) {
+            List<IdEObject> replacement = products.subList(0, 2);
+            ColumnarSnapshot.write(new IfcParseResult.Builder(Schema.IFC4, null, replacement).build(), file);
+
+            assertSnapshotEquals(products, GeometryBuffers.onHeap(), snapshot);
+            try (ColumnarSnapshot replaced = ColumnarSnapshot.open(file)) {
+                assertSnapshotEquals(replacement, GeometryBuffers.onHeap(), replaced);
+            }
+        }
+    }
+
+    // Every other product shares one of the geometries, every third has none
+    private static List<IdEObject> products(GeometryData[] shared) {
+        List<IdEObject> products = new ArrayList<>();
+        for (int i = 0; i < 30; i++) {
+            GeometryInfo geometryInfo = i % 3 == 0 ? null : TestProducts.geometry(shared[i % shared.length], i);
+            products.add(TestProducts.product(100 + i * 7, i % 2 == 0 ? "IfcWall" : "IfcDoor", String.format("%022d", i), geometryInfo));
+        }
+        return products;
+    }
+
+    private static void assertSnapshotEquals(List<IdEObject> products, GeometryBuffers geometryBuffers, ColumnarSnapshot snapshot) {
+        assertEquals(products.size(), snapshot.getProductCount());
+        assertEquals(-1, snapshot.indexOf(1));
+        for (int i = 0; i < products.size(); i++) {
+            IdEObject product = products.get(i);
+            assertEquals(product.getExpressId(), snapshot.getExpressId(i));
+            assertEquals(i, snapshot.indexOf(product.getExpressId()));
+            assertEquals(product.eClass().getName(), snapshot.getType(i));
+            assertEquals(get(product, "GlobalId"), snapshot.getGuid(i));
+            GeometryInfo geometryInfo = (GeometryInfo) get(product, "geometry");
+            if (geometryInfo == null) {
+                assertEquals(-1, snapshot.getGeometry(i));
+                continue;
+            }
+            assertArrayEquals(new double[]{
+                geometryInfo.getBounds().getMin().getX(), geometryInfo.getBounds().getMin().getY(), geometryInfo.getBounds().getMin().getZ(),
+                geometryInfo.getBounds().getMax().getX(), geometryInfo.getBounds().getMax().getY(), geometryInfo.getBounds().getMax().getZ()},
+                    snapshot.getBounds(i), 0);
+            assertEquals(geometryInfo.getArea(), snapshot.getArea(i), 0);
+            assertEquals(geometryInfo.getVolume(), snapshot.getVolume(i), 0);
+            assertEquals(geometryInfo.getPrimitiveCount(), snapshot.getPrimitiveCount(i));
+            double[] transformation = new double[16];
+            ByteBuffer.wrap(geometryInfo.getTransformation()).order(ByteOrder.nativeOrder()).asDoubleBuffer().get(transformation);
+            assertArrayEquals(transformation, snapshot.getTransformation(i), 0);
+
+            GeometryData geometryData = geometryInfo.getData();
+            int geometry = snapshot.getGeometry(i);
+            assertEquals(geometryData.getNrIndices(), snapshot.getNrIndices(geometry));
+            assertBufferEquals(geometryBuffers, geometryData.getIndices(), snapshot.getIndices(geometry));
+            assertBufferEquals(geometryBuffers, geometryData.getVertices(), snapshot.getVertices(geometry));
+            assertBufferEquals(geometryBuffers, geometryData.getNormals(), snapshot.getNormals(geometry));
+            assertBufferEquals(geometryBuffers, geometryData.getColorsQuantized(), snapshot.getColors(geometry));
+            // Shared geometry is written once
+            for (int j = 0; j < i; j++) {
+                GeometryInfo other = (GeometryInfo) get(products.get(j), "geometry");
+                if (other != null) {
+                    assertEquals(other.getData() == geometryData, snapshot.getGeometry(j) == geometry);
+                }
+            }
+        }
+    }
+
+    private static void assertBufferEquals(GeometryBuffers geometryBuffers, Buffer expected, ByteBuffer actual) {
+        if (expected == null) {
+            assertNull(actual);
+            return;
+        }
+        assertNotNull(actual);
+        assertEquals(geometryBuffers.getData(expected), actual);
+    }
+
+    private static Object get(IdEObject object, String feature) {
+        return object.eGet(object.eClass().getEStructuralFeature(feature));
+    }
+}
@@ -0,0 +1,105 @@
+package eu.dsconsultants.bimserver.bimserverbundle.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import org.bimserver.emf.IfcModelInterface;
+import org.bimserver.emf.MetaDataManager;
+import org.bimserver.emf.Schema;
+import org.bimserver.plugins.deserializers.DeserializeException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/*
+ * Loading a whole model against indexing it and loading only its walls. Run
+ * the main method with the test classpath after mvn test-compile.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class DeserializationBenchmark {
+
+    @Param({"20000"})
+    public int walls;
+
+    @Param({"1", "4"})
+    public int parallelism;
+
+    private Path directory;
+    private File file;
+    private ExecutorService executor;
+    private IfcStepDeserializersProvider deserializers;
+    private IfcInput input;
+
+    @Setup
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("deserialization-benchmark");
+        file = directory.resolve("model.ifc").toFile();
+        TestModels.writeStorey(file, walls);
+        executor = Executors.newFixedThreadPool(parallelism);
+        MetaDataManager metaDataManager = new MetaDataManager(Files.createDirectory(directory.resolve("metadata")));
+        metaDataManager.init();
+        deserializers = new IfcStepDeserializersProviderImpl(metaDataManager);
+        input = IfcInput.open(file);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        input.close();
+        executor.shutdownNow();
+        try (Stream<Path> files = Files.walk(directory)) {
+            for (Path path : (Iterable<Path>) files.sorted(Collections.reverseOrder())::iterator) {
+                Files.delete(path);
+            }
+        }
+    }
+
+    @Benchmark
+    public IfcModelInterface deserializeWhole() throws IOException, DeserializeException {
+        try (InputStream in = input.newInputStream()) {
+            return deserializers.getIfc2x3tc1StepDeserializer().read(in, file.getName(), input.length(), null);
+        }
+    }
+
+    @Benchmark
+    public StepIndex index() throws IOException {
+        return StepIndex.build(input, executor, parallelism);
+    }
+
+    @Benchmark
+    public IfcModelInterface deserializeWalls() throws IOException, DeserializeException {
+        StepIndex index = StepIndex.build(input, executor, parallelism);
+        StepSubset subset = StepSubset.select(input, index, deserializers.getPackageMetaData(Schema.IFC2X3TC1), Collections.singleton("IfcWall"));
+        SubsetIfcInput walls = SubsetIfcInput.select(input, index, subset);
+        try (InputStream in = walls.newInputStream()) {
+            return deserializers.getIfc2x3tc1StepDeserializer().read(in, file.getName(), walls.length(), null);
+        }
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(DeserializationBenchmark.class.getSimpleName()).build()).run();
+    }
+}
@@ -0,0 +1,140 @@
+package eu.dsconsultants.bimserver.bimserverbundle.impl;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import org.bimserver.models.geometry.Bounds;
+import org.bimserver.models.geometry.Buffer;
+import org.bimserver.models.geometry.GeometryData;
+import org.bimserver.models.geometry.GeometryFactory;
+import org.bimserver.models.geometry.GeometryInfo;
+import org.bimserver.models.geometry.Vector3f;
+import org.junit.Test;
+
+public class GeometryCodecTest {
+
+    @Test
+    public void roundTripsGeometry() throws IOException {
+        GeometryInfo geometryInfo = geometry(true);
+
+        GeometryInfo read = roundTrip(geometryInfo);
+
+        assertGeometryEquals(geometryInfo, read);
+        assertNull(read.getData().getColorsQuantized());
+    }
+
+    @Test
+    public void roundTripsGeometryWithoutData() throws IOException {
+        GeometryInfo geometryInfo = geometry(false);
+        geometryInfo.setTransformation(null);
+
+        GeometryInfo read = roundTrip(geometryInfo);
+
+        assertGeometryEquals(geometryInfo, read);
+        assertNull(read.getTransformation());
+        assertNull(read.getData());
+    }
+
+    @Test
+    public void writesEveryPayloadAfterItsLength() throws IOException {
+        GeometryInfo geometryInfo = geometry(true);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            GeometryCodec.write(out, geometryInfo);
+        }
+
+        // A missing payload only takes its length
+        assertEquals(fixedSize(geometryInfo) + 4 + 126 * 4 + 4 + 300 + 4 + 300 + 4, bytes.size());
+    }
+
+    private static GeometryInfo roundTrip(GeometryInfo geometryInfo) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            GeometryCodec.write(out, geometryInfo);
+        }
+        return GeometryCodec.read(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+    }
+
+    // Bounds, area, volume, primitive count, transformation, data flag and index count
+    private static int fixedSize(GeometryInfo geometryInfo) {
+        return 6 * 8 + 2 * 8 + 4 + 4 + geometryInfo.getTransformation().length + 1 + 4;
+    }
+
+    private static GeometryInfo geometry(boolean withData) {
+        GeometryInfo geometryInfo = GeometryFactory.eINSTANCE.createGeometryInfo();
+        Bounds bounds = GeometryFactory.eINSTANCE.createBounds();
+        bounds.setMin(vector(-1, -2.5, 0));
+        bounds.setMax(vector(4, 5, 6.25));
+        geometryInfo.setBounds(bounds);
+        geometryInfo.setArea(12.5);
+        geometryInfo.setVolume(3.75);
+        geometryInfo.setPrimitiveCount(42);
+        geometryInfo.setTransformation(buffer(128, 1).getData());
+        if (withData) {
+            GeometryData geometryData = GeometryFactory.eINSTANCE.createGeometryData();
+            geometryData.setNrIndices(126);
+            geometryData.setIndices(buffer(126 * 4, 2));
+            geometryData.setVertices(buffer(300, 3));
+            geometryData.setNormals(buffer(300, 4));
+            geometryInfo.setData(geometryData);
+        }
+        return geometryInfo;
+    }
+
+    private static Vector3f vector(double x, double y, double z) {
+        Vector3f vector = GeometryFactory.eINSTANCE.createVector3f();
+        vector.setX(x);
+        vector.setY(y);
+        vector.setZ(z);
+        return vector;
+    }
+
+    private static Buffer buffer(int length, int seed) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) (seed * 31 + i);
+        }
+        Buffer buffer = GeometryFactory.eINSTANCE.createBuffer();
+        buffer.setData(data);
+        return buffer;
+    }
+
+    private static void assertGeometryEquals(GeometryInfo expected, GeometryInfo actual) {
+        assertVectorEquals(expected.getBounds().getMin(), actual.getBounds().getMin());
+        assertVectorEquals(expected.getBounds().getMax(), actual.getBounds().getMax());
+        assertEquals(expected.getArea(), actual.getArea(), 0);
+        assertEquals(expected.getVolume(), actual.getVolume(), 0);
+        assertEquals(expected.getPrimitiveCount(), actual.getPrimitiveCount());
+        assertArrayEquals(expected.getTransformation(), actual.getTransformation());
+        if (expected.getData() == null) {
+            assertNull(actual.getData());
+            return;
+        }
+        GeometryData data = expected.getData();
+        assertEquals(data.getNrIndices(), actual.getData().getNrIndices());
+        assertBufferEquals(data.getIndices(), actual.getData().getIndices());
+        assertBufferEquals(data.getVertices(), actual.getData().getVertices());
+        assertBufferEquals(data.getNormals(), actual.getData().getNormals());
+        assertBufferEquals(data.getColorsQuantized(), actual.getData().getColorsQuantized());
+    }
+
+    private static void assertVectorEquals(Vector3f expected, Vector3f actual) {
+        assertEquals(expected.getX(), actual.getX(), 0);
+        assertEquals(expected.getY(), actual.getY(), 0);
+        assertEquals(expected.getZ(), actual.getZ(), 0);
+    }
+
+    private static void assertBufferEquals(Buffer expected, Buffer actual) {
+        if (expected == null) {
+            assertNull(actual);
+        } else {
+            assertArrayEquals(expected.getData(), actual.getData());
+        }
+    }
+}
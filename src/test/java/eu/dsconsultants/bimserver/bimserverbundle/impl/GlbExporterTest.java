@@ -0,0 +1,284 @@
+package eu.dsconsultants.bimserver.bimserverbundle.impl;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+import eu.dsconsultants.bimserver.bimserverbundle.GeometryBuffers;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+import org.bimserver.models.geometry.Buffer;
+import org.bimserver.models.geometry.GeometryData;
+import org.bimserver.models.geometry.GeometryInfo;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class GlbExporterTest {
+
+    private static final int GLB_MAGIC = 0x46546C67;
+    private static final int CHUNK_JSON = 0x4E4F534A;
+    private static final int CHUNK_BIN = 0x004E4942;
+
+    private Path file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = Files.createTempFile("model", ".glb");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(file);
+    }
+
+    @Test
+    public void roundTripsMeshesAndNodes() throws IOException {
+        GeometryData quad = TestProducts.quad(2);
+        GeometryData triangle = TestProducts.geometryData(new float[]{0, 0, 0, 1, 0, 0, 0, 1, 0}, new int[]{0, 1, 2});
+        // Compacted geometry with 16-bit indices
+        triangle.setIndices(TestProducts.buffer(ByteBuffer.allocate(6).order(ByteOrder.LITTLE_ENDIAN)
+                .putShort((short) 0).putShort((short) 1).putShort((short) 2).array()));
+        Map<Integer, GeometryInfo> products = new LinkedHashMap<>();
+        products.put(11, TestProducts.geometry(quad, 1));
+        products.put(12, TestProducts.geometry(triangle, 2));
+        products.put(13, TestProducts.geometry(quad, 3));
+        products.put(14, TestProducts.geometry(null, 4));
+        products.put(15, null);
+
+        try (GlbExporter glb = GlbExporter.create(file, GeometryBuffers.onHeap())) {
+            for (Map.Entry<Integer, GeometryInfo> product : products.entrySet()) {
+                glb.add(product.getKey(), "IfcWall", product.getValue());
+            }
+            glb.finish();
+        }
+
+        Glb glb = Glb.read(file);
+        List<?> nodes = glb.array("nodes");
+        // The Z up root and one node per product with triangles
+        assertEquals(4, nodes.size());
+        assertEquals(2, glb.array("meshes").size());
+        assertEquals("IfcModel", map(nodes.get(0)).get("name"));
+        assertEquals(list(1.0, 2.0, 3.0), map(nodes.get(0)).get("children"));
+        int node = 1;
+        for (Map.Entry<Integer, GeometryInfo> product : products.entrySet()) {
+            if (product.getValue() == null || product.getValue().getData() == null) {
+                continue;
+            }
+            Map<?, ?> json = map(nodes.get(node++));
+            assertEquals("IfcWall #" + product.getKey(), json.get("name"));
+            assertEquals((double) product.getKey(), map(json.get("extras")).get("expressId"));
+            double[] matrix = new double[16];
+            ByteBuffer.wrap(product.getValue().getTransformation()).order(ByteOrder.nativeOrder()).asDoubleBuffer().get(matrix);
+            assertArrayEquals(matrix, doubles(json.get("matrix")), 0);
+            assertMeshEquals(glb, product.getValue().getData(), map(glb.array("meshes").get(number(json.get("mesh")))));
+        }
+        // Shared geometry is written once
+        assertEquals(map(nodes.get(1)).get("mesh"), map(nodes.get(3)).get("mesh"));
+    }
+
+    @Test
+    public void writesAValidFileWithoutGeometry() throws IOException {
+        try (GlbExporter glb = GlbExporter.create(file, GeometryBuffers.onHeap())) {
+            glb.add(1, null, null);
+            glb.finish();
+        }
+
+        Glb glb = Glb.read(file);
+        assertEquals(1, glb.array("nodes").size());
+        assertNull(glb.json.get("meshes"));
+        assertNull(glb.json.get("buffers"));
+        assertEquals(0, glb.bin.remaining());
+    }
+
+    @Test
+    public void removesItsTemporaryFiles() throws IOException {
+        long before = temporaryFiles();
+        try (GlbExporter glb = GlbExporter.create(file, GeometryBuffers.onHeap())) {
+            glb.add(1, null, TestProducts.geometry(TestProducts.quad(1), 0));
+            glb.finish();
+        }
+        assertEquals(before, temporaryFiles());
+    }
+
+    private long temporaryFiles() throws IOException {
+        try (Stream<Path> files = Files.list(file.getParent())) {
+            return files.filter(path -> path.getFileName().toString().startsWith("glb-")).count();
+        }
+    }
+
+    private static void assertMeshEquals(Glb glb, GeometryData geometryData, Map<?, ?> mesh) {
+        Map<?, ?> primitive = map(((List<?>) mesh.get("primitives")).get(0));
+        assertEquals(4.0, primitive.get("mode"));
+        Map<?, ?> attributes = map(primitive.get("attributes"));
+        int vertexCount = geometryData.getVertices().getData().length / 12;
+
+        Map<?, ?> position = glb.accessor(attributes.get("POSITION"));
+        assertEquals(5126.0, position.get("componentType"));
+        assertEquals("VEC3", position.get("type"));
+        assertEquals((double) vertexCount, position.get("count"));
+        assertBufferEquals(geometryData.getVertices(), glb.data(position));
+        ByteBuffer vertices = ByteBuffer.wrap(geometryData.getVertices().getData()).order(ByteOrder.LITTLE_ENDIAN);
+        double[] min = {Double.MAX_VALUE, Double.MAX_VALUE, Double.MAX_VALUE};
+        double[] max = {-Double.MAX_VALUE, -Double.MAX_VALUE, -Double.MAX_VALUE};
+        for (int i = 0; i < vertexCount * 3; i++) {
+            min[i % 3] = Math.min(min[i % 3], vertices.getFloat(i * 4));
+            max[i % 3] = Math.max(max[i % 3], vertices.getFloat(i * 4));
+        }
+        assertArrayEquals(min, doubles(position.get("min")), 0);
+        assertArrayEquals(max, doubles(position.get("max")), 0);
+
+        assertBufferEquals(geometryData.getNormals(), glb.data(glb.accessor(attributes.get("NORMAL"))));
+        assertFalse(attributes.containsKey("COLOR_0"));
+
+        Map<?, ?> indices = glb.accessor(primitive.get("indices"));
+        boolean shortIndices = geometryData.getIndices().getData().length == geometryData.getNrIndices() * 2;
+        assertEquals(shortIndices ? 5123.0 : 5125.0, indices.get("componentType"));
+        assertEquals((double) geometryData.getNrIndices(), indices.get("count"));
+        assertBufferEquals(geometryData.getIndices(), glb.data(indices));
+    }
+
+    private static void assertBufferEquals(Buffer expected, ByteBuffer actual) {
+        byte[] bytes = new byte[actual.remaining()];
+        actual.get(bytes);
+        assertArrayEquals(expected.getData(), bytes);
+    }
+
+    private static Map<?, ?> map(Object json) {
+        return (Map<?, ?>) json;
+    }
+
+    private static int number(Object json) {
+        return ((Double) json).intValue();
+    }
+
+    private static double[] doubles(Object json) {
+        List<?> values = (List<?>) json;
+        double[] result = new double[values.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = (Double) values.get(i);
+        }
+        return result;
+    }
+
+    private static List<Object> list(Object... values) {
+        List<Object> list = new ArrayList<>();
+        for (Object value : values) {
+            list.add(value);
+        }
+        return list;
+    }
+
+    // The two chunks of a GLB file with the JSON one parsed
+    private static class Glb {
+
+        private final Map<?, ?> json;
+        private final ByteBuffer bin;
+
+        private Glb(Map<?, ?> json, ByteBuffer bin) {
+            this.json = json;
+            this.bin = bin;
+        }
+
+        static Glb read(Path file) throws IOException {
+            ByteBuffer glb = ByteBuffer.wrap(Files.readAllBytes(file)).order(ByteOrder.LITTLE_ENDIAN);
+            assertEquals(GLB_MAGIC, glb.getInt());
+            assertEquals(2, glb.getInt());
+            assertEquals(glb.capacity(), glb.getInt());
+            int jsonLength = glb.getInt();
+            assertEquals(0, jsonLength % 4);
+            assertEquals(CHUNK_JSON, glb.getInt());
+            String json = new String(glb.array(), glb.position(), jsonLength, StandardCharsets.UTF_8);
+            glb.position(glb.position() + jsonLength);
+            ByteBuffer bin = ByteBuffer.allocate(0);
+            if (glb.hasRemaining()) {
+                int binLength = glb.getInt();
+                assertEquals(CHUNK_BIN, glb.getInt());
+                assertEquals(binLength, glb.remaining());
+                bin = glb.slice().order(ByteOrder.LITTLE_ENDIAN);
+            }
+            return new Glb(map(new JsonParser(json.trim()).value()), bin);
+        }
+
+        List<?> array(String name) {
+            return (List<?>) json.get(name);
+        }
+
+        Map<?, ?> accessor(Object index) {
+            return map(array("accessors").get(number(index)));
+        }
+
+        ByteBuffer data(Map<?, ?> accessor) {
+            Map<?, ?> bufferView = map(array("bufferViews").get(number(accessor.get("bufferView"))));
+            int offset = number(bufferView.get("byteOffset"));
+            assertEquals(0, offset % 4);
+            ByteBuffer data = bin.duplicate();
+            data.position(offset).limit(offset + number(bufferView.get("byteLength")));
+            return data.slice();
+        }
+    }
+
+    // Just enough JSON for what GlbExporter writes, numbers become doubles
+    private static class JsonParser {
+
+        private final String text;
+        private int position;
+
+        JsonParser(String text) {
+            this.text = text;
+        }
+
+        Object value() {
+            char c = text.charAt(position);
+            if (c == '{') {
+                Map<String, Object> object = new LinkedHashMap<>();
+                position++;
+                while (text.charAt(position) != '}') {
+                    String key = (String) value();
+                    expect(':');
+                    object.put(key, value());
+                    if (text.charAt(position) == ',') {
+                        position++;
+                    }
+                }
+                position++;
+                return object;
+            } else if (c == '[') {
+                List<Object> array = new ArrayList<>();
+                position++;
+                while (text.charAt(position) != ']') {
+                    array.add(value());
+                    if (text.charAt(position) == ',') {
+                        position++;
+                    }
+                }
+                position++;
+                return array;
+            } else if (c == '"') {
+                int end = text.indexOf('"', position + 1);
+                String string = text.substring(position + 1, end);
+                position = end + 1;
+                return string;
+            }
+            int start = position;
+            while (position < text.length() && "+-0123456789.eE".indexOf(text.charAt(position)) >= 0) {
+                position++;
+            }
+            return Double.valueOf(text.substring(start, position));
+        }
+
+        private void expect(char c) {
+            assertEquals(c, text.charAt(position++));
+        }
+    }
+}
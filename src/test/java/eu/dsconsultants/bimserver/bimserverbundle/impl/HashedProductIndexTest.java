@@ -0,0 +1,165 @@
+package eu.dsconsultants.bimserver.bimserverbundle.impl;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import org.bimserver.emf.IdEObject;
+import org.eclipse.emf.ecore.EClass;
+import org.junit.Before;
+import org.junit.Test;
+
+public class HashedProductIndexTest {
+
+    private static final EClass PRODUCT = TestProducts.eClass("IfcProduct");
+    private static final EClass ELEMENT = TestProducts.eClass("IfcBuildingElement", PRODUCT);
+    private static final EClass WALL = TestProducts.eClass("IfcWall", ELEMENT);
+    private static final EClass WALL_STANDARD_CASE = TestProducts.eClass("IfcWallStandardCase", WALL);
+    private static final EClass DOOR = TestProducts.eClass("IfcDoor", ELEMENT);
+    private static final EClass STRUCTURE = TestProducts.eClass("IfcSpatialStructureElement", PRODUCT);
+    private static final EClass STOREY = TestProducts.eClass("IfcBuildingStorey", STRUCTURE);
+    private static final EClass SPACE = TestProducts.eClass("IfcSpace", STRUCTURE);
+    private static final EClass CONTAINED = TestProducts.eClass("IfcRelContainedInSpatialStructure");
+    private static final EClass AGGREGATES = TestProducts.eClass("IfcRelAggregates");
+
+    private final List<IdEObject> products = new ArrayList<>();
+    private final Map<Integer, Integer> expectedStoreys = new HashMap<>();
+    private final Map<Integer, String> guids = new HashMap<>();
+    private HashedProductIndex index;
+
+    // Storeys holding spaces and elements, elements in spaces, parts of walls
+    // and elements in no storey, in shuffled order
+    @Before
+    public void setUp() {
+        Random random = new Random(5);
+        int expressId = 1;
+        List<IdEObject> storeys = new ArrayList<>();
+        for (int s = 0; s < 3; s++) {
+            IdEObject storey = product(expressId++, STOREY, null, null);
+            storeys.add(storey);
+            expectedStoreys.put(storey.getExpressId(), -1);
+        }
+        List<IdEObject> containers = new ArrayList<>();
+        for (int s = 0; s < 12; s++) {
+            IdEObject storey = storeys.get(s % storeys.size());
+            IdEObject space = product(expressId++, SPACE, null, relationship(AGGREGATES, "RelatingObject", storey));
+            containers.add(space);
+            expectedStoreys.put(space.getExpressId(), storey.getExpressId());
+        }
+        containers.addAll(storeys);
+        EClass[] elementTypes = {WALL, WALL_STANDARD_CASE, DOOR};
+        for (int i = 0; i < 3000; i++) {
+            EClass type = elementTypes[random.nextInt(elementTypes.length)];
+            IdEObject product;
+            if (i % 10 == 0) {
+                product = product(expressId++, type, null, null);
+                expectedStoreys.put(product.getExpressId(), -1);
+            } else if (i % 10 == 1) {
+                IdEObject whole = products.get(products.size() - 1);
+                product = product(expressId++, type, null, relationship(AGGREGATES, "RelatingObject", whole));
+                expectedStoreys.put(product.getExpressId(), expectedStoreys.get(whole.getExpressId()));
+            } else {
+                IdEObject container = containers.get(random.nextInt(containers.size()));
+                product = product(expressId++, type, relationship(CONTAINED, "RelatingStructure", container), null);
+                expectedStoreys.put(product.getExpressId(),
+                        container.eClass() == STOREY ? container.getExpressId() : expectedStoreys.get(container.getExpressId()));
+            }
+        }
+        Collections.shuffle(products, random);
+        index = HashedProductIndex.build(products);
+    }
+
+    @Test
+    public void findsProductsByExpressIdAndGlobalId() {
+        assertEquals(3015, index.size());
+        for (IdEObject product : products) {
+            assertSame(product, index.getProduct(product.getExpressId()));
+            String guid = guids.get(product.getExpressId());
+            if (guid != null && !guid.startsWith("duplicate")) {
+                assertEquals(product.getExpressId(), index.findByGlobalId(guid));
+            }
+        }
+        assertNull(index.getProduct(0));
+        assertEquals(-1, index.findByGlobalId("missing"));
+    }
+
+    @Test
+    public void keepsTheFirstProductOfADuplicateGlobalId() {
+        int first = -1;
+        for (IdEObject product : products) {
+            if ("duplicate".equals(guids.get(product.getExpressId()))) {
+                first = product.getExpressId();
+                break;
+            }
+        }
+        assertEquals(first, index.findByGlobalId("duplicate"));
+    }
+
+    @Test
+    public void findsProductsByTypeAndSupertype() {
+        for (EClass type : new EClass[]{PRODUCT, ELEMENT, WALL, WALL_STANDARD_CASE, DOOR, STRUCTURE, STOREY, SPACE}) {
+            List<Integer> expected = new ArrayList<>();
+            for (IdEObject product : products) {
+                if (product.eClass() == type || product.eClass().getEAllSuperTypes().contains(type)) {
+                    expected.add(product.getExpressId());
+                }
+            }
+            assertArrayEquals(type.getName(), sorted(expected), sorted(index.findByType(type.getName().toLowerCase())));
+        }
+        assertEquals(0, index.findByType("IfcWindow").length);
+    }
+
+    @Test
+    public void findsProductsByStorey() {
+        Map<Integer, List<Integer>> expected = new HashMap<>();
+        for (IdEObject product : products) {
+            int storey = expectedStoreys.get(product.getExpressId());
+            assertEquals(storey, index.getStorey(product.getExpressId()));
+            if (storey != -1) {
+                expected.computeIfAbsent(storey, key -> new ArrayList<>()).add(product.getExpressId());
+            }
+        }
+        assertEquals(3, expected.size());
+        for (Map.Entry<Integer, List<Integer>> storey : expected.entrySet()) {
+            // In model order
+            assertArrayEquals(storey.getValue().stream().mapToInt(Integer::intValue).toArray(), index.findByStorey(storey.getKey()));
+        }
+        assertEquals(0, index.findByStorey(0).length);
+        assertEquals(-1, index.getStorey(0));
+    }
+
+    private IdEObject product(int expressId, EClass type, IdEObject containedIn, IdEObject decomposes) {
+        Map<String, Object> attributes = new HashMap<>();
+        // Every hundredth product shares a GlobalId
+        String guid = expressId % 100 == 50 ? "duplicate" : String.format("%022d", expressId);
+        guids.put(expressId, guid);
+        attributes.put("GlobalId", guid);
+        attributes.put("ContainedInStructure", containedIn == null ? Collections.emptyList() : Collections.singletonList(containedIn));
+        attributes.put("Decomposes", decomposes == null ? Collections.emptyList() : Collections.singletonList(decomposes));
+        IdEObject product = TestProducts.object(expressId, type, attributes);
+        products.add(product);
+        return product;
+    }
+
+    private static IdEObject relationship(EClass type, String feature, IdEObject related) {
+        return TestProducts.object(0, type, Collections.singletonMap(feature, related));
+    }
+
+    private static int[] sorted(List<Integer> values) {
+        return sorted(values.stream().mapToInt(Integer::intValue).toArray());
+    }
+
+    private static int[] sorted(int[] values) {
+        int[] result = values.clone();
+        Arrays.sort(result);
+        return result;
+    }
+}
@@ -0,0 +1,97 @@
+package eu.dsconsultants.bimserver.bimserverbundle.impl;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.zip.GZIPOutputStream;
+import org.junit.Test;
+
+public class IfcInputTest {
+
+    @Test
+    public void keepsTheMappingForOpenStreams() throws IOException {
+        byte[] content = content(100_000);
+        Path file = Files.createTempFile("mapped-input", ".ifc");
+        try {
+            Files.write(file, content);
+            MappedIfcInput input = MappedIfcInput.open(file.toFile());
+            InputStream in = input.newInputStream();
+            byte[] head = new byte[10];
+            assertEquals(10, input.read(0, head, 0, 10));
+            input.close();
+
+            // A stream opened before close still reads the whole file
+            assertArrayEquals(content, readAll(in));
+            in.close();
+            assertEquals(-1, in.read());
+
+            try {
+                input.read(0, head, 0, 10);
+                fail("Reading a closed input must fail");
+            } catch (IOException expected) {
+                // The segments have been unmapped
+            }
+            try {
+                input.newInputStream();
+                fail("Opening a stream on a closed input must fail");
+            } catch (IOException expected) {
+                // The segments have been unmapped
+            }
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void inflatesCompressedInputIntoATemporaryFile() throws IOException {
+        byte[] content = content(3 * 1024 * 1024);
+        Path file = Files.createTempFile("compressed-input", ".ifc.gz");
+        try {
+            try (OutputStream out = new GZIPOutputStream(Files.newOutputStream(file))) {
+                out.write(content);
+            }
+            Path inflated;
+            try (IfcInput input = IfcInput.open(file.toFile())) {
+                assertEquals(content.length, input.length());
+                assertEquals(file.getFileName().toString().replace(".gz", ""), input.getFileName());
+                try (InputStream in = input.newInputStream()) {
+                    assertArrayEquals(content, readAll(in));
+                }
+                byte[] tail = new byte[16];
+                assertEquals(16, input.read(content.length - 16, tail, 0, 16));
+                assertEquals(content[content.length - 1], tail[15]);
+                inflated = ((CompressedIfcInput) input).inflatedFile();
+                assertEquals(content.length, Files.size(inflated));
+            }
+            assertFalse(Files.exists(inflated));
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    private static byte[] content(int size) {
+        byte[] content = new byte[size];
+        for (int i = 0; i < content.length; i++) {
+            content[i] = (byte) (i * 31 + i / 1000);
+        }
+        return content;
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] transfer = new byte[4096];
+        int n;
+        while ((n = in.read(transfer)) != -1) {
+            out.write(transfer, 0, n);
+        }
+        return out.toByteArray();
+    }
+}
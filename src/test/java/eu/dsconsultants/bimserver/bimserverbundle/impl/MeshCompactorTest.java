@@ -0,0 +1,139 @@
+package eu.dsconsultants.bimserver.bimserverbundle.impl;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import org.junit.Test;
+
+public class MeshCompactorTest {
+
+    private static final int GRID = 20;
+
+    @Test
+    public void weldsATriangleSoupIntoSharedVertices() {
+        float[][] soup = gridSoup(false);
+
+        MeshCompactor mesh = MeshCompactor.weld(soup[0], soup[1], soup[2], sequence(soup[0].length / 3));
+
+        assertEquals((GRID + 1) * (GRID + 1), mesh.getVertexCount());
+        assertCornersEqual(soup[0], soup[1], soup[2], sequence(soup[0].length / 3), mesh);
+    }
+
+    @Test
+    public void keepsVerticesWhoseNormalsOrColorsDiffer() {
+        float[][] soup = gridSoup(true);
+        int[] indices = sequence(soup[0].length / 3);
+
+        MeshCompactor withNormals = MeshCompactor.weld(soup[0], soup[1], null, indices);
+        MeshCompactor withColors = MeshCompactor.weld(soup[0], null, soup[2], indices);
+
+        // Every triangle has a normal and a colour of its own, no corner is shared
+        assertEquals(soup[0].length / 3, withNormals.getVertexCount());
+        assertEquals(soup[0].length / 3, withColors.getVertexCount());
+        assertCornersEqual(soup[0], soup[1], null, indices, withNormals);
+        assertCornersEqual(soup[0], null, soup[2], indices, withColors);
+        assertNull(withNormals.getColors());
+    }
+
+    @Test
+    public void keepsMeshesWithMismatchedAttributes() {
+        float[][] soup = gridSoup(false);
+        int[] indices = sequence(soup[0].length / 3);
+        float[] shortNormals = Arrays.copyOf(soup[1], soup[1].length - 3);
+
+        MeshCompactor mesh = MeshCompactor.weld(soup[0], shortNormals, null, indices);
+
+        assertSame(soup[0], mesh.getVertices());
+        assertSame(shortNormals, mesh.getNormals());
+        assertSame(indices, mesh.getIndices());
+    }
+
+    @Test
+    public void keepsMeshesWithoutDuplicates() {
+        float[] vertices = {0, 0, 0, 1, 0, 0, 0, 1, 0};
+        int[] indices = {0, 1, 2};
+
+        MeshCompactor mesh = MeshCompactor.weld(vertices, null, null, indices);
+
+        assertSame(vertices, mesh.getVertices());
+        assertSame(indices, mesh.getIndices());
+    }
+
+    @Test
+    public void roundTripsIndicesThroughTheirByteForm() {
+        int[] indices = {0, 1, 32767, 32768, 65535, 7};
+
+        byte[] shorts = MeshCompactor.indicesToByteArray(indices, MeshCompactor.MAX_SHORT_INDEX_VERTICES);
+        byte[] ints = MeshCompactor.indicesToByteArray(indices, MeshCompactor.MAX_SHORT_INDEX_VERTICES + 1);
+
+        assertEquals(indices.length * 2, shorts.length);
+        assertEquals(indices.length * 4, ints.length);
+        ByteBuffer shortBuffer = ByteBuffer.wrap(shorts).order(ByteOrder.LITTLE_ENDIAN);
+        ByteBuffer intBuffer = ByteBuffer.wrap(ints).order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; i < indices.length; i++) {
+            assertEquals(indices[i], shortBuffer.getShort(i * 2) & 0xffff);
+            assertEquals(indices[i], intBuffer.getInt(i * 4));
+        }
+        assertNull(MeshCompactor.indicesToByteArray(null, 3));
+    }
+
+    // Vertices, normals and colours of a flat grid with three vertices of its
+    // own per triangle, the way the engine delivers them. With faceted set
+    // every triangle gets a distinct normal and colour
+    private static float[][] gridSoup(boolean faceted) {
+        int triangles = GRID * GRID * 2;
+        float[] vertices = new float[triangles * 9];
+        float[] normals = new float[triangles * 9];
+        float[] colors = new float[triangles * 12];
+        int t = 0;
+        for (int y = 0; y < GRID; y++) {
+            for (int x = 0; x < GRID; x++) {
+                int[][] corners = {{x, y}, {x + 1, y}, {x, y + 1}, {x + 1, y}, {x + 1, y + 1}, {x, y + 1}};
+                for (int c = 0; c < 6; c++) {
+                    int triangle = t + c / 3;
+                    int v = triangle * 3 + c % 3;
+                    vertices[v * 3] = corners[c][0];
+                    vertices[v * 3 + 1] = corners[c][1];
+                    normals[v * 3] = faceted ? triangle : 0;
+                    normals[v * 3 + 2] = 1;
+                    colors[v * 4] = faceted ? triangle : 0.5f;
+                    colors[v * 4 + 3] = 1;
+                }
+                t += 2;
+            }
+        }
+        return new float[][]{vertices, normals, colors};
+    }
+
+    private static int[] sequence(int count) {
+        int[] sequence = new int[count];
+        for (int i = 0; i < count; i++) {
+            sequence[i] = i;
+        }
+        return sequence;
+    }
+
+    // Every corner of every triangle has the same attributes before and after
+    private static void assertCornersEqual(float[] vertices, float[] normals, float[] colors, int[] indices, MeshCompactor mesh) {
+        assertEquals(indices.length, mesh.getIndices().length);
+        for (int i = 0; i < indices.length; i++) {
+            int before = indices[i];
+            int after = mesh.getIndices()[i];
+            assertArrayEquals(Arrays.copyOfRange(vertices, before * 3, before * 3 + 3),
+                    Arrays.copyOfRange(mesh.getVertices(), after * 3, after * 3 + 3), 0);
+            if (normals != null) {
+                assertArrayEquals(Arrays.copyOfRange(normals, before * 3, before * 3 + 3),
+                        Arrays.copyOfRange(mesh.getNormals(), after * 3, after * 3 + 3), 0);
+            }
+            if (colors != null) {
+                assertArrayEquals(Arrays.copyOfRange(colors, before * 4, before * 4 + 4),
+                        Arrays.copyOfRange(mesh.getColors(), after * 4, after * 4 + 4), 0);
+            }
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package eu.dsconsultants.bimserver.bimserverbundle.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.stream.Stream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ParseAdmissionControllerTest {
+
+    private static final int MB = 1024 * 1024;
+    private Path directory;
+
+    @Before
+    public void createDirectory() throws IOException {
+        directory = Files.createTempDirectory("admission-test");
+    }
+
+    @After
+    public void deleteDirectory() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(directory);
+    }
+
+    @Test
+    public void estimatesCompressedInputByItsInflatedSize() throws IOException {
+        byte[] step = step("IFC2X3", 8 * MB);
+        File plain = write("model.ifc", step);
+        File gzip = directory.resolve("model.ifc.gz").toFile();
+        try (OutputStream out = new GZIPOutputStream(Files.newOutputStream(gzip.toPath()))) {
+            out.write(step);
+        }
+        File zip = directory.resolve("model.ifczip").toFile();
+        try (ZipOutputStream out = new ZipOutputStream(Files.newOutputStream(zip.toPath()))) {
+            out.putNextEntry(new ZipEntry("readme.txt"));
+            out.write(new byte[16]);
+            out.putNextEntry(new ZipEntry("models/model.ifc"));
+            out.write(step);
+        }
+        assertTrue(gzip.length() * 10 < plain.length());
+
+        assertEquals(step.length, IfcInput.uncompressedLength(gzip));
+        assertEquals(step.length, IfcInput.uncompressedLength(zip));
+        try (ParseAdmissionController controller = new ParseAdmissionController(1, 1, 1024)) {
+            // The schema is read from the header, IFC2X3 models take 12 bytes per byte of input
+            assertEquals(96, controller.estimateMemoryMb(plain, null));
+            assertEquals(96, controller.estimateMemoryMb(gzip, null));
+            assertEquals(96, controller.estimateMemoryMb(zip, null));
+        }
+    }
+
+    @Test
+    public void assumesTheExpensiveSchemaWhenItCannotBeDetected() throws IOException {
+        File ifc4 = write("ifc4.ifc", step("IFC4", MB));
+        File unknown = write("unknown.ifc", new byte[MB]);
+        try (ParseAdmissionController controller = new ParseAdmissionController(1, 1, 1024)) {
+            assertEquals(15, controller.estimateMemoryMb(ifc4, null));
+            assertEquals(15, controller.estimateMemoryMb(unknown, null));
+        }
+    }
+
+    private File write(String name, byte[] content) throws IOException {
+        return Files.write(directory.resolve(name), content).toFile();
+    }
+
+    private static byte[] step(String schema, int size) {
+        byte[] step = new byte[size];
+        byte[] header = ("ISO-10303-21;\nHEADER;\nFILE_SCHEMA(('" + schema + "'));\nENDSEC;\nDATA;\n").getBytes(StandardCharsets.US_ASCII);
+        System.arraycopy(header, 0, step, 0, header.length);
+        for (int i = header.length; i < size; i++) {
+            step[i] = (byte) (i % 64 == 63 ? '\n' : ' ');
+        }
+        return step;
+    }
+}
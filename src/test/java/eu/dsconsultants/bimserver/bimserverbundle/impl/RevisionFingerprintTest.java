@@ -0,0 +1,47 @@
+package eu.dsconsultants.bimserver.bimserverbundle.impl;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import eu.dsconsultants.bimserver.bimserverbundle.GeometryBuffers;
+import eu.dsconsultants.bimserver.bimserverbundle.IfcParseOptions;
+import java.util.IdentityHashMap;
+import org.junit.Test;
+
+public class RevisionFingerprintTest {
+
+    @Test
+    public void reusesProductsByHash() {
+        RevisionFingerprint.Builder builder = new RevisionFingerprint.Builder("model", new IfcParseOptions());
+        builder.add(42, null);
+        RevisionFingerprint revision = builder.build(GeometryBuffers.onHeap());
+
+        assertTrue(revision.contains(42));
+        assertFalse(revision.contains(43));
+        // Products without geometry are reused as such
+        assertNull(revision.reuse(42, true, new IdentityHashMap<>()));
+    }
+
+    @Test
+    public void matchesOnlyTheGeometryOptionsItWasMadeWith() {
+        IfcParseOptions options = new IfcParseOptions();
+        options.setCompactIndices(true);
+        RevisionFingerprint revision = new RevisionFingerprint.Builder("model", options).build(GeometryBuffers.onHeap());
+
+        assertTrue(revision.hasGeometryOptions(options));
+        options.setOptimizeVertexCache(true);
+        assertFalse(revision.hasGeometryOptions(options));
+        options.setOptimizeVertexCache(false);
+        options.setQuantitiesOnly(true);
+        assertFalse(revision.hasGeometryOptions(options));
+        options.setQuantitiesOnly(false);
+        options.setCompactIndices(false);
+        assertFalse(revision.hasGeometryOptions(options));
+        // Options that do not change the geometry do not matter
+        options.setCompactIndices(true);
+        options.setOffHeapGeometry(true);
+        options.setSpatialIndex(true);
+        assertTrue(revision.hasGeometryOptions(options));
+    }
+}
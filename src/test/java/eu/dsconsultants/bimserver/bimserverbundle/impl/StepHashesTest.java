@@ -0,0 +1,175 @@
+package eu.dsconsultants.bimserver.bimserverbundle.impl;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class StepHashesTest {
+
+    private static final int WALL = 9;
+    private static final int SLAB = 13;
+    private static final List<String> MODEL = Arrays.asList(
+            "#1=IFCCARTESIANPOINT((0.,0.,0.));",
+            "#2=IFCAXIS2PLACEMENT3D(#1,$,$);",
+            "#3=IFCLOCALPLACEMENT($,#2);",
+            "#4=IFCRECTANGLEPROFILEDEF(.AREA.,$,$,5.,0.2);",
+            "#5=IFCDIRECTION((0.,0.,1.));",
+            "#6=IFCEXTRUDEDAREASOLID(#4,#2,#5,3.);",
+            "#7=IFCSHAPEREPRESENTATION($,'Body','SweptSolid',(#6));",
+            "#8=IFCPRODUCTDEFINITIONSHAPE($,$,(#7));",
+            "#9=IFCWALL('0wall',$,'Wall',$,$,#3,#8,$);",
+            "#10=IFCEXTRUDEDAREASOLID(#4,#2,#5,0.3);",
+            "#11=IFCSHAPEREPRESENTATION($,'Body','SweptSolid',(#10));",
+            "#12=IFCPRODUCTDEFINITIONSHAPE($,$,(#11));",
+            "#13=IFCSLAB('0slab',$,'Slab',$,$,#3,#12,$,$);",
+            "#14=IFCCOLOURRGB($,0.5,0.5,0.5);",
+            "#15=IFCSURFACESTYLESHADING(#14);",
+            "#16=IFCSURFACESTYLE($,.BOTH.,(#15));",
+            "#17=IFCPRESENTATIONSTYLEASSIGNMENT((#16));",
+            "#18=IFCSTYLEDITEM(#6,(#17),$);",
+            "#19=IFCMATERIAL('Concrete');",
+            "#20=IFCRELASSOCIATESMATERIAL('0material',$,$,$,(#9),#19);");
+    private static final List<String> OPENING = Arrays.asList(
+            "#21=IFCEXTRUDEDAREASOLID(#4,#2,#5,1.);",
+            "#22=IFCSHAPEREPRESENTATION($,'Body','SweptSolid',(#21));",
+            "#23=IFCPRODUCTDEFINITIONSHAPE($,$,(#22));",
+            "#24=IFCOPENINGELEMENT('0opening',$,$,$,$,#3,#23,$);",
+            "#25=IFCRELVOIDSELEMENT('0voids',$,$,$,#9,#24);");
+
+    private ExecutorService executor;
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        executor = Executors.newSingleThreadExecutor();
+        file = File.createTempFile("model", ".ifc");
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+        file.delete();
+    }
+
+    @Test
+    public void keepsHashesWhenRecordsAreRenumbered() throws IOException {
+        long[] original = hashes(MODEL, WALL, SLAB);
+        List<String> renumbered = new ArrayList<>();
+        for (String record : MODEL) {
+            renumbered.add(renumber(record));
+        }
+        Collections.reverse(renumbered);
+
+        long[] changed = hashes(renumbered, renumber(WALL), renumber(SLAB));
+
+        assertArrayEquals(original, changed);
+    }
+
+    @Test
+    public void addingAnOpeningChangesOnlyTheVoidedProduct() throws IOException {
+        long[] original = hashes(MODEL, WALL, SLAB);
+        List<String> voided = new ArrayList<>(MODEL);
+        voided.addAll(OPENING);
+
+        long[] changed = hashes(voided, WALL, SLAB);
+
+        assertNotEquals(original[0], changed[0]);
+        assertEquals(original[1], changed[1]);
+    }
+
+    @Test
+    public void changingTheOpeningChangesTheVoidedProduct() throws IOException {
+        List<String> voided = new ArrayList<>(MODEL);
+        voided.addAll(OPENING);
+        long[] original = hashes(voided, WALL, SLAB);
+        voided.set(voided.indexOf("#21=IFCEXTRUDEDAREASOLID(#4,#2,#5,1.);"), "#21=IFCEXTRUDEDAREASOLID(#4,#2,#5,2.);");
+
+        long[] changed = hashes(voided, WALL, SLAB);
+
+        assertNotEquals(original[0], changed[0]);
+        assertEquals(original[1], changed[1]);
+    }
+
+    @Test
+    public void changingTheStyleChangesTheStyledProduct() throws IOException {
+        long[] original = hashes(MODEL, WALL, SLAB);
+        long[] changed = hashes(replace(MODEL, "#14=IFCCOLOURRGB($,0.5,0.5,0.5);", "#14=IFCCOLOURRGB($,1.,0.,0.);"), WALL, SLAB);
+
+        assertNotEquals(original[0], changed[0]);
+        assertEquals(original[1], changed[1]);
+    }
+
+    @Test
+    public void changingTheMaterialChangesTheAssociatedProduct() throws IOException {
+        long[] original = hashes(MODEL, WALL, SLAB);
+        long[] changed = hashes(replace(MODEL, "#19=IFCMATERIAL('Concrete');", "#19=IFCMATERIAL('Brick');"), WALL, SLAB);
+
+        assertNotEquals(original[0], changed[0]);
+        assertEquals(original[1], changed[1]);
+    }
+
+    @Test
+    public void movingTheMaterialChangesBothProducts() throws IOException {
+        long[] original = hashes(MODEL, WALL, SLAB);
+        long[] changed = hashes(replace(MODEL, "#20=IFCRELASSOCIATESMATERIAL('0material',$,$,$,(#9),#19);",
+                "#20=IFCRELASSOCIATESMATERIAL('0material',$,$,$,(#13),#19);"), WALL, SLAB);
+
+        assertNotEquals(original[0], changed[0]);
+        assertNotEquals(original[1], changed[1]);
+    }
+
+    private long[] hashes(List<String> records, int... ids) throws IOException {
+        List<String> lines = new ArrayList<>(Arrays.asList("ISO-10303-21;", "HEADER;",
+                "FILE_DESCRIPTION(('ViewDefinition [CoordinationView]'),'2;1');",
+                "FILE_NAME('model.ifc','2020-01-01T00:00:00',(''),(''),'','','');",
+                "FILE_SCHEMA(('IFC2X3'));", "ENDSEC;", "DATA;"));
+        lines.addAll(records);
+        lines.addAll(Arrays.asList("ENDSEC;", "END-ISO-10303-21;"));
+        Files.write(file.toPath(), lines, StandardCharsets.US_ASCII);
+        try (IfcInput input = IfcInput.open(file)) {
+            StepIndex index = StepIndex.build(input, executor, 1);
+            long[] hashes = StepHashes.compute(input, index);
+            long[] result = new long[ids.length];
+            for (int i = 0; i < ids.length; i++) {
+                result[i] = hashes[index.indexOf(ids[i])];
+            }
+            return result;
+        }
+    }
+
+    private static List<String> replace(List<String> records, String record, String replacement) {
+        List<String> result = new ArrayList<>(records);
+        result.set(result.indexOf(record), replacement);
+        return result;
+    }
+
+    private static int renumber(int id) {
+        return id * 3 + 100;
+    }
+
+    private static String renumber(String record) {
+        Matcher matcher = Pattern.compile("#(\\d+)").matcher(record);
+        StringBuffer result = new StringBuffer();
+        while (matcher.find()) {
+            matcher.appendReplacement(result, "#" + renumber(Integer.parseInt(matcher.group(1))));
+        }
+        matcher.appendTail(result);
+        return result.toString();
+    }
+}
@@ -0,0 +1,225 @@
+package eu.dsconsultants.bimserver.bimserverbundle.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class StepIndexTest {
+
+    private static final String HEADER = "ISO-10303-21;\nHEADER;\nFILE_DESCRIPTION(('ViewDefinition [CoordinationView]'),'2;1');\n"
+            + "FILE_NAME('model.ifc','2020-01-01T00:00:00',(''),(''),'','','');\nFILE_SCHEMA(('IFC2X3'));\nENDSEC;\nDATA;\n";
+    private static final String TRAILER = "ENDSEC;\nEND-ISO-10303-21;\n";
+    private static final Pattern RECORD = Pattern.compile("#(\\d+)\\s*=\\s*([A-Za-z0-9_]+)\\s*\\(");
+    private static final Pattern REFERENCE = Pattern.compile("#(\\d+)");
+
+    private ExecutorService executor;
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        executor = Executors.newFixedThreadPool(4);
+        file = File.createTempFile("model", ".ifc");
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+        file.delete();
+    }
+
+    @Test
+    public void indexesLargeFilesInChunksLikeTheFileReadsSequentially() throws IOException {
+        // Over 16 MB, so the DATA section is split into four chunks
+        List<String> records = generate(250000);
+        write(records, "");
+        assertTrue(file.length() > 16 * 1024 * 1024);
+
+        try (IfcInput input = IfcInput.open(file)) {
+            StepIndex index = StepIndex.build(input, executor, 4);
+
+            String text = new String(Files.readAllBytes(file.toPath()), StandardCharsets.US_ASCII);
+            assertEquals(records.size(), index.size());
+            for (int r = 0; r < records.size(); r++) {
+                String record = records.get(r);
+                Matcher matcher = RECORD.matcher(record);
+                assertTrue(matcher.lookingAt());
+                assertEquals(Integer.parseInt(matcher.group(1)), index.getId(r));
+                assertEquals(matcher.group(2).toUpperCase(), index.getTypeName(r));
+                assertEquals(record, text.substring((int) index.getOffset(r), (int) index.getOffset(r) + index.getLength(r)));
+                assertEquals(references(record).size(), index.getRefCount(r));
+            }
+            assertEquals(text.lastIndexOf(TRAILER), index.getDataEnd());
+        }
+    }
+
+    @Test
+    public void streamsRecordsInTheGivenOrder() throws IOException {
+        List<String> records = generate(5000);
+        write(records, "/* ENDSEC; */\n");
+
+        try (IfcInput input = IfcInput.open(file)) {
+            StepIndex index = StepIndex.build(input, executor, 4);
+            int[] fileOrder = new int[index.size()];
+            for (int r = 0; r < fileOrder.length; r++) {
+                fileOrder[r] = r;
+            }
+            SubsetIfcInput subset = new SubsetIfcInput(input, index, fileOrder, null);
+            String streamed;
+            try (InputStream in = subset.newInputStream()) {
+                streamed = read(in);
+            }
+
+            // Only what lies between the records is left out
+            StringBuilder expected = new StringBuilder(HEADER);
+            for (String record : records) {
+                expected.append(record).append('\n');
+            }
+            assertEquals(expected.append(TRAILER).toString(), streamed);
+            assertEquals(streamed.length(), subset.length());
+            Random random = new Random(7);
+            byte[] buffer = new byte[300];
+            for (int i = 0; i < 1000; i++) {
+                int position = random.nextInt(streamed.length());
+                int n = subset.read(position, buffer, 0, buffer.length);
+                assertTrue(n > 0);
+                assertEquals(streamed.substring(position, position + n), new String(buffer, 0, n, StandardCharsets.US_ASCII));
+            }
+            assertEquals(-1, subset.read(streamed.length(), buffer, 0, buffer.length));
+        }
+    }
+
+    @Test
+    public void dependencyOrderPutsReferencedRecordsFirst() throws IOException {
+        List<String> records = generate(5000);
+        write(records, "/* ENDSEC; */\n");
+
+        try (IfcInput input = IfcInput.open(file)) {
+            StepIndex index = StepIndex.build(input, executor, 4);
+            int[] order = index.dependencyOrder();
+            String reordered;
+            try (InputStream in = new SubsetIfcInput(input, index, order, null).newInputStream()) {
+                reordered = read(in);
+            }
+
+            assertTrue(reordered.startsWith(HEADER));
+            assertTrue(reordered.endsWith(TRAILER));
+            List<String> streamed = new ArrayList<>();
+            for (String line : reordered.substring(HEADER.length(), reordered.length() - TRAILER.length()).split("\n")) {
+                if (!line.isEmpty()) {
+                    streamed.add(line);
+                }
+            }
+            List<String> expected = new ArrayList<>(records);
+            Collections.sort(expected);
+            List<String> actual = new ArrayList<>(streamed);
+            Collections.sort(actual);
+            assertEquals(expected, actual);
+
+            Map<Integer, Integer> positions = new HashMap<>();
+            for (int i = 0; i < streamed.size(); i++) {
+                Matcher matcher = RECORD.matcher(streamed.get(i));
+                assertTrue(matcher.lookingAt());
+                positions.put(Integer.parseInt(matcher.group(1)), i);
+            }
+            for (int i = 0; i < streamed.size(); i++) {
+                for (int reference : references(streamed.get(i))) {
+                    assertTrue(streamed.get(i), positions.get(reference) < i);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void endsTheDataSectionOnlyAtEndsec() throws IOException {
+        List<String> records = new ArrayList<>();
+        records.add("#1=IFCCARTESIANPOINT((0.,0.,0.));");
+        records.add("#2=IFCAXIS2PLACEMENT3D(#1,$,$);");
+        // Stray words outside records are skipped, not taken for the end of the section
+        write(records, "E\nEND;\nENDSECTION;\n");
+        String text = new String(Files.readAllBytes(file.toPath()), StandardCharsets.US_ASCII);
+        Files.write(file.toPath(), text.replace(TRAILER, "#3=IFCLOCALPLACEMENT($,#2);\n" + TRAILER).getBytes(StandardCharsets.US_ASCII));
+
+        try (IfcInput input = IfcInput.open(file)) {
+            StepIndex index = StepIndex.build(input, executor, 1);
+
+            assertEquals(3, index.size());
+            assertEquals(1, index.indexOf(2));
+            assertEquals(2, index.indexOf(3));
+            text = new String(Files.readAllBytes(file.toPath()), StandardCharsets.US_ASCII);
+            assertEquals(text.lastIndexOf(TRAILER), index.getDataEnd());
+        }
+    }
+
+    // Records referring to earlier and later ones, with strings and comments that must not confuse the scanner
+    private static List<String> generate(int count) {
+        List<String> records = new ArrayList<>();
+        for (int id = 1; id <= count; id++) {
+            int forward = id + 7 <= count ? id + 7 : 1;
+            int backward = Math.max(1, id - 3);
+            if (id % 3 == 0) {
+                records.add("#" + id + "=IFCWALL('2O2Fr$t4X7Zf8NOew3FL" + id + "',#" + backward
+                        + ",'Wall; with #12 and ENDSEC; in its name','E',$,#" + forward + ",$,$);");
+            } else if (id % 3 == 1) {
+                records.add("#" + id + "=IFCCARTESIANPOINT((" + id + ".,0.5,-1.E-05));");
+            } else {
+                records.add("#" + id + "= IfcPolyLoop ((#" + backward + ",#" + forward + "));");
+            }
+        }
+        return records;
+    }
+
+    private void write(List<String> records, String between) throws IOException {
+        try (Writer writer = Files.newBufferedWriter(file.toPath(), StandardCharsets.US_ASCII)) {
+            writer.write(HEADER);
+            for (int i = 0; i < records.size(); i++) {
+                writer.write(records.get(i));
+                writer.write('\n');
+                if (i == records.size() / 2) {
+                    writer.write(between);
+                }
+            }
+            writer.write(between);
+            writer.write(TRAILER);
+        }
+    }
+
+    // References outside strings
+    private static List<Integer> references(String record) {
+        List<Integer> references = new ArrayList<>();
+        String unquoted = record.substring(record.indexOf('=') + 1).replaceAll("'[^']*'", "''");
+        Matcher matcher = REFERENCE.matcher(unquoted);
+        while (matcher.find()) {
+            references.add(Integer.parseInt(matcher.group(1)));
+        }
+        return references;
+    }
+
+    private static String read(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[64 * 1024];
+        for (int n = in.read(buffer); n != -1; n = in.read(buffer)) {
+            out.write(buffer, 0, n);
+        }
+        return new String(out.toByteArray(), StandardCharsets.US_ASCII);
+    }
+}
@@ -0,0 +1,210 @@
+package eu.dsconsultants.bimserver.bimserverbundle.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Stream;
+import org.bimserver.emf.IdEObject;
+import org.bimserver.emf.IfcModelInterface;
+import org.bimserver.emf.MetaDataManager;
+import org.bimserver.emf.Schema;
+import org.bimserver.models.ifc2x3tc1.IfcProduct;
+import org.bimserver.plugins.deserializers.DeserializeException;
+import org.eclipse.emf.ecore.EStructuralFeature;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SubsetIfcInputTest {
+
+    private static final int WALLS = 40;
+    private Path directory;
+    private File file;
+    private ExecutorService executor;
+    private IfcStepDeserializersProvider deserializers;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("subset-input-test");
+        file = directory.resolve("model.ifc").toFile();
+        executor = Executors.newFixedThreadPool(4);
+        MetaDataManager metaDataManager = new MetaDataManager(Files.createDirectory(directory.resolve("metadata")));
+        metaDataManager.init();
+        deserializers = new IfcStepDeserializersProviderImpl(metaDataManager);
+        TestModels.writeStorey(file, WALLS);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        executor.shutdownNow();
+        try (Stream<Path> files = Files.walk(directory)) {
+            for (Path path : (Iterable<Path>) files.sorted(Collections.reverseOrder())::iterator) {
+                Files.delete(path);
+            }
+        }
+    }
+
+    @Test
+    public void loadsTheSameModelAsTheDeserializerWhenEverythingIsSelected() throws Exception {
+        IfcModelInterface expected = readWhole();
+        IfcModelInterface actual = readSubset("IfcProduct");
+
+        assertEquals(expected.size(), actual.size());
+        Map<Integer, IdEObject> loaded = byExpressId(actual);
+        for (IdEObject object : expected.getValues()) {
+            IdEObject other = loaded.get(object.getExpressId());
+            assertNotNull("#" + object.getExpressId(), other);
+            assertSameAttributes("#" + object.getExpressId(), object, other);
+        }
+        assertEquals(expressIds(expected.getAllWithSubTypes(IfcProduct.class)), expressIds(actual.getAllWithSubTypes(IfcProduct.class)));
+    }
+
+    @Test
+    public void keepsTheFileOrderOfWhatIsLeftOfCutRelationships() throws Exception {
+        IfcModelInterface expected = readWhole();
+        IfcModelInterface actual = readSubset("IfcWall");
+
+        List<Integer> walls = new ArrayList<>();
+        for (IdEObject element : relatedElements(expected)) {
+            if (element.eClass().getName().equals("IfcWallStandardCase")) {
+                walls.add(element.getExpressId());
+            }
+        }
+        assertEquals(WALLS, walls.size());
+        assertEquals(walls, expressIds(relatedElements(actual)));
+        Map<Integer, IdEObject> whole = byExpressId(expected);
+        for (IdEObject wall : actual.getAllWithSubTypes(IfcProduct.class)) {
+            if (wall.eClass().getName().equals("IfcWallStandardCase")) {
+                assertSameAttributes("#" + wall.getExpressId(), whole.get(wall.getExpressId()), wall);
+            }
+        }
+    }
+
+    @Test
+    public void shardsOfExpressIdsCarryOnlyTheirOwnProducts() throws Exception {
+        List<Integer> walls = new ArrayList<>();
+        for (IdEObject element : relatedElements(readWhole())) {
+            if (element.eClass().getName().equals("IfcWallStandardCase")) {
+                walls.add(element.getExpressId());
+            }
+        }
+        // Every other wall, as the first of two geometry workers gets them
+        int[] shard = new int[walls.size() / 2];
+        for (int i = 0; i < shard.length; i++) {
+            shard[i] = walls.get(i * 2);
+        }
+
+        IfcModelInterface actual;
+        try (IfcInput input = IfcInput.open(file)) {
+            StepIndex index = StepIndex.build(input, executor, 4);
+            StepSubset subset = StepSubset.select(input, index, deserializers.getPackageMetaData(Schema.IFC2X3TC1), shard);
+            actual = read(SubsetIfcInput.select(input, index, subset));
+        }
+
+        List<Integer> expected = new ArrayList<>();
+        for (int expressId : shard) {
+            expected.add(expressId);
+        }
+        assertEquals(expected, expressIds(relatedElements(actual)));
+        List<Integer> products = new ArrayList<>();
+        for (IfcProduct product : actual.getAllWithSubTypes(IfcProduct.class)) {
+            if (product.eClass().getName().equals("IfcWallStandardCase")) {
+                products.add(product.getExpressId());
+            }
+        }
+        Collections.sort(products);
+        assertEquals(expected, products);
+    }
+
+    private IfcModelInterface readWhole() throws IOException, DeserializeException {
+        try (IfcInput input = IfcInput.open(file)) {
+            return read(input);
+        }
+    }
+
+    private IfcModelInterface readSubset(String productType) throws IOException, DeserializeException {
+        try (IfcInput input = IfcInput.open(file)) {
+            StepIndex index = StepIndex.build(input, executor, 4);
+            StepSubset subset = StepSubset.select(input, index, deserializers.getPackageMetaData(Schema.IFC2X3TC1),
+                    Collections.singleton(productType));
+            return read(SubsetIfcInput.select(input, index, subset));
+        }
+    }
+
+    private IfcModelInterface read(IfcInput input) throws IOException, DeserializeException {
+        try (InputStream in = input.newInputStream()) {
+            return deserializers.getIfc2x3tc1StepDeserializer().read(in, input.getFileName(), input.length(), null);
+        }
+    }
+
+    // Referenced entities are compared by express id, embedded values and lists by content
+    private static void assertSameAttributes(String path, IdEObject expected, IdEObject actual) {
+        assertEquals(path, expected.eClass().getName(), actual.eClass().getName());
+        for (EStructuralFeature feature : expected.eClass().getEAllStructuralFeatures()) {
+            assertSameValue(path + "." + feature.getName(), expected.eGet(feature), actual.eGet(feature));
+        }
+    }
+
+    private static void assertSameValue(String path, Object expected, Object actual) {
+        if (expected instanceof IdEObject && actual instanceof IdEObject) {
+            IdEObject expectedObject = (IdEObject) expected;
+            IdEObject actualObject = (IdEObject) actual;
+            if (expectedObject.getExpressId() > 0) {
+                assertEquals(path, expectedObject.eClass().getName(), actualObject.eClass().getName());
+                assertEquals(path, expectedObject.getExpressId(), actualObject.getExpressId());
+            } else {
+                assertSameAttributes(path, expectedObject, actualObject);
+            }
+        } else if (expected instanceof List && actual instanceof List) {
+            List<?> expectedList = (List<?>) expected;
+            List<?> actualList = (List<?>) actual;
+            assertEquals(path, expectedList.size(), actualList.size());
+            for (int i = 0; i < expectedList.size(); i++) {
+                assertSameValue(path + "[" + i + "]", expectedList.get(i), actualList.get(i));
+            }
+        } else {
+            assertEquals(path, expected, actual);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<IdEObject> relatedElements(IfcModelInterface model) {
+        List<IdEObject> containment = new ArrayList<>();
+        for (IdEObject object : model.getValues()) {
+            if (object.eClass().getName().equals("IfcRelContainedInSpatialStructure")) {
+                containment.add(object);
+            }
+        }
+        assertEquals(1, containment.size());
+        IdEObject relationship = containment.get(0);
+        return (List<IdEObject>) relationship.eGet(relationship.eClass().getEStructuralFeature("RelatedElements"));
+    }
+
+    private static Map<Integer, IdEObject> byExpressId(IfcModelInterface model) {
+        Map<Integer, IdEObject> objects = new HashMap<>();
+        for (IdEObject object : model.getValues()) {
+            objects.put(object.getExpressId(), object);
+        }
+        return objects;
+    }
+
+    private static List<Integer> expressIds(List<? extends IdEObject> objects) {
+        List<Integer> ids = new ArrayList<>();
+        for (IdEObject object : objects) {
+            ids.add(object.getExpressId());
+        }
+        return ids;
+    }
+}
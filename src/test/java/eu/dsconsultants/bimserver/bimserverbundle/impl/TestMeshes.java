@@ -0,0 +1,64 @@
+package eu.dsconsultants.bimserver.bimserverbundle.impl;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/*
+ * Meshes shaped like the engine's output: every triangle has its own three
+ * vertices and triangles come face by face, here ring by ring around a sphere.
+ */
+final class TestMeshes {
+
+    private TestMeshes() {
+    }
+
+    // A smooth sphere, so welding shares vertices between neighbouring triangles
+    static MeshCompactor sphere(int segments, int rings) {
+        int triangleCount = segments * 2 * (rings - 1);
+        float[] vertices = new float[triangleCount * 9];
+        float[] normals = new float[triangleCount * 9];
+        int[] indices = new int[triangleCount * 3];
+        int v = 0;
+        for (int ring = 0; ring < rings; ring++) {
+            for (int segment = 0; segment < segments; segment++) {
+                int[][] corners = {{ring, segment}, {ring + 1, segment}, {ring + 1, segment + 1}, {ring, segment + 1}};
+                int[][] triangles = {{0, 1, 2}, {0, 2, 3}};
+                for (int[] triangle : triangles) {
+                    if ((ring == 0 && triangle[1] == 2) || (ring == rings - 1 && triangle[1] == 1)) {
+                        // The triangle collapsed into a pole
+                        continue;
+                    }
+                    for (int corner : triangle) {
+                        double theta = Math.PI * corners[corner][0] / rings;
+                        double phi = 2 * Math.PI * (corners[corner][1] % segments) / segments;
+                        float x = (float) (Math.sin(theta) * Math.cos(phi));
+                        float y = (float) (Math.sin(theta) * Math.sin(phi));
+                        float z = (float) Math.cos(theta);
+                        vertices[v * 3] = normals[v * 3] = x;
+                        vertices[v * 3 + 1] = normals[v * 3 + 1] = y;
+                        vertices[v * 3 + 2] = normals[v * 3 + 2] = z;
+                        indices[v] = v;
+                        v++;
+                    }
+                }
+            }
+        }
+        return new MeshCompactor(vertices, normals, null, indices);
+    }
+
+    // Average cache miss ratio of a FIFO post-transform cache
+    static double missesPerTriangle(int[] indices, int cacheSize) {
+        Deque<Integer> cache = new ArrayDeque<>();
+        int misses = 0;
+        for (int index : indices) {
+            if (!cache.contains(index)) {
+                misses++;
+                cache.addLast(index);
+                if (cache.size() > cacheSize) {
+                    cache.removeFirst();
+                }
+            }
+        }
+        return (double) misses / (indices.length / 3);
+    }
+}
@@ -0,0 +1,88 @@
+package eu.dsconsultants.bimserver.bimserverbundle.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * IFC2X3 files for tests and benchmarks that run the BIMserver deserializer.
+ */
+final class TestModels {
+
+    private TestModels() {
+    }
+
+    // A storey with walls and doors, related to it before they are defined, and
+    // property sets and materials shared between them
+    static void writeStorey(File file, int wallCount) throws IOException {
+        List<String> records = new ArrayList<>();
+        records.add("#1=IFCPERSON($,'Doe','Jane',$,$,$,$,$);");
+        records.add("#2=IFCORGANIZATION($,'DS Consultants',$,$,$);");
+        records.add("#3=IFCPERSONANDORGANIZATION(#1,#2,$);");
+        records.add("#4=IFCAPPLICATION(#2,'1.0','Test','Test');");
+        records.add("#5=IFCOWNERHISTORY(#3,#4,$,.ADDED.,$,$,$,1600000000);");
+        records.add("#6=IFCSIUNIT(*,.LENGTHUNIT.,.MILLI.,.METRE.);");
+        records.add("#7=IFCUNITASSIGNMENT((#6));");
+        records.add("#8=IFCCARTESIANPOINT((0.,0.,0.));");
+        records.add("#9=IFCAXIS2PLACEMENT3D(#8,$,$);");
+        records.add("#10=IFCGEOMETRICREPRESENTATIONCONTEXT($,'Model',3,1.E-05,#9,$);");
+        records.add("#11=IFCPROJECT('" + guid(11) + "',#5,'Project',$,$,$,$,(#10),#7);");
+        records.add("#12=IFCLOCALPLACEMENT($,#9);");
+        records.add("#13=IFCSITE('" + guid(13) + "',#5,'Site',$,$,#12,$,$,.ELEMENT.,$,$,$,$,$);");
+        records.add("#14=IFCLOCALPLACEMENT(#12,#9);");
+        records.add("#15=IFCBUILDING('" + guid(15) + "',#5,'Building',$,$,#14,$,$,.ELEMENT.,$,$,$);");
+        records.add("#16=IFCLOCALPLACEMENT(#14,#9);");
+        records.add("#17=IFCBUILDINGSTOREY('" + guid(17) + "',#5,'Storey',$,$,#16,$,$,.ELEMENT.,0.);");
+        records.add("#18=IFCRELAGGREGATES('" + guid(18) + "',#5,$,$,#11,(#13));");
+        records.add("#19=IFCRELAGGREGATES('" + guid(19) + "',#5,$,$,#13,(#15));");
+        records.add("#20=IFCRELAGGREGATES('" + guid(20) + "',#5,$,$,#15,(#17));");
+        records.add("#21=IFCPROPERTYSINGLEVALUE('IsExternal',$,IFCBOOLEAN(.T.),$);");
+        records.add("#22=IFCPROPERTYSINGLEVALUE('Reference',$,IFCLABEL('Outer wall'),$);");
+        records.add("#23=IFCPROPERTYSET('" + guid(23) + "',#5,'Pset_WallCommon',$,(#22,#21));");
+        records.add("#24=IFCMATERIAL('Concrete');");
+
+        // Elements are listed out of id order, every third one is a door
+        int first = 100;
+        int elements = wallCount + wallCount / 2;
+        List<String> contained = new ArrayList<>();
+        List<String> walls = new ArrayList<>();
+        for (int i = elements - 1; i >= 0; i -= 2) {
+            contained.add("#" + (first + 2 * i));
+        }
+        for (int i = elements - 2; i >= 0; i -= 2) {
+            contained.add("#" + (first + 2 * i));
+        }
+        records.add("#30=IFCRELCONTAINEDINSPATIALSTRUCTURE('" + guid(30) + "',#5,$,$,(" + String.join(",", contained) + "),#17);");
+        for (int i = 0; i < elements; i++) {
+            int id = first + 2 * i;
+            records.add("#" + (id + 1) + "=IFCLOCALPLACEMENT(#16,#9);");
+            if (i % 3 == 2) {
+                records.add("#" + id + "=IFCDOOR('" + guid(id) + "',#5,'Door " + i + "',$,$,#" + (id + 1) + ",$,$,2100.,900.);");
+            } else {
+                records.add("#" + id + "=IFCWALLSTANDARDCASE('" + guid(id) + "',#5,'Wall " + i + "',$,$,#" + (id + 1) + ",$,$);");
+                walls.add("#" + id);
+            }
+        }
+        records.add("#31=IFCRELDEFINESBYPROPERTIES('" + guid(31) + "',#5,$,$,(" + String.join(",", walls) + "),#23);");
+        records.add("#32=IFCRELASSOCIATESMATERIAL('" + guid(32) + "',#5,$,$,(" + String.join(",", walls) + "),#24);");
+
+        try (Writer writer = Files.newBufferedWriter(file.toPath(), StandardCharsets.US_ASCII)) {
+            writer.write("ISO-10303-21;\nHEADER;\nFILE_DESCRIPTION(('ViewDefinition [CoordinationView]'),'2;1');\n"
+                    + "FILE_NAME('model.ifc','2020-01-01T00:00:00',(''),(''),'','','');\nFILE_SCHEMA(('IFC2X3'));\nENDSEC;\nDATA;\n");
+            for (String record : records) {
+                writer.write(record);
+                writer.write('\n');
+            }
+            writer.write("ENDSEC;\nEND-ISO-10303-21;\n");
+        }
+    }
+
+    private static String guid(int id) {
+        String digits = Integer.toString(id, 36);
+        return "0000000000000000000000".substring(digits.length()) + digits;
+    }
+}
@@ -0,0 +1,175 @@
+package eu.dsconsultants.bimserver.bimserverbundle.impl;
+
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import org.bimserver.emf.IdEObject;
+import org.bimserver.models.geometry.Bounds;
+import org.bimserver.models.geometry.Buffer;
+import org.bimserver.models.geometry.GeometryData;
+import org.bimserver.models.geometry.GeometryFactory;
+import org.bimserver.models.geometry.GeometryInfo;
+import org.bimserver.models.geometry.Vector3f;
+import org.eclipse.emf.common.util.EList;
+import org.eclipse.emf.ecore.EClass;
+import org.eclipse.emf.ecore.EStructuralFeature;
+
+/*
+ * Products and geometry for tests that do not need a deserialized model.
+ * Objects are proxies answering the few EMF calls the code under test makes,
+ * attributes are looked up by feature name.
+ */
+final class TestProducts {
+
+    private static final Map<String, EStructuralFeature> FEATURES = new ConcurrentHashMap<>();
+
+    private TestProducts() {
+    }
+
+    static EClass eClass(String name, EClass... superTypes) {
+        List<EClass> allSuperTypes = new ArrayList<>();
+        for (EClass superType : superTypes) {
+            allSuperTypes.add(superType);
+            allSuperTypes.addAll(superType.getEAllSuperTypes());
+        }
+        EList<EClass> superTypeList = list(allSuperTypes);
+        return proxy(EClass.class, (method, args) -> {
+            switch (method) {
+                case "getName":
+                    return name;
+                case "getEStructuralFeature":
+                    return feature((String) args[0]);
+                case "getEAllSuperTypes":
+                    return superTypeList;
+                default:
+                    return null;
+            }
+        });
+    }
+
+    static IdEObject object(int expressId, EClass eClass, Map<String, Object> attributes) {
+        return proxy(IdEObject.class, (method, args) -> {
+            switch (method) {
+                case "eClass":
+                    return eClass;
+                case "getExpressId":
+                    return expressId;
+                case "eGet":
+                    return attributes.get(((EStructuralFeature) args[0]).getName());
+                default:
+                    return null;
+            }
+        });
+    }
+
+    static IdEObject product(int expressId, String type, String globalId, GeometryInfo geometryInfo) {
+        Map<String, Object> attributes = new HashMap<>();
+        attributes.put("GlobalId", globalId);
+        attributes.put("geometry", geometryInfo);
+        return object(expressId, eClass(type), attributes);
+    }
+
+    // Bounds, quantities and placement all shifted by offset
+    static GeometryInfo geometry(GeometryData geometryData, double offset) {
+        GeometryInfo geometryInfo = GeometryFactory.eINSTANCE.createGeometryInfo();
+        Bounds bounds = GeometryFactory.eINSTANCE.createBounds();
+        bounds.setMin(vector(offset, offset, offset));
+        bounds.setMax(vector(offset + 1, offset + 2, offset + 3));
+        geometryInfo.setBounds(bounds);
+        geometryInfo.setArea(22 + offset);
+        geometryInfo.setVolume(6 + offset);
+        geometryInfo.setPrimitiveCount(geometryData == null ? 0 : geometryData.getNrIndices() / 3);
+        ByteBuffer transformation = ByteBuffer.allocate(16 * 8).order(ByteOrder.nativeOrder());
+        for (int i = 0; i < 16; i++) {
+            transformation.putDouble(i % 5 == 0 ? 1 : 0);
+        }
+        transformation.putDouble(12 * 8, offset);
+        geometryInfo.setTransformation(transformation.array());
+        geometryInfo.setData(geometryData);
+        return geometryInfo;
+    }
+
+    static GeometryData geometryData(float[] vertices, int[] indices) {
+        GeometryData geometryData = GeometryFactory.eINSTANCE.createGeometryData();
+        geometryData.setNrIndices(indices.length);
+        ByteBuffer indexBytes = ByteBuffer.allocate(indices.length * 4).order(ByteOrder.LITTLE_ENDIAN);
+        indexBytes.asIntBuffer().put(indices);
+        geometryData.setIndices(buffer(indexBytes.array()));
+        ByteBuffer vertexBytes = ByteBuffer.allocate(vertices.length * 4).order(ByteOrder.LITTLE_ENDIAN);
+        vertexBytes.asFloatBuffer().put(vertices);
+        geometryData.setVertices(buffer(vertexBytes.array()));
+        ByteBuffer normalBytes = ByteBuffer.allocate(vertices.length * 4).order(ByteOrder.LITTLE_ENDIAN);
+        for (int v = 0; v < vertices.length / 3; v++) {
+            normalBytes.putFloat(v * 12 + 8, 1);
+        }
+        geometryData.setNormals(buffer(normalBytes.array()));
+        return geometryData;
+    }
+
+    // A unit triangle pair scaled by size
+    static GeometryData quad(float size) {
+        return geometryData(new float[]{0, 0, 0, size, 0, 0, size, size, 0, 0, size, 0}, new int[]{0, 1, 2, 0, 2, 3});
+    }
+
+    static Buffer buffer(byte[] data) {
+        Buffer buffer = GeometryFactory.eINSTANCE.createBuffer();
+        buffer.setData(data);
+        return buffer;
+    }
+
+    private static Vector3f vector(double x, double y, double z) {
+        Vector3f vector = GeometryFactory.eINSTANCE.createVector3f();
+        vector.setX(x);
+        vector.setY(y);
+        vector.setZ(z);
+        return vector;
+    }
+
+    private static EStructuralFeature feature(String name) {
+        return FEATURES.computeIfAbsent(name, key -> proxy(EStructuralFeature.class, (method, args) -> "getName".equals(method) ? key : null));
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <E> EList<E> list(List<E> elements) {
+        return (EList<E>) Proxy.newProxyInstance(EList.class.getClassLoader(), new Class<?>[]{EList.class},
+                (proxy, method, args) -> method.invoke(elements, args));
+    }
+
+    private interface Handler {
+
+        Object invoke(String method, Object[] args);
+    }
+
+    // Identity equality, zero or false for unanswered primitive results
+    @SuppressWarnings("unchecked")
+    private static <T> T proxy(Class<T> type, Handler handler) {
+        return (T) Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type}, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "toString":
+                    return type.getSimpleName() + "@" + Integer.toHexString(System.identityHashCode(proxy));
+                default:
+                    Object result = handler.invoke(method.getName(), args);
+                    Class<?> returnType = method.getReturnType();
+                    if (result != null || !returnType.isPrimitive() || returnType == void.class) {
+                        return result;
+                    } else if (returnType == boolean.class) {
+                        return Boolean.FALSE;
+                    } else if (returnType == long.class) {
+                        return 0L;
+                    } else if (returnType == double.class) {
+                        return 0.0;
+                    }
+                    return 0;
+            }
+        });
+    }
+}
@@ -0,0 +1,135 @@
+package eu.dsconsultants.bimserver.bimserverbundle.impl;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import org.junit.Test;
+
+public class VertexCacheOptimizerTest {
+
+    private static final int GRID = 64;
+
+    @Test
+    public void lowersCacheMissRatioOfShuffledGrid() {
+        int[] indices = shuffledGrid(new Random(42));
+        int vertexCount = (GRID + 1) * (GRID + 1);
+
+        double before = TestMeshes.missesPerTriangle(indices, 16);
+        double after = TestMeshes.missesPerTriangle(VertexCacheOptimizer.optimizeTriangleOrder(indices, vertexCount), 16);
+
+        // A shuffled grid misses on almost every vertex, an optimised one
+        // gets close to one miss per two triangles
+        assertTrue("before " + before, before > 2.5);
+        assertTrue("after " + after, after < 0.8);
+    }
+
+    @Test
+    public void lowersCacheMissRatioOfWeldedEngineMesh() {
+        // Ring by ring, as the engine emits a revolved surface, one ring is
+        // more vertices than the cache holds
+        MeshCompactor sphere = TestMeshes.sphere(64, 32);
+        MeshCompactor welded = MeshCompactor.weld(sphere.getVertices(), sphere.getNormals(), null, sphere.getIndices());
+        assertTrue(welded.getVertexCount() * 5 < sphere.getVertexCount());
+
+        MeshCompactor optimized = VertexCacheOptimizer.optimize(welded.getVertices(), welded.getNormals(), null, welded.getIndices());
+
+        for (int cacheSize : new int[]{16, 32}) {
+            double before = TestMeshes.missesPerTriangle(welded.getIndices(), cacheSize);
+            double after = TestMeshes.missesPerTriangle(optimized.getIndices(), cacheSize);
+            assertTrue("before " + before, before > 1.0);
+            assertTrue("after " + after, after < 0.75);
+        }
+    }
+
+    @Test
+    public void keepsEveryTriangle() {
+        int[] indices = shuffledGrid(new Random(7));
+        int vertexCount = (GRID + 1) * (GRID + 1);
+
+        int[] optimized = VertexCacheOptimizer.optimizeTriangleOrder(indices, vertexCount);
+
+        assertArrayEquals(sortedTriangles(indices), sortedTriangles(optimized));
+    }
+
+    @Test
+    public void reorderedVerticesDescribeTheSameTriangles() {
+        int[] indices = shuffledGrid(new Random(3));
+        int vertexCount = (GRID + 1) * (GRID + 1);
+        float[] vertices = new float[vertexCount * 3];
+        float[] normals = new float[vertexCount * 3];
+        for (int v = 0; v < vertexCount; v++) {
+            vertices[v * 3] = v % (GRID + 1);
+            vertices[v * 3 + 1] = v / (GRID + 1);
+            normals[v * 3 + 2] = 1;
+        }
+
+        MeshCompactor mesh = VertexCacheOptimizer.optimize(vertices, normals, null, indices);
+
+        assertEquals(vertexCount, mesh.getVertexCount());
+        assertArrayEquals(sortedTriangles(corners(vertices, indices)), sortedTriangles(corners(mesh.getVertices(), mesh.getIndices())));
+        for (int v = 0; v < vertexCount; v++) {
+            assertEquals(1, mesh.getNormals()[v * 3 + 2], 0);
+        }
+        // First use order, the first triangle refers to the first vertices
+        assertTrue(mesh.getIndices()[0] == 0 && mesh.getIndices()[1] <= 1 && mesh.getIndices()[2] <= 2);
+    }
+
+    private static int[] shuffledGrid(Random random) {
+        List<int[]> triangles = new ArrayList<>();
+        for (int y = 0; y < GRID; y++) {
+            for (int x = 0; x < GRID; x++) {
+                int v = y * (GRID + 1) + x;
+                triangles.add(new int[]{v, v + 1, v + GRID + 1});
+                triangles.add(new int[]{v + 1, v + GRID + 2, v + GRID + 1});
+            }
+        }
+        Collections.shuffle(triangles, random);
+        int[] indices = new int[triangles.size() * 3];
+        for (int t = 0; t < triangles.size(); t++) {
+            System.arraycopy(triangles.get(t), 0, indices, t * 3, 3);
+        }
+        return indices;
+    }
+
+    // Triangles with their vertex ids, rotated so the smallest comes first
+    private static long[] sortedTriangles(int[] indices) {
+        long[] triangles = new long[indices.length / 3];
+        for (int t = 0; t < triangles.length; t++) {
+            triangles[t] = key(indices[t * 3], indices[t * 3 + 1], indices[t * 3 + 2]);
+        }
+        Arrays.sort(triangles);
+        return triangles;
+    }
+
+    private static long[] sortedTriangles(long[] triangles) {
+        long[] sorted = triangles.clone();
+        Arrays.sort(sorted);
+        return sorted;
+    }
+
+    // Triangles by the grid positions of their corners, independent of vertex order
+    private static long[] corners(float[] vertices, int[] indices) {
+        int[] positions = new int[indices.length];
+        for (int i = 0; i < indices.length; i++) {
+            positions[i] = (int) vertices[indices[i] * 3 + 1] * (GRID + 1) + (int) vertices[indices[i] * 3];
+        }
+        return sortedTriangles(positions);
+    }
+
+    private static long key(int a, int b, int c) {
+        // Rotation keeps the winding
+        while (a > b || a > c) {
+            int first = a;
+            a = b;
+            b = c;
+            c = first;
+        }
+        return ((long) a << 42) | ((long) b << 21) | c;
+    }
+}